@@ -2,34 +2,116 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
 import java.util.*;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.text.SimpleDateFormat;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 
+// A catalog title. Its physical copies carry the loan and hold state; the
+// title keeps the copies that are on the shelf so "any copy available" and
+// "take any copy" are constant time. Copy state changes under the title's stripe.
+// Kept small: plain arrays instead of collections, shared author and genre strings,
+// and no rating table until a vote. Titles are not stored in columns with Book as a
+// view over them. Books are handed out by reference to the server and UI, and at a
+// million titles the search and id indexes hold about four times the heap that the
+// title, author, genre and year fields do.
 class Book implements Serializable {
     private static final long serialVersionUID = 1L;
+    private static final BookCopy[] NO_COPIES = new BookCopy[0];
     private String id;
     private String title;
     private String author;
     private String genre;
     private int publicationYear;
-    private boolean isAvailable;
-    private String borrower;
-    private Date dueDate;
-    private double averageRating = 0;
-    private int ratingCount = 0;
-    private Map<String, Integer> userRatings = new HashMap<>();
+    // Replaced, never modified, so readers can iterate without the stripe
+    private transient volatile BookCopy[] copies;
+    private transient volatile RatingVotes votes;
+    // Rating sum in the high word and count in the low word, so one read sees a matching
+    // pair. Only written under the title's stripe.
+    private transient volatile long ratingTotals;
+    // Copies on the shelf, most recently shelved last; the first availableCount are in use
+    private transient BookCopy[] shelf;
+    private transient volatile int availableCount;
+    private transient volatile int heldCount;
+    // Odd while the copies are being changed; see read()
+    private transient volatile int version;
+    // Most similar titles by rating, kept by the RecommendationIndex
+    private transient volatile RecommendationIndex.Neighbors neighbors;
+    // Rises along the library's book list, so a removal can binary-search for the title
+    private transient long catalogOrder;
 
     public Book(String id, String title, String author, String genre, int publicationYear) {
+        this(id, title, author, genre, publicationYear, 1);
+    }
+
+    public Book(String id, String title, String author, String genre, int publicationYear, int copyCount) {
         this.id = id;
         this.title = title;
-        this.author = author;
-        this.genre = genre;
+        this.author = CatalogStrings.of(author);
+        this.genre = CatalogStrings.of(genre);
         this.publicationYear = publicationYear;
-        this.isAvailable = true;
-        this.borrower = null;
-        this.dueDate = null;
+        this.copies = NO_COPIES;
+        this.shelf = copyCount > 0 ? new BookCopy[copyCount] : NO_COPIES;
+        for (int i = 1; i <= copyCount; i++) addCopy(copyId(id, i));
+    }
+
+    // The first copy shares the title's id; further copies are numbered id-c2, id-c3, ...
+    static String copyId(String bookId, int n) {
+        return n == 1 ? bookId : bookId + "-c" + n;
     }
 
     public String getId() { return id; }
@@ -37,294 +119,8068 @@ class Book implements Serializable {
     public String getAuthor() { return author; }
     public String getGenre() { return genre; }
     public int getPublicationYear() { return publicationYear; }
-    public boolean isAvailable() { return isAvailable; }
+    public boolean isAvailable() { return availableCount > 0; }
+    public int getAvailableCopies() { return availableCount; }
+    public int getCopyCount() { return copies.length; }
+    public boolean hasHolds() { return heldCount > 0; }
+    public List<BookCopy> getCopies() { return Collections.unmodifiableList(Arrays.asList(copies)); }
+    public int getRatingCount() { return (int) ratingTotals; }
+
+    int[] getRatingEntries() {
+        RatingVotes votes = this.votes;
+        return votes == null ? new int[0] : votes.entries();
+    }
+
+    // 0 if this user has not rated the title
+    int getVote(int userId) {
+        RatingVotes votes = this.votes;
+        return votes == null ? 0 : votes.get(userId);
+    }
+
+    RecommendationIndex.Neighbors getNeighbors() { return neighbors; }
+    void setNeighbors(RecommendationIndex.Neighbors neighbors) { this.neighbors = neighbors; }
+    long getCatalogOrder() { return catalogOrder; }
+    void setCatalogOrder(long catalogOrder) { this.catalogOrder = catalogOrder; }
+
+    public double getAverageRating() {
+        long totals = ratingTotals;
+        int count = (int) totals;
+        return count == 0 ? 0 : (double) (totals >>> 32) / count;
+    }
+
+    // Runs the reader on a consistent view of the copies without taking the stripe,
+    // again if a loan, return or hold changed this title while it ran
+    public <T> T read(Function<Book, T> reader) {
+        while (true) {
+            int before = version;
+            if ((before & 1) == 0) {
+                T result = reader.apply(this);
+                if (version == before) return result;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    // Writers hold the title's stripe, so there is one at a time
+    private void beginChange() { version++; }
+    private void endChange() { version++; }
+
+    public Integer getUserRating(String username) {
+        int userId = UserIds.find(username);
+        RatingVotes votes = this.votes;
+        int vote = userId < 0 || votes == null ? 0 : votes.get(userId);
+        return vote == 0 ? null : vote;
+    }
+
+    BookCopy addCopy(String copyId) {
+        BookCopy copy = new BookCopy(copyId, this);
+        beginChange();
+        try {
+            BookCopy[] grown = Arrays.copyOf(copies, copies.length + 1);
+            grown[copies.length] = copy;
+            copies = grown;
+            shelve(copy);
+        } finally {
+            endChange();
+        }
+        return copy;
+    }
+
+    // Only copies on the shelf can be withdrawn
+    boolean removeCopy(BookCopy copy) {
+        if (!copy.isOnShelf()) return false;
+        BookCopy[] current = copies;
+        int index = Arrays.asList(current).indexOf(copy);
+        if (index < 0) return false;
+        BookCopy[] shrunk = new BookCopy[current.length - 1];
+        System.arraycopy(current, 0, shrunk, 0, index);
+        System.arraycopy(current, index + 1, shrunk, index, shrunk.length - index);
+        beginChange();
+        try {
+            copies = shrunk;
+            unshelve(copy);
+        } finally {
+            endChange();
+        }
+        return true;
+    }
+
+    BookCopy nextAvailable() {
+        int available = availableCount;
+        return available == 0 ? null : shelf[available - 1];
+    }
+
+    BookCopy findHeldFor(String username) {
+        if (heldCount == 0) return null;
+        for (BookCopy copy : copies) {
+            if (username.equals(copy.getHeldFor())) return copy;
+        }
+        return null;
+    }
+
+    void checkOut(BookCopy copy, String borrower, Date dueDate) {
+        beginChange();
+        try {
+            if (copy.getHeldFor() != null) {
+                copy.setHold(null, null);
+                heldCount--;
+            } else if (copy.getBorrower() == null) {
+                unshelve(copy);
+            }
+            copy.setLoan(borrower, dueDate);
+        } finally {
+            endChange();
+        }
+    }
+
+    void checkIn(BookCopy copy) {
+        if (copy.getBorrower() == null) return;
+        beginChange();
+        try {
+            copy.setLoan(null, null);
+            if (copy.getHeldFor() == null) shelve(copy);
+        } finally {
+            endChange();
+        }
+    }
+
+    void renew(BookCopy copy, Date dueDate) {
+        beginChange();
+        try {
+            copy.setLoan(copy.getBorrower(), dueDate);
+        } finally {
+            endChange();
+        }
+    }
+
+    void hold(BookCopy copy, String username, Date expires) {
+        beginChange();
+        try {
+            if (copy.getHeldFor() == null) {
+                if (copy.getBorrower() == null) unshelve(copy);
+                heldCount++;
+            }
+            copy.setHold(username, expires);
+        } finally {
+            endChange();
+        }
+    }
+
+    void releaseHold(BookCopy copy) {
+        if (copy.getHeldFor() == null) return;
+        beginChange();
+        try {
+            copy.setHold(null, null);
+            heldCount--;
+            if (copy.getBorrower() == null) shelve(copy);
+        } finally {
+            endChange();
+        }
+    }
+
+    private void shelve(BookCopy copy) {
+        int available = availableCount;
+        if (available == shelf.length) shelf = Arrays.copyOf(shelf, available + Math.max(1, available >> 1));
+        shelf[available] = copy;
+        availableCount = available + 1;
+    }
+
+    private void unshelve(BookCopy copy) {
+        int available = availableCount;
+        for (int i = available - 1; i >= 0; i--) {
+            if (shelf[i] == copy) {
+                System.arraycopy(shelf, i + 1, shelf, i, available - 1 - i);
+                shelf[available - 1] = null;
+                availableCount = available - 1;
+                return;
+            }
+        }
+    }
+
+    public void addRating(String username, int rating) {
+        addRating(UserIds.of(username), rating);
+    }
+
+    // Caller holds the title's stripe; readers of the totals never block
+    void addRating(int userId, int rating) {
+        if (rating < 1 || rating > 5) return;
+        if (votes == null) votes = new RatingVotes();
+        int previous = votes.put(userId, rating);
+        ratingTotals += previous == 0 ? ((long) rating << 32) + 1 : (long) (rating - previous) << 32;
+    }
+
+    // Java-serialized saves from older versions kept a single copy's loan on the book itself
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        id = (String) fields.get("id", null);
+        title = (String) fields.get("title", null);
+        author = CatalogStrings.of((String) fields.get("author", null));
+        genre = CatalogStrings.of((String) fields.get("genre", null));
+        publicationYear = fields.get("publicationYear", 0);
+        Map<String, Integer> userRatings = (Map<String, Integer>) fields.get("userRatings", null);
+        if (userRatings != null) userRatings.forEach(this::addRating);
+        copies = NO_COPIES;
+        shelf = new BookCopy[1];
+        BookCopy copy = addCopy(id);
+        String borrower = (String) fields.get("borrower", null);
+        if (borrower != null) checkOut(copy, borrower, (Date) fields.get("dueDate", null));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s - %s (%s) ★%.1f", 
+                title, author, 
+                availableCount > 0 ? "Available" : heldCount > 0 ? "On Hold" : "Borrowed",
+                getAverageRating());
+    }
+}
+
+// One physical item of a title
+class BookCopy implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String id;
+    private final Book book;
+    private volatile String borrower;
+    private volatile Date dueDate;
+    private volatile String heldFor;
+    private volatile Date holdExpires;
+
+    BookCopy(String id, Book book) {
+        this.id = id;
+        this.book = book;
+    }
+
+    public String getId() { return id; }
+    public Book getBook() { return book; }
     public String getBorrower() { return borrower; }
     public Date getDueDate() { return dueDate; }
-    public double getAverageRating() { return averageRating; }
-    public int getRatingCount() { return ratingCount; }
-    public Integer getUserRating(String username) { return userRatings.get(username); }
+    public String getHeldFor() { return heldFor; }
+    public Date getHoldExpires() { return holdExpires; }
+    public boolean isOnShelf() { return borrower == null && heldFor == null; }
+
+    void setLoan(String borrower, Date dueDate) {
+        this.borrower = borrower;
+        this.dueDate = dueDate;
+    }
+
+    void setHold(String heldFor, Date holdExpires) {
+        this.heldFor = heldFor;
+        this.holdExpires = holdExpires;
+    }
+}
+
+class User implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private String username;
+    // A PasswordHasher hash, or plaintext for accounts not yet migrated
+    private String password;
+    private String fullName;
+    private String email;
+    private boolean isAdmin;
+    private boolean isActive;
+    // Replaced rather than modified, so readers never see it mid-change
+    private volatile List<String> borrowedBooks;
+
+    public User(String username, String password, String fullName, String email, boolean isAdmin) {
+        this.username = username;
+        this.password = password;
+        this.fullName = fullName;
+        this.email = email;
+        this.isAdmin = isAdmin;
+        this.isActive = true;
+        this.borrowedBooks = new ArrayList<>();
+    }
+
+    public String getUsername() { return username; }
+    public String getPassword() { return password; }
+    public String getFullName() { return fullName; }
+    public String getEmail() { return email; }
+    public boolean isAdmin() { return isAdmin; }
+    public boolean isActive() { return isActive; }
+    public List<String> getBorrowedBooks() { return Collections.unmodifiableList(borrowedBooks); }
+    
+    public void setPassword(String password) { this.password = password; }
+    public void setFullName(String fullName) { this.fullName = fullName; }
+    public void setEmail(String email) { this.email = email; }
+    public void setActive(boolean active) { isActive = active; }
     
-    public void setAvailable(boolean available) { isAvailable = available; }
-    public void setBorrower(String borrower) { this.borrower = borrower; }
-    public void setDueDate(Date dueDate) { this.dueDate = dueDate; }
+    public void addBorrowedBook(String bookId) {
+        List<String> next = new ArrayList<>(borrowedBooks);
+        next.add(bookId);
+        borrowedBooks = next;
+    }
 
-    public void addRating(String username, int rating) {
-        if (rating < 1 || rating > 5) return;
-        
-        Integer previousRating = userRatings.put(username, rating);
-        
-        if (previousRating != null) {
-            averageRating = (averageRating * ratingCount - previousRating + rating) / ratingCount;
+    public void removeBorrowedBook(String bookId) {
+        List<String> next = new ArrayList<>(borrowedBooks);
+        if (next.remove(bookId)) borrowedBooks = next;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s)", username, isAdmin ? "Admin" : "User");
+    }
+}
+
+// scrypt (RFC 7914) password hashing. Stored form is
+// scrypt$<log2 N>$<r>$<p>$<salt>$<hash> in unpadded base64; any other stored
+// value is a plaintext password saved before hashing was introduced.
+final class PasswordHasher {
+    private static final String PREFIX = "scrypt$";
+    private static final int LOG_N = Integer.getInteger("ewu.auth.scryptCost", 14);
+    private static final int R = 8;
+    private static final int P = 1;
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BYTES = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Base64.Encoder ENCODER = Base64.getEncoder().withoutPadding();
+    // Verified against when the username is unknown, so both cases cost the same
+    private static volatile String decoy;
+
+    private PasswordHasher() {}
+
+    static String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        byte[] hash = scrypt(password.getBytes(StandardCharsets.UTF_8), salt, 1 << LOG_N, R, P, HASH_BYTES);
+        return PREFIX + LOG_N + "$" + R + "$" + P + "$" + ENCODER.encodeToString(salt) + "$" + ENCODER.encodeToString(hash);
+    }
+
+    // Constant-time in the contents of the stored value; a null stored value
+    // still pays for a full hash
+    static boolean verify(String password, String stored) {
+        if (stored == null) {
+            if (decoy == null) decoy = hash("decoy");
+            verify(password, decoy);
+            return false;
+        }
+        byte[] candidate = password.getBytes(StandardCharsets.UTF_8);
+        if (!isHashed(stored)) return MessageDigest.isEqual(candidate, stored.getBytes(StandardCharsets.UTF_8));
+        String[] parts = stored.split("\\$");
+        if (parts.length != 6) return false;
+        try {
+            byte[] salt = Base64.getDecoder().decode(parts[4]);
+            byte[] expected = Base64.getDecoder().decode(parts[5]);
+            byte[] actual = scrypt(candidate, salt, 1 << Integer.parseInt(parts[1]),
+                    Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), expected.length);
+            return MessageDigest.isEqual(actual, expected);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    static boolean isHashed(String stored) {
+        return stored != null && stored.startsWith(PREFIX);
+    }
+
+    // Plaintext, or hashed with weaker parameters than the current ones
+    static boolean needsRehash(String stored) {
+        return !isHashed(stored) || !stored.startsWith(PREFIX + LOG_N + "$" + R + "$" + P + "$");
+    }
+
+    static byte[] scrypt(byte[] password, byte[] salt, int n, int r, int p, int length) {
+        if (n < 2 || (n & (n - 1)) != 0) throw new IllegalArgumentException("N must be a power of 2");
+        Mac mac;
+        try {
+            mac = Mac.getInstance("HmacSHA256");
+            // HMAC zero-pads keys, so an empty password is the same key as a single zero byte
+            mac.init(new SecretKeySpec(password.length == 0 ? new byte[1] : password, "HmacSHA256"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        int blockInts = 32 * r;
+        byte[] b = pbkdf2(mac, salt, p * blockInts * 4);
+        int[] x = new int[blockInts];
+        int[] y = new int[blockInts];
+        int[] v = new int[blockInts * n];
+        int[] scratch = new int[16];
+        for (int i = 0; i < p; i++) {
+            int offset = i * blockInts * 4;
+            for (int k = 0; k < blockInts; k++) {
+                int at = offset + k * 4;
+                x[k] = (b[at] & 0xff) | (b[at + 1] & 0xff) << 8 | (b[at + 2] & 0xff) << 16 | (b[at + 3] & 0xff) << 24;
+            }
+            for (int k = 0; k < n; k++) {
+                System.arraycopy(x, 0, v, k * blockInts, blockInts);
+                blockMix(x, y, scratch, r);
+            }
+            for (int k = 0; k < n; k++) {
+                int j = x[(2 * r - 1) * 16] & (n - 1);
+                for (int m = 0; m < blockInts; m++) x[m] ^= v[j * blockInts + m];
+                blockMix(x, y, scratch, r);
+            }
+            for (int k = 0; k < blockInts; k++) {
+                int at = offset + k * 4;
+                b[at] = (byte) x[k];
+                b[at + 1] = (byte) (x[k] >>> 8);
+                b[at + 2] = (byte) (x[k] >>> 16);
+                b[at + 3] = (byte) (x[k] >>> 24);
+            }
+        }
+        return pbkdf2(mac, b, length);
+    }
+
+    // PBKDF2-HMAC-SHA256 with a single iteration, as scrypt uses it
+    private static byte[] pbkdf2(Mac mac, byte[] salt, int length) {
+        byte[] out = new byte[length];
+        for (int block = 1, done = 0; done < length; block++) {
+            mac.update(salt);
+            mac.update(new byte[] {(byte) (block >>> 24), (byte) (block >>> 16), (byte) (block >>> 8), (byte) block});
+            byte[] t = mac.doFinal();
+            System.arraycopy(t, 0, out, done, Math.min(t.length, length - done));
+            done += t.length;
+        }
+        return out;
+    }
+
+    private static void blockMix(int[] b, int[] y, int[] x, int r) {
+        System.arraycopy(b, (2 * r - 1) * 16, x, 0, 16);
+        for (int i = 0; i < 2 * r; i++) {
+            for (int k = 0; k < 16; k++) x[k] ^= b[i * 16 + k];
+            salsa8(x);
+            // Even blocks go to the first half of the output, odd blocks to the second
+            System.arraycopy(x, 0, y, ((i & 1) * r + (i >>> 1)) * 16, 16);
+        }
+        System.arraycopy(y, 0, b, 0, 32 * r);
+    }
+
+    private static void salsa8(int[] b) {
+        int x0 = b[0], x1 = b[1], x2 = b[2], x3 = b[3], x4 = b[4], x5 = b[5], x6 = b[6], x7 = b[7];
+        int x8 = b[8], x9 = b[9], x10 = b[10], x11 = b[11], x12 = b[12], x13 = b[13], x14 = b[14], x15 = b[15];
+        for (int i = 0; i < 8; i += 2) {
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);   x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);  x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);    x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);  x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);  x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);  x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);  x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);  x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);    x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);   x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);    x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);   x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);  x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);  x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7); x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13); x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        b[0] += x0; b[1] += x1; b[2] += x2; b[3] += x3; b[4] += x4; b[5] += x5; b[6] += x6; b[7] += x7;
+        b[8] += x8; b[9] += x9; b[10] += x10; b[11] += x11; b[12] += x12; b[13] += x13; b[14] += x14; b[15] += x15;
+    }
+}
+
+class Journal implements Closeable {
+    static final byte REGISTER = 1;
+    static final byte ADD_BOOK = 2;
+    static final byte REMOVE_BOOK = 3;
+    static final byte BORROW = 4;
+    static final byte RETURN = 5;
+    static final byte RATE = 6;
+    static final byte UPDATE_USER = 7;
+    static final byte PLACE_HOLD = 8;
+    static final byte CANCEL_HOLD = 9;
+    static final byte PROMOTE_HOLD = 10;
+    static final byte ADD_COPY = 11;
+    static final byte REMOVE_COPY = 12;
+    static final byte RENEW = 13;
+
+    interface Handler {
+        void apply(long seq, byte type, Object[] fields);
+    }
+
+    // Appenders wait once this much is queued and not yet written
+    private static final int MAX_PENDING_BYTES = 16 << 20;
+
+    private final File file;
+    private final File rolledFile;
+    private final long commitDelayMillis;
+    private final LibraryMetrics metrics;
+    private final Consumer<IOException> onFailure;
+    // Held by whoever is writing a group to disk; the monitor only guards the queue
+    private final Object ioLock = new Object();
+    private final Thread writer;
+    private FileOutputStream out;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(4096);
+    private CompletableFuture<Void> group = new CompletableFuture<>();
+    private CompletableFuture<Void> inFlight;
+    private long seq;
+    private int recordsSinceRoll;
+    // Batches in progress; the writer leaves their records queued until the last one ends
+    private int openBatches;
+    // Appenders waiting for the queue to drain; close() writes their records before it returns
+    private int blockedAppenders;
+    private boolean closed;
+
+    // Records are queued by the appending thread and written by a writer thread in
+    // groups, one write and one sync per group. Each group's future completes when
+    // it is on disk. A commit delay holds each group open a little longer to gather more.
+    Journal(String fileName, long lastSeq, long commitDelayMillis, LibraryMetrics metrics,
+            Consumer<IOException> onFailure) throws IOException {
+        this.file = new File(fileName);
+        this.rolledFile = new File(fileName + ".old");
+        this.seq = lastSeq;
+        this.commitDelayMillis = Math.max(0, commitDelayMillis);
+        this.metrics = metrics;
+        this.onFailure = onFailure;
+        this.out = new FileOutputStream(file, true);
+        writer = new Thread(this::writeLoop, "library-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Queues one record: [length][crc32][seq][type][tagged fields]. Returns its size in bytes.
+    synchronized int append(byte type, Object... fields) throws IOException {
+        if (closed) throw new IOException("Journal is closed");
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+        DataOutputStream body = new DataOutputStream(buffer);
+        body.writeLong(seq + 1);
+        body.writeByte(type);
+        body.writeByte(fields.length);
+        for (Object field : fields) writeField(body, field);
+        byte[] payload = buffer.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if (pending.size() > MAX_PENDING_BYTES) {
+            // The writer may be holding a full queue back for an open batch
+            notifyAll();
+            blockedAppenders++;
+            try {
+                while (pending.size() > MAX_PENDING_BYTES && !closed) wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the journal writer");
+            } finally {
+                blockedAppenders--;
+                notifyAll();
+            }
+        }
+        // A close that began while this waited still writes the record; the caller's change is already made
+        int queued = pending.size();
+        DataOutputStream record = new DataOutputStream(pending);
+        record.writeInt(payload.length);
+        record.writeInt((int) crc.getValue());
+        record.write(payload);
+
+        seq++;
+        recordsSinceRoll++;
+        if (queued == 0 || queued <= MAX_PENDING_BYTES && pending.size() > MAX_PENDING_BYTES) notifyAll();
+        return payload.length + 8;
+    }
+
+    // Keeps what is appended from here to endBatch() in one group, unless the queue fills up
+    synchronized void beginBatch() {
+        openBatches++;
+    }
+
+    synchronized void endBatch() {
+        if (--openBatches == 0 && pending.size() > 0) notifyAll();
+    }
+
+    // Completes once every record appended so far is on disk
+    synchronized CompletableFuture<Void> whenDurable() {
+        if (pending.size() > 0) return group;
+        if (inFlight != null) return inFlight;
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private void writeLoop() {
+        while (true) {
+            synchronized (this) {
+                while ((pending.size() == 0 || openBatches > 0 && pending.size() <= MAX_PENDING_BYTES) && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) return;
+            }
+            if (commitDelayMillis > 0) {
+                try {
+                    Thread.sleep(commitDelayMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            try {
+                drain();
+            } catch (IOException e) {
+                onFailure.accept(e);
+            }
+        }
+    }
+
+    // Writes and syncs whatever is queued as one group
+    private void drain() throws IOException {
+        synchronized (ioLock) {
+            byte[] batch;
+            CompletableFuture<Void> done;
+            synchronized (this) {
+                if (pending.size() == 0) return;
+                batch = pending.toByteArray();
+                pending = new ByteArrayOutputStream(Math.min(batch.length, MAX_PENDING_BYTES) + 4096);
+                done = group;
+                group = new CompletableFuture<>();
+                inFlight = done;
+                notifyAll();
+            }
+            long start = System.nanoTime();
+            try {
+                out.write(batch);
+                out.getFD().sync();
+            } catch (IOException e) {
+                metrics.persistence("journal_commit").failed();
+                finish(done, e);
+                throw e;
+            }
+            metrics.persistence("journal_commit").record(System.nanoTime() - start, batch.length);
+            finish(done, null);
+        }
+    }
+
+    private void finish(CompletableFuture<Void> done, IOException failure) {
+        synchronized (this) {
+            if (inFlight == done) inFlight = null;
+        }
+        if (failure != null) done.completeExceptionally(failure);
+        else done.complete(null);
+    }
+
+    synchronized int recordsSinceRoll() { return recordsSinceRoll; }
+
+    synchronized long lastSeq() { return seq; }
+
+    // Moves the live journal aside so a snapshot can supersede it. Returns false
+    // while a previously rolled journal is still waiting for its snapshot.
+    // Called with the catalog write lock held, so nothing is appended meanwhile.
+    boolean roll() throws IOException {
+        synchronized (ioLock) {
+            if (rolledFile.exists()) return false;
+            drain();
+            out.close();
+            Files.move(file.toPath(), rolledFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            out = new FileOutputStream(file, true);
+            synchronized (this) {
+                recordsSinceRoll = 0;
+            }
+            return true;
+        }
+    }
+
+    void deleteRolled() {
+        rolledFile.delete();
+    }
+
+    boolean hasRolled() {
+        return rolledFile.exists();
+    }
+
+    // Writes whatever is still queued before closing
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+            synchronized (this) {
+                while (blockedAppenders > 0) wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (ioLock) {
+            drain();
+            out.close();
+        }
+    }
+
+    // Replays the rolled and live journals in order. A torn or corrupt tail on
+    // the live journal is truncated so new records append after the last good one.
+    static void replay(String fileName, Handler handler) throws IOException {
+        File rolled = new File(fileName + ".old");
+        if (rolled.exists()) replayFile(rolled, handler);
+        File live = new File(fileName);
+        if (live.exists()) {
+            long validLength = replayFile(live, handler);
+            if (validLength < live.length()) {
+                try (RandomAccessFile raf = new RandomAccessFile(live, "rw")) {
+                    raf.setLength(validLength);
+                }
+            }
+        }
+    }
+
+    private static long replayFile(File file, Handler handler) throws IOException {
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > (1 << 24)) break;
+                byte[] payload = new byte[length];
+                int expectedCrc;
+                try {
+                    expectedCrc = in.readInt();
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != expectedCrc) break;
+
+                DataInputStream body = new DataInputStream(new ByteArrayInputStream(payload));
+                long seq = body.readLong();
+                byte type = body.readByte();
+                Object[] fields = new Object[body.readUnsignedByte()];
+                for (int i = 0; i < fields.length; i++) fields[i] = readField(body);
+                handler.apply(seq, type, fields);
+                validLength += 8 + length;
+            }
+        }
+        return validLength;
+    }
+
+    static void writeField(DataOutputStream out, Object field) throws IOException {
+        if (field == null) {
+            out.writeByte('N');
+        } else if (field instanceof String) {
+            byte[] bytes = ((String) field).getBytes(StandardCharsets.UTF_8);
+            out.writeByte('S');
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (field instanceof Integer) {
+            out.writeByte('I');
+            out.writeInt((Integer) field);
+        } else if (field instanceof Long) {
+            out.writeByte('L');
+            out.writeLong((Long) field);
+        } else if (field instanceof Boolean) {
+            out.writeByte('Z');
+            out.writeBoolean((Boolean) field);
         } else {
-            averageRating = (averageRating * ratingCount + rating) / (ratingCount + 1);
-            ratingCount++;
+            throw new IllegalArgumentException("Unsupported journal field: " + field.getClass());
+        }
+    }
+
+    static Object readField(DataInputStream in) throws IOException {
+        switch (in.readByte()) {
+            case 'N': return null;
+            case 'S':
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            case 'I': return in.readInt();
+            case 'L': return in.readLong();
+            case 'Z': return in.readBoolean();
+            default: throw new IOException("Corrupt journal field");
+        }
+    }
+}
+
+// Append-only history of every change, kept for good in numbered segment files. Each
+// event carries its time and the book and patron it concerns. The live segment's
+// indexes are in memory; sealing a segment writes a sparse time index and a hashed
+// key index (book:<id>, user:<name>) beside it, so queries seek to the events they
+// need and stream them instead of reading the log into the heap.
+class HistoryLog implements Closeable {
+    static final String DIRECTORY = "EWULibraryManagementSystem.history";
+    private static final long SEGMENT_BYTES = Math.min(Integer.MAX_VALUE,
+            Long.getLong("ewu.history.segmentBytes", 64L << 20));
+    private static final int SYNC_EVERY = Integer.getInteger("ewu.history.syncEvery", 16);
+    private static final int TIME_INDEX_EVERY = 128;
+
+    static final class Event {
+        final long seq;
+        final long time;
+        final byte type;
+        final String bookId;
+        final String username;
+        final Object[] fields;
+
+        Event(long seq, long time, byte type, String bookId, String username, Object[] fields) {
+            this.seq = seq;
+            this.time = time;
+            this.type = type;
+            this.bookId = bookId;
+            this.username = username;
+            this.fields = fields;
+        }
+
+        String describe() {
+            switch (type) {
+                case Journal.BORROW: return "Borrowed " + fields[0] + " by " + username + ", due " + date(fields[2]);
+                case Journal.RETURN: return "Returned " + fields[0] + " by " + username;
+                case Journal.RENEW: return "Renewed " + fields[0] + " by " + username + ", due " + date(fields[1]);
+                case Journal.RATE: return "Rated " + bookId + " " + fields[2] + "/5 by " + username;
+                case Journal.PLACE_HOLD: return "Hold on " + bookId + " placed by " + username;
+                case Journal.CANCEL_HOLD: return "Hold on " + bookId + " cancelled by " + username;
+                case Journal.PROMOTE_HOLD:
+                    return username == null ? "Copy " + fields[0] + " back on the shelf"
+                            : "Copy " + fields[0] + " held for " + username + " until " + date(fields[2]);
+                case Journal.ADD_BOOK: return "Added " + bookId + " (" + fields[1] + ")";
+                case Journal.REMOVE_BOOK: return "Removed " + bookId;
+                case Journal.ADD_COPY: return "Added copy " + fields[1];
+                case Journal.REMOVE_COPY: return "Removed copy " + fields[0];
+                case Journal.REGISTER: return "Registered " + username;
+                case Journal.UPDATE_USER: return "Updated account " + username;
+                default: return "Event " + type;
+            }
+        }
+
+        private static String date(Object millis) {
+            return millis == null ? "-" : String.format("%tF", new Date((Long) millis));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%tF %<tR  %s", new Date(time), describe());
+        }
+    }
+
+    // Growable, ascending list of record offsets
+    private static final class Offsets {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+    }
+
+    private static final class Segment {
+        final File file;
+        final long firstSeq;
+        long lastSeq;
+        long length;
+        int records;
+        long firstTime = Long.MAX_VALUE;
+        long lastTime = Long.MIN_VALUE;
+        // Time of every TIME_INDEX_EVERY-th record and where it starts
+        long[] markTimes = new long[16];
+        int[] markOffsets = new int[16];
+        int markCount;
+        // Only while the segment is live; sealed segments keep their keys on disk
+        Map<String, Offsets> keys = new HashMap<>();
+
+        Segment(File file, long firstSeq) {
+            this.file = file;
+            this.firstSeq = firstSeq;
+            this.lastSeq = firstSeq - 1;
+        }
+
+        void index(int offset, long seq, long time, String bookId, String username) {
+            if (records++ % TIME_INDEX_EVERY == 0) {
+                if (markCount == markTimes.length) {
+                    markTimes = Arrays.copyOf(markTimes, markCount * 2);
+                    markOffsets = Arrays.copyOf(markOffsets, markCount * 2);
+                }
+                markTimes[markCount] = time;
+                markOffsets[markCount++] = offset;
+            }
+            if (firstTime == Long.MAX_VALUE) firstTime = time;
+            lastTime = time;
+            lastSeq = seq;
+            if (bookId != null) keys.computeIfAbsent("book:" + bookId, k -> new Offsets()).add(offset);
+            if (username != null) keys.computeIfAbsent("user:" + username, k -> new Offsets()).add(offset);
+        }
+
+        // Offset of a record at or before the first one at or after the given time
+        int startOffset(long from) {
+            int lo = 0, hi = markCount - 1, start = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (markTimes[mid] < from) {
+                    start = markOffsets[mid];
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return start;
+        }
+
+        File sidecar(String suffix) {
+            return new File(file.getPath().replace(".log", suffix));
+        }
+    }
+
+    private final File directory;
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment live;
+    private DataOutputStream out;
+    private FileOutputStream liveFile;
+    private long seq;
+    private long lastTime = Long.MIN_VALUE;
+    private int unsynced;
+    private boolean closed;
+
+    private HistoryLog(File directory) {
+        this.directory = directory;
+    }
+
+    // -Dewu.history=off disables the history; any other value names its directory
+    static HistoryLog configured() {
+        String directory = System.getProperty("ewu.history", DIRECTORY);
+        if ("off".equals(directory)) return null;
+        try {
+            return open(new File(directory));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Sealed segments are opened from their sidecars; the live one (or one whose
+    // sidecars were never written) is scanned, and a torn tail is truncated
+    static HistoryLog open(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create " + directory);
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".log"));
+        Arrays.sort(files);
+        HistoryLog log = new HistoryLog(directory);
+        for (int i = 0; i < files.length; i++) {
+            Segment segment = new Segment(files[i], Long.parseLong(files[i].getName().replace(".log", "")));
+            boolean last = i == files.length - 1;
+            if (last || !readSidecars(segment)) {
+                scan(segment);
+                if (!last) seal(segment);
+            }
+            log.segments.add(segment);
+            log.seq = Math.max(log.seq, segment.lastSeq);
+            if (segment.records > 0) log.lastTime = Math.max(log.lastTime, segment.lastTime);
+        }
+        if (log.segments.isEmpty()) log.segments.add(new Segment(segmentFile(directory, 1), 1));
+        log.live = log.segments.get(log.segments.size() - 1);
+        log.openLive();
+        return log;
+    }
+
+    private static File segmentFile(File directory, long firstSeq) {
+        return new File(directory, String.format("%020d.log", firstSeq));
+    }
+
+    private void openLive() throws IOException {
+        liveFile = new FileOutputStream(live.file, true);
+        out = new DataOutputStream(new BufferedOutputStream(liveFile, 1 << 16));
+    }
+
+    synchronized boolean isEmpty() {
+        return seq == 0;
+    }
+
+    // Times never go backwards, so a simulated or adjusted clock cannot break the time index.
+    // Returns the bytes appended, or -1 if the event could not be written.
+    synchronized int append(long time, byte type, String bookId, String username, Object... fields) {
+        if (closed) return -1;
+        try {
+            time = Math.max(time, lastTime);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(96);
+            DataOutputStream body = new DataOutputStream(buffer);
+            body.writeLong(seq + 1);
+            body.writeLong(time);
+            body.writeByte(type);
+            Journal.writeField(body, bookId);
+            Journal.writeField(body, username);
+            body.writeByte(fields.length);
+            for (Object field : fields) Journal.writeField(body, field);
+            byte[] payload = buffer.toByteArray();
+
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            int offset = (int) live.length;
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+            live.length += 8 + payload.length;
+            seq++;
+            lastTime = time;
+            unsynced++;
+            live.index(offset, seq, time, bookId, username);
+            if (live.length >= SEGMENT_BYTES) roll();
+            return payload.length + 8;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    // Hands buffered events to the OS, syncing every SYNC_EVERY events
+    synchronized void flush() {
+        if (closed) return;
+        try {
+            out.flush();
+            if (unsynced >= SYNC_EVERY) sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void sync() throws IOException {
+        out.flush();
+        liveFile.getFD().sync();
+        unsynced = 0;
+    }
+
+    private void roll() throws IOException {
+        sync();
+        out.close();
+        seal(live);
+        live = new Segment(segmentFile(directory, seq + 1), seq + 1);
+        segments.add(live);
+        openLive();
+    }
+
+    // Events in [from, to), oldest first
+    void scan(long from, long to, Consumer<Event> action) throws IOException {
+        for (Segment segment : overlapping(from, to)) {
+            long end;
+            int start;
+            // Flushed in the same section that reads the length, so the file holds everything up to end
+            synchronized (this) {
+                out.flush();
+                end = segment.length;
+                start = segment.startOffset(from);
+            }
+            try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+                channel.position(start);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+                for (long position = start; position < end; ) {
+                    byte[] payload = new byte[in.readInt()];
+                    in.readInt();
+                    in.readFully(payload);
+                    position += 8 + payload.length;
+                    Event event = decode(payload);
+                    if (event.time >= to) return;
+                    if (event.time >= from) action.accept(event);
+                }
+            }
+        }
+    }
+
+    // Events in [from, to) for one key, "book:<id>" or "user:<name>", oldest first
+    void scan(String key, long from, long to, Consumer<Event> action) throws IOException {
+        for (Segment segment : overlapping(from, to)) {
+            int[] offsets;
+            synchronized (this) {
+                out.flush();
+                Offsets live = segment.keys != null ? segment.keys.get(key) : null;
+                offsets = live == null ? null : Arrays.copyOf(live.values, live.size);
+            }
+            if (segment.keys == null) offsets = readKey(segment, key);
+            if (offsets == null) continue;
+            try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(8);
+                for (int i = 0; i < offsets.length; i++) {
+                    header.clear();
+                    readFully(channel, header, offsets[i]);
+                    ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+                    readFully(channel, payload, offsets[i] + 8L);
+                    Event event = decode(payload.array());
+                    if (event.time >= to) return;
+                    if (event.time >= from) action.accept(event);
+                }
+            }
+        }
+    }
+
+    // Every event in order, as the records that produced them
+    void replay(Journal.Handler handler) throws IOException {
+        scan(Long.MIN_VALUE, Long.MAX_VALUE, event -> handler.apply(event.seq, event.type, event.fields));
+    }
+
+    private synchronized List<Segment> overlapping(long from, long to) {
+        List<Segment> result = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.records > 0 && segment.lastTime >= from && segment.firstTime < to) result.add(segment);
+        }
+        return result;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+        }
+    }
+
+    private static Event decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long seq = in.readLong();
+        long time = in.readLong();
+        byte type = in.readByte();
+        String bookId = (String) Journal.readField(in);
+        String username = (String) Journal.readField(in);
+        Object[] fields = new Object[in.readUnsignedByte()];
+        for (int i = 0; i < fields.length; i++) fields[i] = Journal.readField(in);
+        return new Event(seq, time, type, bookId, username, fields);
+    }
+
+    // Rebuilds a segment's indexes from its records, dropping a torn or corrupt tail
+    private static void scan(Segment segment) throws IOException {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 1 << 16))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 0 || length > SEGMENT_BYTES) break;
+                byte[] payload = new byte[length];
+                int expected;
+                try {
+                    expected = in.readInt();
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != expected) break;
+                Event event = decode(payload);
+                segment.index((int) valid, event.seq, event.time, event.bookId, event.username);
+                valid += 8 + length;
+            }
+        }
+        segment.length = valid;
+        if (valid < segment.file.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(segment.file, "rw")) {
+                raf.setLength(valid);
+            }
+        }
+    }
+
+    // .time: [lastSeq][records][firstTime][lastTime][marks][(time, offset) * marks]
+    // .keys: [entries][(hash, position) * entries sorted by hash], then at each
+    //        position [key][count][offset * count]
+    private static void seal(Segment segment) throws IOException {
+        File time = segment.sidecar(".time");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(time + ".tmp")))) {
+            out.writeLong(segment.lastSeq);
+            out.writeInt(segment.records);
+            out.writeLong(segment.firstTime);
+            out.writeLong(segment.lastTime);
+            out.writeInt(segment.markCount);
+            for (int i = 0; i < segment.markCount; i++) {
+                out.writeLong(segment.markTimes[i]);
+                out.writeInt(segment.markOffsets[i]);
+            }
+        }
+
+        List<String> keys = new ArrayList<>(segment.keys.keySet());
+        keys.sort(Comparator.comparingLong(HistoryLog::hash).thenComparing(Comparator.naturalOrder()));
+        ByteArrayOutputStream postings = new ByteArrayOutputStream();
+        DataOutputStream postingsOut = new DataOutputStream(postings);
+        long base = 4 + 16L * keys.size();
+        File keyFile = segment.sidecar(".keys");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(keyFile + ".tmp")))) {
+            out.writeInt(keys.size());
+            for (String key : keys) {
+                Offsets offsets = segment.keys.get(key);
+                out.writeLong(hash(key));
+                out.writeLong(base + postingsOut.size());
+                postingsOut.writeUTF(key);
+                postingsOut.writeInt(offsets.size);
+                for (int i = 0; i < offsets.size; i++) postingsOut.writeInt(offsets.values[i]);
+            }
+            postings.writeTo(out);
+        }
+        Files.move(Paths.get(keyFile + ".tmp"), keyFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        // The time sidecar goes last: its presence marks the segment as sealed
+        Files.move(Paths.get(time + ".tmp"), time.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        segment.keys = null;
+    }
+
+    private static boolean readSidecars(Segment segment) throws IOException {
+        File time = segment.sidecar(".time");
+        if (!time.exists() || !segment.sidecar(".keys").exists()) return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(time)))) {
+            segment.lastSeq = in.readLong();
+            segment.records = in.readInt();
+            segment.firstTime = in.readLong();
+            segment.lastTime = in.readLong();
+            segment.markCount = in.readInt();
+            segment.markTimes = new long[segment.markCount];
+            segment.markOffsets = new int[segment.markCount];
+            for (int i = 0; i < segment.markCount; i++) {
+                segment.markTimes[i] = in.readLong();
+                segment.markOffsets[i] = in.readInt();
+            }
+        }
+        segment.length = segment.file.length();
+        segment.keys = null;
+        return true;
+    }
+
+    // Binary search over the sorted hashes, then a check of the key itself
+    private static int[] readKey(Segment segment, String key) throws IOException {
+        long hash = hash(key);
+        try (RandomAccessFile raf = new RandomAccessFile(segment.sidecar(".keys"), "r")) {
+            int entries = raf.readInt();
+            int lo = 0, hi = entries - 1, first = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                raf.seek(4 + 16L * mid);
+                long midHash = raf.readLong();
+                if (midHash < hash) {
+                    lo = mid + 1;
+                } else {
+                    if (midHash == hash) first = mid;
+                    hi = mid - 1;
+                }
+            }
+            for (int i = first; i >= 0 && i < entries; i++) {
+                raf.seek(4 + 16L * i);
+                if (raf.readLong() != hash) break;
+                raf.seek(raf.readLong());
+                if (!raf.readUTF().equals(key)) continue;
+                byte[] bytes = new byte[raf.readInt() * 4];
+                raf.readFully(bytes);
+                int[] offsets = new int[bytes.length / 4];
+                ByteBuffer.wrap(bytes).asIntBuffer().get(offsets);
+                return offsets;
+            }
+        }
+        return null;
+    }
+
+    // 64-bit FNV-1a
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            sync();
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+// Book id to doc id for the indexes, without a boxed Integer and map entry per
+// book: open addressing over parallel key and value arrays. Not thread safe.
+final class DocIds {
+    private String[] keys = new String[16];
+    private int[] values = new int[16];
+    private int size;
+
+    int size() { return size; }
+
+    boolean containsKey(String key) { return get(key) >= 0; }
+
+    // -1 if absent
+    int get(String key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(key)) return values[i];
+        }
+        return -1;
+    }
+
+    void put(String key, int value) {
+        if ((size + 1) * 4 > keys.length * 3) resize(keys.length * 2);
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(key)) {
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    // Returns the removed doc id, or -1 if absent
+    int remove(String key) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (keys[i] != null && !keys[i].equals(key)) i = (i + 1) & mask;
+        if (keys[i] == null) return -1;
+        int removed = values[i];
+        // Pull later entries of the probe run back so no lookup stops early at the hole
+        int hole = i;
+        for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+            if (((j - slot(keys[j], mask)) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = null;
+        size--;
+        return removed;
+    }
+
+    void clear() {
+        keys = new String[16];
+        values = new int[16];
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        String[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new String[capacity];
+        values = new int[capacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private static int slot(String key, int mask) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
+
+class SearchIndex {
+    private static final char FIELD_SEPARATOR = '\u0001';
+    // -Dewu.search.cacheEntries=0 turns the result cache off
+    private static final int CACHE_ENTRIES = Integer.getInteger("ewu.search.cacheEntries", 1024);
+    // Total books across cached results, so a few huge result lists can't pin the heap
+    private static final long CACHE_BOOKS = Long.getLong("ewu.search.cacheBooks", 1L << 20);
+    private static final long CACHE_TTL_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("ewu.search.cacheSeconds", 600));
+
+    private final List<Book> docs = new ArrayList<>();
+    private final List<String> texts = new ArrayList<>();
+    private final DocIds docIds = new DocIds();
+    private final Postings postings = new Postings();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private int liveCount;
+    // Recent results by lowercased query, least recently used first. Guarded by its own
+    // monitor; results are cached under the read lock and dropped under the write lock,
+    // so a cached result never predates a change that affects it.
+    private final LinkedHashMap<String, CachedResult> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBooks;
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder cacheEvictions = new LongAdder();
+    private final LongAdder cacheInvalidations = new LongAdder();
+
+    // Growable, ascending list of doc ids
+    private static final class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size > 0 && values[size - 1] == value) return;
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        boolean contains(int value) {
+            return Arrays.binarySearch(values, 0, size, value) >= 0;
+        }
+    }
+
+    // Posting lists by packed trigram, open-addressed like DocIds. A HashMap<Long, ...>
+    // boxes every probe, and Long.hashCode folds the packed chars onto each other, so
+    // grams pile into a few tree bins.
+    private static final class Postings {
+        private static final long EMPTY = -1;
+
+        private long[] grams = newGrams(1024);
+        private IntList[] lists = new IntList[1024];
+        private int size;
+
+        IntList get(long gram) {
+            int mask = grams.length - 1;
+            for (int i = slot(gram, mask); grams[i] != EMPTY; i = (i + 1) & mask) {
+                if (grams[i] == gram) return lists[i];
+            }
+            return null;
+        }
+
+        // The gram's list, added empty if it has none yet
+        IntList list(long gram) {
+            if ((size + 1) * 4 > grams.length * 3) resize(grams.length * 2);
+            int mask = grams.length - 1;
+            int i = slot(gram, mask);
+            for (; grams[i] != EMPTY; i = (i + 1) & mask) {
+                if (grams[i] == gram) return lists[i];
+            }
+            grams[i] = gram;
+            size++;
+            return lists[i] = new IntList();
+        }
+
+        void clear() {
+            grams = newGrams(1024);
+            lists = new IntList[1024];
+            size = 0;
+        }
+
+        private void resize(int capacity) {
+            long[] oldGrams = grams;
+            IntList[] oldLists = lists;
+            grams = newGrams(capacity);
+            lists = new IntList[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldGrams.length; j++) {
+                if (oldGrams[j] == EMPTY) continue;
+                int i = slot(oldGrams[j], mask);
+                while (grams[i] != EMPTY) i = (i + 1) & mask;
+                grams[i] = oldGrams[j];
+                lists[i] = oldLists[j];
+            }
+        }
+
+        private static long[] newGrams(int capacity) {
+            long[] grams = new long[capacity];
+            Arrays.fill(grams, EMPTY);
+            return grams;
+        }
+
+        private static int slot(long gram, int mask) {
+            long h = gram * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32) & mask;
+        }
+    }
+
+    private static final class CachedResult {
+        final String[] terms;
+        final List<Book> books;
+        final long expires;
+
+        CachedResult(String[] terms, List<Book> books, long expires) {
+            this.terms = terms;
+            this.books = books;
+            this.expires = expires;
+        }
+    }
+
+    SearchIndex(Collection<Book> books) {
+        for (Book book : books) add(book);
+    }
+
+    void add(Book book) {
+        lock.writeLock().lock();
+        try {
+            String text = index(book);
+            if (text != null) invalidate(text);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Returns the book's text, or null if it was already indexed
+    private String index(Book book) {
+        if (docIds.containsKey(book.getId())) return null;
+        int doc = docs.size();
+        String text = book.getTitle().toLowerCase() + FIELD_SEPARATOR
+                + book.getAuthor().toLowerCase() + FIELD_SEPARATOR
+                + book.getGenre().toLowerCase() + FIELD_SEPARATOR
+                + book.getId().toLowerCase();
+        docs.add(book);
+        texts.add(text);
+        docIds.put(book.getId(), doc);
+        liveCount++;
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            long gram = trigram(text, i);
+            if (gram >= 0) postings.list(gram).add(doc);
+        }
+        return text;
+    }
+
+    void remove(Book book) {
+        lock.writeLock().lock();
+        try {
+            int doc = docIds.remove(book.getId());
+            if (doc < 0) return;
+            invalidate(texts.get(doc));
+            docs.set(doc, null);
+            texts.set(doc, null);
+            liveCount--;
+            // Removed docs stay in the posting lists until tombstones outnumber live docs
+            if (docs.size() > 1024 && liveCount < docs.size() / 2) compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void compact() {
+        List<Book> live = new ArrayList<>(liveCount);
+        for (Book book : docs) if (book != null) live.add(book);
+        docs.clear();
+        texts.clear();
+        docIds.clear();
+        postings.clear();
+        liveCount = 0;
+        // Same books, same results: the cache stays
+        for (Book book : live) index(book);
+    }
+
+    // Drops the cached results that a book with this text is, or would be, part of
+    private void invalidate(String text) {
+        synchronized (cache) {
+            Iterator<CachedResult> entries = cache.values().iterator();
+            while (entries.hasNext()) {
+                CachedResult entry = entries.next();
+                if (matches(text, entry.terms)) {
+                    entries.remove();
+                    cachedBooks -= entry.books.size();
+                    cacheInvalidations.increment();
+                }
+            }
+        }
+    }
+
+    private static boolean matches(String text, String[] terms) {
+        for (String term : terms) {
+            if (text.indexOf(term) < 0) return false;
+        }
+        return true;
+    }
+
+    private List<Book> cached(String lcQuery) {
+        synchronized (cache) {
+            CachedResult entry = cache.get(lcQuery);
+            if (entry != null && entry.expires - System.nanoTime() > 0) {
+                cacheHits.increment();
+                return entry.books;
+            }
+            if (entry != null) {
+                cache.remove(lcQuery);
+                cachedBooks -= entry.books.size();
+                cacheEvictions.increment();
+            }
+            cacheMisses.increment();
+            return null;
+        }
+    }
+
+    // Called with the read lock held, so no writer can slip in between the search and this
+    private void cache(String lcQuery, String[] terms, List<Book> results) {
+        if (CACHE_ENTRIES <= 0 || results.size() > CACHE_BOOKS) return;
+        synchronized (cache) {
+            CachedResult previous = cache.put(lcQuery, new CachedResult(terms, results, System.nanoTime() + CACHE_TTL_NANOS));
+            if (previous != null) cachedBooks -= previous.books.size();
+            cachedBooks += results.size();
+            Iterator<CachedResult> eldest = cache.values().iterator();
+            while (cache.size() > CACHE_ENTRIES || cachedBooks > CACHE_BOOKS) {
+                cachedBooks -= eldest.next().books.size();
+                eldest.remove();
+                cacheEvictions.increment();
+            }
+        }
+    }
+
+    long cacheHits() { return cacheHits.sum(); }
+    long cacheMisses() { return cacheMisses.sum(); }
+    long cacheEvictions() { return cacheEvictions.sum(); }
+    long cacheInvalidations() { return cacheInvalidations.sum(); }
+
+    int cacheSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    // Every whitespace-separated term must occur as a substring of the title,
+    // author, genre or id. A query without whitespace therefore matches exactly what
+    // the old linear contains() scan did. Results are ranked by relevance and
+    // fall back to catalog order on ties. Repeated queries come from the cache.
+    List<Book> search(String query) {
+        String lcQuery = query.toLowerCase();
+        String[] terms = lcQuery.trim().split("\\s+");
+        if (terms.length == 1 && terms[0].isEmpty()) terms = new String[] { lcQuery };
+        // Listing everything is not a search anyone repeats for its result
+        List<Book> results = lcQuery.isEmpty() ? null : cached(lcQuery);
+        if (results != null) return results;
+        lock.readLock().lock();
+        try {
+            if (lcQuery.isEmpty()) {
+                List<Book> all = new ArrayList<>(liveCount);
+                for (Book book : docs) if (book != null) all.add(book);
+                return all;
+            }
+            results = Collections.unmodifiableList(find(lcQuery, terms));
+            cache(lcQuery, terms, results);
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Called with the read lock held
+    private List<Book> find(String lcQuery, String[] terms) {
+        List<IntList> lists = new ArrayList<>();
+        for (String term : terms) {
+            for (int i = 0; i + 3 <= term.length(); i++) {
+                long gram = trigram(term, i);
+                IntList list = gram < 0 ? null : postings.get(gram);
+                if (list == null) return new ArrayList<>();
+                lists.add(list);
+            }
+        }
+        lists.sort(Comparator.comparingInt(l -> l.size));
+
+        List<int[]> scored = new ArrayList<>();
+        if (lists.isEmpty()) {
+            for (int doc = 0; doc < docs.size(); doc++) score(doc, lcQuery, terms, scored);
+        } else {
+            IntList smallest = lists.get(0);
+            candidates:
+            for (int i = 0; i < smallest.size; i++) {
+                int doc = smallest.values[i];
+                for (int j = 1; j < lists.size(); j++) {
+                    if (!lists.get(j).contains(doc)) continue candidates;
+                }
+                score(doc, lcQuery, terms, scored);
+            }
+        }
+        scored.sort((a, b) -> a[1] != b[1] ? Integer.compare(b[1], a[1]) : Integer.compare(a[0], b[0]));
+
+        List<Book> results = new ArrayList<>(scored.size());
+        for (int[] hit : scored) results.add(docs.get(hit[0]));
+        return results;
+    }
+
+    private void score(int doc, String phrase, String[] terms, List<int[]> scored) {
+        String text = texts.get(doc);
+        if (text == null) return;
+        int titleEnd = text.indexOf(FIELD_SEPARATOR);
+        int score = text.contains(phrase) ? 100 : 0;
+        for (String term : terms) {
+            int at = text.indexOf(term);
+            if (at < 0) return;
+            if (at < titleEnd) score += 10;
+            for (; at >= 0; at = text.indexOf(term, at + 1)) {
+                if (at == 0 || !Character.isLetterOrDigit(text.charAt(at - 1))) {
+                    score += 5;
+                    int end = at + term.length();
+                    if (end == text.length() || !Character.isLetterOrDigit(text.charAt(end))) score += 3;
+                    break;
+                }
+            }
+        }
+        scored.add(new int[] { doc, score });
+    }
+
+    // Packs three chars into a key; -1 for grams that span a field boundary
+    private static long trigram(String s, int i) {
+        char a = s.charAt(i), b = s.charAt(i + 1), c = s.charAt(i + 2);
+        if (a == FIELD_SEPARATOR || b == FIELD_SEPARATOR || c == FIELD_SEPARATOR) return -1;
+        return ((long) a << 32) | ((long) b << 16) | c;
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return liveCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
+
+// Roaring-style set of non-negative ints. Values are grouped by their high 16 bits;
+// a group is a sorted char[] while it holds at most 4096 values and a 1024-word
+// bitmap beyond that, so sparse sets stay small and dense ones intersect word by word.
+// Sets returned by and/or may share groups with their inputs and are read-only.
+class PostingSet {
+    private static final int ARRAY_LIMIT = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    private char[] keys = new char[4];
+    private Chunk[] chunks = new Chunk[4];
+    private int chunkCount;
+    private int size;
+
+    private static final class Chunk {
+        char[] values;
+        long[] bits;
+        int cardinality;
+
+        Chunk() {
+            values = new char[4];
+        }
+
+        boolean contains(char low) {
+            if (bits != null) return (bits[low >>> 6] & (1L << low)) != 0;
+            return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+        }
+
+        boolean add(char low) {
+            if (bits != null) {
+                if ((bits[low >>> 6] & (1L << low)) != 0) return false;
+                bits[low >>> 6] |= 1L << low;
+                cardinality++;
+                return true;
+            }
+            int at = Arrays.binarySearch(values, 0, cardinality, low);
+            if (at >= 0) return false;
+            if (cardinality == ARRAY_LIMIT) {
+                toBitmap();
+                return add(low);
+            }
+            at = -at - 1;
+            if (cardinality == values.length) values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, cardinality * 2));
+            System.arraycopy(values, at, values, at + 1, cardinality - at);
+            values[at] = low;
+            cardinality++;
+            return true;
+        }
+
+        boolean remove(char low) {
+            if (bits != null) {
+                if ((bits[low >>> 6] & (1L << low)) == 0) return false;
+                bits[low >>> 6] &= ~(1L << low);
+                // Converting back only well below the limit keeps a chunk from flipping on every change
+                if (--cardinality <= ARRAY_LIMIT / 2) toArray();
+                return true;
+            }
+            int at = Arrays.binarySearch(values, 0, cardinality, low);
+            if (at < 0) return false;
+            System.arraycopy(values, at + 1, values, at, cardinality - at - 1);
+            cardinality--;
+            return true;
+        }
+
+        private void toBitmap() {
+            bits = new long[BITMAP_WORDS];
+            for (int i = 0; i < cardinality; i++) bits[values[i] >>> 6] |= 1L << values[i];
+            values = null;
+        }
+
+        private void toArray() {
+            values = new char[Math.max(4, cardinality)];
+            int n = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                for (long word = bits[w]; word != 0; word &= word - 1) {
+                    values[n++] = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+                }
+            }
+            bits = null;
+        }
+
+        Chunk and(Chunk other) {
+            Chunk result = new Chunk();
+            if (bits != null && other.bits != null) {
+                long[] words = new long[BITMAP_WORDS];
+                int n = 0;
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    words[w] = bits[w] & other.bits[w];
+                    n += Long.bitCount(words[w]);
+                }
+                result.bits = words;
+                result.cardinality = n;
+                if (n <= ARRAY_LIMIT) result.toArray();
+                return result;
+            }
+            if (bits != null) return other.and(this);
+            char[] out = new char[Math.max(4, cardinality)];
+            int n = 0;
+            if (other.bits != null) {
+                for (int i = 0; i < cardinality; i++) {
+                    if (other.contains(values[i])) out[n++] = values[i];
+                }
+            } else {
+                for (int i = 0, j = 0; i < cardinality && j < other.cardinality; ) {
+                    if (values[i] < other.values[j]) i++;
+                    else if (values[i] > other.values[j]) j++;
+                    else {
+                        out[n++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            result.values = out;
+            result.cardinality = n;
+            return result;
+        }
+
+        int andCardinality(Chunk other) {
+            int n = 0;
+            if (bits != null && other.bits != null) {
+                for (int w = 0; w < BITMAP_WORDS; w++) n += Long.bitCount(bits[w] & other.bits[w]);
+            } else if (bits != null) {
+                return other.andCardinality(this);
+            } else if (other.bits != null) {
+                for (int i = 0; i < cardinality; i++) n += (int) (other.bits[values[i] >>> 6] >>> values[i]) & 1;
+            } else {
+                for (int i = 0, j = 0; i < cardinality && j < other.cardinality; ) {
+                    if (values[i] < other.values[j]) i++;
+                    else if (values[i] > other.values[j]) j++;
+                    else {
+                        n++;
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            return n;
+        }
+
+        Chunk or(Chunk other) {
+            Chunk result = new Chunk();
+            if (bits != null || other.bits != null) {
+                long[] words = new long[BITMAP_WORDS];
+                orInto(words);
+                other.orInto(words);
+                int n = 0;
+                for (long word : words) n += Long.bitCount(word);
+                result.bits = words;
+                result.cardinality = n;
+                return result;
+            }
+            char[] out = new char[cardinality + other.cardinality];
+            int n = 0, i = 0, j = 0;
+            while (i < cardinality && j < other.cardinality) {
+                if (values[i] < other.values[j]) out[n++] = values[i++];
+                else if (values[i] > other.values[j]) out[n++] = other.values[j++];
+                else {
+                    out[n++] = values[i++];
+                    j++;
+                }
+            }
+            while (i < cardinality) out[n++] = values[i++];
+            while (j < other.cardinality) out[n++] = other.values[j++];
+            result.values = out;
+            result.cardinality = n;
+            if (n > ARRAY_LIMIT) result.toBitmap();
+            return result;
+        }
+
+        Chunk dense() {
+            if (bits != null) return this;
+            Chunk result = new Chunk();
+            result.values = values;
+            result.cardinality = cardinality;
+            result.toBitmap();
+            return result;
+        }
+
+        private void orInto(long[] words) {
+            if (bits != null) {
+                for (int w = 0; w < BITMAP_WORDS; w++) words[w] |= bits[w];
+            } else {
+                for (int i = 0; i < cardinality; i++) words[values[i] >>> 6] |= 1L << values[i];
+            }
+        }
+
+        void forEach(int high, IntConsumer action) {
+            int base = high << 16;
+            if (bits == null) {
+                for (int i = 0; i < cardinality; i++) action.accept(base | values[i]);
+                return;
+            }
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                for (long word = bits[w]; word != 0; word &= word - 1) {
+                    action.accept(base | (w * 64 + Long.numberOfTrailingZeros(word)));
+                }
+            }
+        }
+    }
+
+    boolean add(int value) {
+        char high = (char) (value >>> 16);
+        int at = find(high);
+        if (at < 0) {
+            at = -at - 1;
+            insert(at, high, new Chunk());
+        }
+        if (!chunks[at].add((char) value)) return false;
+        size++;
+        return true;
+    }
+
+    boolean remove(int value) {
+        int at = find((char) (value >>> 16));
+        if (at < 0 || !chunks[at].remove((char) value)) return false;
+        size--;
+        if (chunks[at].cardinality == 0) {
+            System.arraycopy(keys, at + 1, keys, at, chunkCount - at - 1);
+            System.arraycopy(chunks, at + 1, chunks, at, chunkCount - at - 1);
+            chunks[--chunkCount] = null;
+        }
+        return true;
+    }
+
+    boolean contains(int value) {
+        int at = find((char) (value >>> 16));
+        return at >= 0 && chunks[at].contains((char) value);
+    }
+
+    int size() {
+        return size;
+    }
+
+    PostingSet and(PostingSet other) {
+        PostingSet result = new PostingSet();
+        for (int i = 0, j = 0; i < chunkCount && j < other.chunkCount; ) {
+            if (keys[i] < other.keys[j]) i++;
+            else if (keys[i] > other.keys[j]) j++;
+            else {
+                Chunk chunk = chunks[i++].and(other.chunks[j++]);
+                if (chunk.cardinality > 0) result.append(keys[i - 1], chunk);
+            }
+        }
+        return result;
+    }
+
+    int andCardinality(PostingSet other) {
+        int n = 0;
+        for (int i = 0, j = 0; i < chunkCount && j < other.chunkCount; ) {
+            if (keys[i] < other.keys[j]) i++;
+            else if (keys[i] > other.keys[j]) j++;
+            else n += chunks[i++].andCardinality(other.chunks[j++]);
+        }
+        return n;
+    }
+
+    PostingSet or(PostingSet other) {
+        PostingSet result = new PostingSet();
+        int i = 0, j = 0;
+        while (i < chunkCount && j < other.chunkCount) {
+            if (keys[i] < other.keys[j]) {
+                result.append(keys[i], chunks[i++]);
+            } else if (keys[i] > other.keys[j]) {
+                result.append(other.keys[j], other.chunks[j++]);
+            } else {
+                result.append(keys[i], chunks[i++].or(other.chunks[j++]));
+            }
+        }
+        while (i < chunkCount) result.append(keys[i], chunks[i++]);
+        while (j < other.chunkCount) result.append(other.keys[j], other.chunks[j++]);
+        return result;
+    }
+
+    // The same set with every group as a bitmap, for intersecting one set against many
+    PostingSet dense() {
+        PostingSet result = new PostingSet();
+        for (int i = 0; i < chunkCount; i++) result.append(keys[i], chunks[i].dense());
+        return result;
+    }
+
+    // Ascending order
+    void forEach(IntConsumer action) {
+        for (int i = 0; i < chunkCount; i++) chunks[i].forEach(keys[i], action);
+    }
+
+    private int find(char high) {
+        return Arrays.binarySearch(keys, 0, chunkCount, high);
+    }
+
+    private void insert(int at, char high, Chunk chunk) {
+        if (chunkCount == keys.length) {
+            keys = Arrays.copyOf(keys, chunkCount * 2);
+            chunks = Arrays.copyOf(chunks, chunkCount * 2);
+        }
+        System.arraycopy(keys, at, keys, at + 1, chunkCount - at);
+        System.arraycopy(chunks, at, chunks, at + 1, chunkCount - at);
+        keys[at] = high;
+        chunks[at] = chunk;
+        chunkCount++;
+    }
+
+    private void append(char high, Chunk chunk) {
+        insert(chunkCount, high, chunk);
+        size += chunk.cardinality;
+    }
+}
+
+// Genre, author, year and availability facets over the catalog. Every facet value
+// keeps a posting set of doc ids, so filtered results and per-value counts are set
+// intersections, and the counts for an unfiltered catalog are just the set sizes.
+// Availability changes on every borrow and return, so it is an atomic bit per doc
+// flipped under the read lock; queries rebuild its two posting sets after a change.
+class FacetIndex {
+    enum Field {
+        GENRE("Genre"), AUTHOR("Author"), YEAR("Year"), AVAILABILITY("Availability");
+
+        final String label;
+
+        Field(String label) {
+            this.label = label;
+        }
+    }
+
+    static final String AVAILABLE = "Available";
+    static final String UNAVAILABLE = "Checked Out";
+
+    private final List<Book> docs = new ArrayList<>();
+    private final DocIds docIds = new DocIds();
+    private final Map<Field, Map<String, PostingSet>> postings = new EnumMap<>(Field.class);
+    private PostingSet live = new PostingSet();
+    private AtomicLongArray available = new AtomicLongArray(16);
+    private final AtomicLong availabilityChanges = new AtomicLong();
+    private volatile AvailabilityView availabilityView;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private static final class AvailabilityView {
+        final long changes;
+        final Map<String, PostingSet> values;
+
+        AvailabilityView(long changes, Map<String, PostingSet> values) {
+            this.changes = changes;
+            this.values = values;
+        }
+    }
+
+    FacetIndex(Collection<Book> books) {
+        for (Field field : Field.values()) postings.put(field, new HashMap<>());
+        for (Book book : books) add(book);
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return docIds.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void add(Book book) {
+        lock.writeLock().lock();
+        try {
+            if (docIds.containsKey(book.getId())) return;
+            int doc = docs.size();
+            docs.add(book);
+            docIds.put(book.getId(), doc);
+            live.add(doc);
+            for (Field field : Field.values()) {
+                if (field == Field.AVAILABILITY) continue;
+                postings.get(field).computeIfAbsent(value(book, field), k -> new PostingSet()).add(doc);
+            }
+            if ((doc >>> 6) >= available.length()) {
+                AtomicLongArray grown = new AtomicLongArray(available.length() * 2);
+                for (int i = 0; i < available.length(); i++) grown.set(i, available.get(i));
+                available = grown;
+            }
+            setAvailable(doc, book.isAvailable());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(Book book) {
+        lock.writeLock().lock();
+        try {
+            int doc = docIds.remove(book.getId());
+            if (doc < 0) return;
+            docs.set(doc, null);
+            live.remove(doc);
+            unpost(Field.GENRE, book.getGenre(), doc);
+            unpost(Field.AUTHOR, book.getAuthor(), doc);
+            unpost(Field.YEAR, String.valueOf(book.getPublicationYear()), doc);
+            setAvailable(doc, false);
+            // Doc ids are not reused until tombstones outnumber live docs
+            if (docs.size() > 1024 && live.size() < docs.size() / 2) compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Called after anything that can change whether a copy is on the shelf. The read
+    // lock only keeps doc ids from being compacted away; updates to different books
+    // run side by side.
+    void updateAvailability(Book book) {
+        lock.readLock().lock();
+        try {
+            int doc = docIds.get(book.getId());
+            if (doc >= 0) setAvailable(doc, book.isAvailable());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void setAvailable(int doc, boolean on) {
+        int word = doc >>> 6;
+        long bit = 1L << doc;
+        for (;;) {
+            long old = available.get(word);
+            long now = on ? old | bit : old & ~bit;
+            if (old == now) return;
+            if (available.compareAndSet(word, old, now)) break;
+        }
+        // Counted after the flip, so a view built from an older count is always rebuilt
+        availabilityChanges.incrementAndGet();
+    }
+
+    // Caller holds the read lock, so live docs are fixed while the bits may still flip
+    private Map<String, PostingSet> availabilityPostings() {
+        long changes = availabilityChanges.get();
+        AvailabilityView view = availabilityView;
+        if (view != null && view.changes == changes) return view.values;
+        PostingSet on = new PostingSet();
+        PostingSet off = new PostingSet();
+        AtomicLongArray bits = available;
+        live.forEach(doc -> ((bits.get(doc >>> 6) & (1L << doc)) != 0 ? on : off).add(doc));
+        Map<String, PostingSet> values = new HashMap<>();
+        if (on.size() > 0) values.put(AVAILABLE, on);
+        if (off.size() > 0) values.put(UNAVAILABLE, off);
+        availabilityView = new AvailabilityView(changes, values);
+        return values;
+    }
+
+    private Map<String, PostingSet> postings(Field field) {
+        return field == Field.AVAILABILITY ? availabilityPostings() : postings.get(field);
+    }
+
+    private boolean unpost(Field field, String value, int doc) {
+        PostingSet set = postings.get(field).get(value);
+        if (set == null || !set.remove(doc)) return false;
+        if (set.size() == 0) postings.get(field).remove(value);
+        return true;
+    }
+
+    private void compact() {
+        List<Book> remaining = new ArrayList<>(live.size());
+        live.forEach(doc -> remaining.add(docs.get(doc)));
+        docs.clear();
+        docIds.clear();
+        live = new PostingSet();
+        available = new AtomicLongArray(16);
+        availabilityChanges.incrementAndGet();
+        for (Map<String, PostingSet> values : postings.values()) values.clear();
+        for (Book book : remaining) add(book);
+    }
+
+    // Values selected within a field are OR'ed and the fields AND'ed. Results are in catalog order.
+    List<Book> filter(Map<Field, Set<String>> selection) {
+        lock.readLock().lock();
+        try {
+            PostingSet matches = matching(selection, null);
+            if (matches == null) matches = live;
+            List<Book> results = new ArrayList<>(matches.size());
+            matches.forEach(doc -> results.add(docs.get(doc)));
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Counts for every value of the field among books matching the other fields'
+    // selections, so picking one genre still shows what a second would add. Largest first.
+    Map<String, Integer> counts(Field field, Map<Field, Set<String>> selection) {
+        lock.readLock().lock();
+        try {
+            PostingSet base = matching(selection, field);
+            Map<String, PostingSet> values = postings(field);
+            List<Map.Entry<String, Integer>> counts = new ArrayList<>();
+            if (base != null && base.size() < values.size()) {
+                // Fewer hits than values (authors, usually): tally the hits instead
+                Map<String, Integer> tally = new HashMap<>();
+                base.forEach(doc -> tally.merge(value(docs.get(doc), field), 1, Integer::sum));
+                counts.addAll(tally.entrySet());
+            } else {
+                if (base != null) base = base.dense();
+                for (Map.Entry<String, PostingSet> entry : values.entrySet()) {
+                    int count = base == null ? entry.getValue().size() : base.andCardinality(entry.getValue());
+                    if (count > 0) counts.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), count));
+                }
+            }
+            counts.sort((a, b) -> !a.getValue().equals(b.getValue())
+                    ? Integer.compare(b.getValue(), a.getValue()) : a.getKey().compareTo(b.getKey()));
+            Map<String, Integer> result = new LinkedHashMap<>();
+            for (Map.Entry<String, Integer> entry : counts) result.put(entry.getKey(), entry.getValue());
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Null when nothing outside the skipped field is selected
+    private PostingSet matching(Map<Field, Set<String>> selection, Field skip) {
+        PostingSet result = null;
+        for (Map.Entry<Field, Set<String>> entry : selection.entrySet()) {
+            if (entry.getKey() == skip || entry.getValue().isEmpty()) continue;
+            PostingSet union = new PostingSet();
+            for (String value : entry.getValue()) {
+                PostingSet set = postings(entry.getKey()).get(value);
+                if (set != null) union = union.size() == 0 ? set : union.or(set);
+            }
+            result = result == null ? union : result.and(union);
+        }
+        return result;
+    }
+
+    private static String value(Book book, Field field) {
+        switch (field) {
+            case GENRE: return book.getGenre();
+            case AUTHOR: return book.getAuthor();
+            case YEAR: return String.valueOf(book.getPublicationYear());
+            default: return book.isAvailable() ? AVAILABLE : UNAVAILABLE;
+        }
+    }
+}
+
+// Versioned binary snapshot. All multi-byte values are big-endian.
+//
+//   int     magic 'EWUL'
+//   short   version
+//   long    journal sequence covered by the snapshot
+//   int     dictionary size, then per entry: string
+//   int     book count, then per book:
+//           string id, string title, int author ref, int genre ref, int year,
+//           int borrower ref (-1 = none), long due date millis (-1 = none),     (v1-2)
+//           int rating count, then per rating: int user ref, byte rating,
+//           int hold ref (-1 = none), long hold expiry millis,                  (v2)
+//           int waitlist size, then per waiting patron: int user ref            (v2+)
+//           int copy count, then per copy: string copy id, int borrower ref,
+//           long due date millis, int hold ref, long hold expiry millis         (v3+)
+//   int     user count, then per user:
+//           string username, string password, string full name, string email,
+//           byte flags (1 = admin, 2 = active), int borrowed count, then per loan: string copy id
+//
+// Strings are an int byte length followed by UTF-8. Authors, genres and the
+// usernames that appear on loans and ratings are dictionary-encoded, so each
+// distinct value is stored and loaded as a single shared String instance.
+class SnapshotCodec {
+    static final int MAGIC = 0x4557554C;
+    static final short VERSION = 3;
+
+    static final class Snapshot {
+        final List<Book> books;
+        final List<User> users;
+        final long journalSeq;
+        final Map<String, List<String>> waitlists;
+
+        Snapshot(List<Book> books, List<User> users, long journalSeq, Map<String, List<String>> waitlists) {
+            this.books = books;
+            this.users = users;
+            this.journalSeq = journalSeq;
+            this.waitlists = waitlists;
+        }
+    }
+
+    static byte[] encode(List<Book> books, List<User> users, long journalSeq, HoldQueues holds) throws IOException {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        Map<String, List<String>> waitlists = new HashMap<>();
+        for (Book book : books) {
+            List<String> waiting = holds.waiting(book.getId());
+            if (!waiting.isEmpty()) waitlists.put(book.getId(), waiting);
+            for (String username : waiting) dictionary.putIfAbsent(username, dictionary.size());
+            dictionary.putIfAbsent(book.getAuthor(), dictionary.size());
+            dictionary.putIfAbsent(book.getGenre(), dictionary.size());
+            for (BookCopy copy : book.getCopies()) {
+                if (copy.getBorrower() != null) dictionary.putIfAbsent(copy.getBorrower(), dictionary.size());
+                if (copy.getHeldFor() != null) dictionary.putIfAbsent(copy.getHeldFor(), dictionary.size());
+            }
+            for (int entry : book.getRatingEntries()) {
+                dictionary.putIfAbsent(UserIds.name(RatingVotes.user(entry)), dictionary.size());
+            }
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 + books.size() * 64 + users.size() * 64);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(journalSeq);
+
+        out.writeInt(dictionary.size());
+        for (String value : dictionary.keySet()) writeString(out, value);
+
+        out.writeInt(books.size());
+        for (Book book : books) {
+            writeString(out, book.getId());
+            writeString(out, book.getTitle());
+            out.writeInt(dictionary.get(book.getAuthor()));
+            out.writeInt(dictionary.get(book.getGenre()));
+            out.writeInt(book.getPublicationYear());
+            int[] ratings = book.getRatingEntries();
+            out.writeInt(ratings.length);
+            for (int entry : ratings) {
+                out.writeInt(dictionary.get(UserIds.name(RatingVotes.user(entry))));
+                out.writeByte(RatingVotes.vote(entry));
+            }
+            List<String> waiting = waitlists.getOrDefault(book.getId(), Collections.emptyList());
+            out.writeInt(waiting.size());
+            for (String username : waiting) out.writeInt(dictionary.get(username));
+            List<BookCopy> copies = book.getCopies();
+            out.writeInt(copies.size());
+            for (BookCopy copy : copies) {
+                writeString(out, copy.getId());
+                out.writeInt(copy.getBorrower() == null ? -1 : dictionary.get(copy.getBorrower()));
+                out.writeLong(copy.getDueDate() == null ? -1 : copy.getDueDate().getTime());
+                out.writeInt(copy.getHeldFor() == null ? -1 : dictionary.get(copy.getHeldFor()));
+                out.writeLong(copy.getHoldExpires() == null ? -1 : copy.getHoldExpires().getTime());
+            }
+        }
+
+        out.writeInt(users.size());
+        for (User user : users) {
+            writeString(out, user.getUsername());
+            writeString(out, user.getPassword());
+            writeString(out, user.getFullName());
+            writeString(out, user.getEmail());
+            out.writeByte((user.isAdmin() ? 1 : 0) | (user.isActive() ? 2 : 0));
+            List<String> borrowed = user.getBorrowedBooks();
+            out.writeInt(borrowed.size());
+            for (String bookId : borrowed) writeString(out, bookId);
+        }
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    static Snapshot decode(byte[] image) throws IOException {
+        try {
+            return decode(ByteBuffer.wrap(image));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Corrupt snapshot", e);
+        }
+    }
+
+    // Maps the file read-only and decodes straight from the mapped buffer
+    static Snapshot decode(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                return decode(in);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IOException("Corrupt snapshot " + file, e);
+            }
+        }
+    }
+
+    private static Snapshot decode(ByteBuffer in) throws IOException {
+        if (in.getInt() != MAGIC) throw new IOException("Not a library snapshot");
+        short version = in.getShort();
+        if (version < 1 || version > VERSION) throw new IOException("Unsupported snapshot version " + version);
+        long journalSeq = in.getLong();
+
+        String[] dictionary = new String[in.getInt()];
+        for (int i = 0; i < dictionary.length; i++) dictionary[i] = readString(in);
+        // Rater user ids, resolved once per dictionary entry
+        int[] userIds = new int[dictionary.length];
+        Arrays.fill(userIds, -1);
+
+        int bookCount = in.getInt();
+        List<Book> books = new ArrayList<>(bookCount);
+        Map<String, List<String>> waitlists = new HashMap<>();
+        for (int i = 0; i < bookCount; i++) {
+            Book book = new Book(readString(in), readString(in), dictionary[in.getInt()],
+                    dictionary[in.getInt()], in.getInt(), version >= 3 ? 0 : 1);
+            if (version < 3) {
+                // Older snapshots describe exactly one copy, whose id is the title's
+                BookCopy copy = book.getCopies().get(0);
+                int borrower = in.getInt();
+                long due = in.getLong();
+                if (borrower >= 0) book.checkOut(copy, dictionary[borrower], due < 0 ? null : new Date(due));
+            }
+            int ratingCount = in.getInt();
+            for (int r = 0; r < ratingCount; r++) {
+                int rater = in.getInt();
+                if (userIds[rater] < 0) userIds[rater] = UserIds.of(dictionary[rater]);
+                book.addRating(userIds[rater], in.get());
+            }
+            if (version == 2) {
+                int holder = in.getInt();
+                long expires = in.getLong();
+                if (holder >= 0) book.hold(book.getCopies().get(0), dictionary[holder], new Date(expires));
+            }
+            if (version >= 2) {
+                int waiting = in.getInt();
+                if (waiting > 0) {
+                    List<String> waitlist = new ArrayList<>(waiting);
+                    for (int w = 0; w < waiting; w++) waitlist.add(dictionary[in.getInt()]);
+                    waitlists.put(book.getId(), waitlist);
+                }
+            }
+            if (version >= 3) {
+                int copies = in.getInt();
+                for (int c = 0; c < copies; c++) {
+                    BookCopy copy = book.addCopy(readString(in));
+                    int borrower = in.getInt();
+                    long due = in.getLong();
+                    int holder = in.getInt();
+                    long expires = in.getLong();
+                    if (borrower >= 0) book.checkOut(copy, dictionary[borrower], due < 0 ? null : new Date(due));
+                    if (holder >= 0) book.hold(copy, dictionary[holder], new Date(expires));
+                }
+            }
+            books.add(book);
+        }
+
+        int userCount = in.getInt();
+        List<User> users = new ArrayList<>(userCount);
+        for (int i = 0; i < userCount; i++) {
+            String username = readString(in);
+            String password = readString(in);
+            String fullName = readString(in);
+            String email = readString(in);
+            int flags = in.get();
+            User user = new User(username, password, fullName, email, (flags & 1) != 0);
+            user.setActive((flags & 2) != 0);
+            int borrowed = in.getInt();
+            for (int b = 0; b < borrowed; b++) user.addBorrowedBook(readString(in));
+            users.add(user);
+        }
+        return new Snapshot(books, users, journalSeq, waitlists);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) return null;
+        if (in.hasArray()) {
+            String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return value;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+// One shared instance per distinct author and genre, however many titles use it
+final class CatalogStrings {
+    private static final Map<String, String> canonical = new ConcurrentHashMap<>();
+
+    private CatalogStrings() {}
+
+    static String of(String value) {
+        if (value == null) return null;
+        String existing = canonical.putIfAbsent(value, value);
+        return existing != null ? existing : value;
+    }
+}
+
+// Dense int ids for usernames, shared by every rating table in the process so
+// a vote is stored as an int rather than a String key
+final class UserIds {
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[64];
+    private static int next;
+
+    private UserIds() {}
+
+    static int of(String username) {
+        Integer id = ids.get(username);
+        return id != null ? id : assign(username);
+    }
+
+    // -1 if the username has never rated anything
+    static int find(String username) {
+        Integer id = ids.get(username);
+        return id != null ? id : -1;
+    }
+
+    static String name(int id) {
+        return names[id];
+    }
+
+    private static synchronized int assign(String username) {
+        Integer id = ids.get(username);
+        if (id != null) return id;
+        if (next == names.length) names = Arrays.copyOf(names, next * 2);
+        names[next] = username;
+        ids.put(username, next);
+        return next++;
+    }
+}
+
+// One title's votes in a single open-addressed int array, each slot packed as
+// (user id + 1) << 3 | vote. Writers hold the title's stripe; readers see either
+// the old or the new array and never a half-written entry.
+class RatingVotes {
+    private static final int[] EMPTY = new int[0];
+
+    private volatile int[] table = EMPTY;
+    private volatile int size;
+
+    static int user(int entry) { return (entry >>> 3) - 1; }
+    static int vote(int entry) { return entry & 7; }
+
+    // Previous vote, or 0 if this user had not voted
+    int put(int userId, int vote) {
+        int[] t = table;
+        if ((size + 1) * 4 > t.length * 3) t = resize(t);
+        int key = userId + 1;
+        int mask = t.length - 1;
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            int entry = t[i];
+            if (entry == 0) {
+                t[i] = key << 3 | vote;
+                size++;
+                table = t;
+                return 0;
+            }
+            if (entry >>> 3 == key) {
+                t[i] = key << 3 | vote;
+                table = t;
+                return entry & 7;
+            }
+        }
+    }
+
+    int get(int userId) {
+        int[] t = table;
+        if (t.length == 0) return 0;
+        int key = userId + 1;
+        int mask = t.length - 1;
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            int entry = t[i];
+            if (entry == 0) return 0;
+            if (entry >>> 3 == key) return entry & 7;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int[] entries() {
+        int[] t = table;
+        int[] entries = new int[size];
+        int n = 0;
+        for (int entry : t) {
+            if (entry != 0 && n < entries.length) entries[n++] = entry;
+        }
+        return n == entries.length ? entries : Arrays.copyOf(entries, n);
+    }
+
+    private int[] resize(int[] old) {
+        int[] t = new int[Math.max(4, old.length * 2)];
+        int mask = t.length - 1;
+        for (int entry : old) {
+            if (entry == 0) continue;
+            int i = mix(entry >>> 3) & mask;
+            while (t[i] != 0) i = (i + 1) & mask;
+            t[i] = entry;
+        }
+        return t;
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+// Titles ordered by average rating and by number of ratings, kept current as
+// votes arrive so top-N queries walk the head of a skip list instead of
+// sorting the catalog. Callers hold the title's stripe when updating it.
+class RatingRanking {
+    private static final class Entry {
+        final Book book;
+        final double average;
+        final int count;
+
+        Entry(Book book) {
+            this.book = book;
+            this.average = book.getAverageRating();
+            this.count = book.getRatingCount();
+        }
+    }
+
+    private static final Comparator<Entry> BY_AVERAGE = Comparator.<Entry>comparingDouble(e -> -e.average)
+            .thenComparingInt(e -> -e.count).thenComparing(e -> e.book.getId());
+    private static final Comparator<Entry> BY_COUNT = Comparator.<Entry>comparingInt(e -> -e.count)
+            .thenComparingDouble(e -> -e.average).thenComparing(e -> e.book.getId());
+
+    private final ConcurrentSkipListSet<Entry> byAverage = new ConcurrentSkipListSet<>(BY_AVERAGE);
+    private final ConcurrentSkipListSet<Entry> byCount = new ConcurrentSkipListSet<>(BY_COUNT);
+    private final Map<String, Entry> current = new ConcurrentHashMap<>();
+
+    void update(Book book) {
+        Entry entry = new Entry(book);
+        Entry previous = entry.count > 0 ? current.put(book.getId(), entry) : current.remove(book.getId());
+        if (previous != null) {
+            byAverage.remove(previous);
+            byCount.remove(previous);
+        }
+        if (entry.count > 0) {
+            byAverage.add(entry);
+            byCount.add(entry);
+        }
+    }
+
+    void remove(Book book) {
+        Entry previous = current.remove(book.getId());
+        if (previous != null) {
+            byAverage.remove(previous);
+            byCount.remove(previous);
+        }
+    }
+
+    List<Book> highestRated(int limit) {
+        return head(byAverage, limit);
+    }
+
+    List<Book> mostRated(int limit) {
+        return head(byCount, limit);
+    }
+
+    private static List<Book> head(NavigableSet<Entry> ranked, int limit) {
+        List<Book> top = new ArrayList<>(Math.min(limit, 64));
+        for (Entry entry : ranked) {
+            if (top.size() >= limit) break;
+            top.add(entry.book);
+        }
+        return top;
+    }
+}
+
+// "Patrons who liked this also liked": item-item cosine similarity over the rating
+// matrix, each vote taken as its distance from the middle of the scale so a
+// one-star vote pulls two titles apart. Titles and patrons are sparse int vectors
+// packed like RatingVotes entries, and a title keeps only its closest NEIGHBORS,
+// on the Book itself, so lookups read a short array and take no lock.
+//
+// A vote changes only the pairs that include its title, so the refresh thread
+// recomputes that title's row and patches the title into the lists of every title
+// it shares a patron with. A full list recomputes only when one of its entries
+// drops, since a title below the cut may now belong in it. The first build and
+// large batches of rows run on the common fork-join pool.
+//
+// Patrons with more than MAX_PATRON_RATINGS votes are left out of the dot products
+// (not the norms): they say little about any one pair, and each of their votes
+// would touch every title they rated.
+class RecommendationIndex {
+    static final int NEIGHBORS = Integer.getInteger("ewu.recommend.neighbors", 20);
+    static final int MAX_PATRON_RATINGS = Integer.getInteger("ewu.recommend.maxRatingsPerPatron", 1000);
+    private static final int MIDPOINT = 3;
+    // Damps similarities that rest on only a few shared patrons
+    private static final double SHRINK = 5;
+    private static final int PARALLEL_ROWS = 64;
+    private static final long REFRESH_DELAY_MILLIS = Long.getLong("ewu.recommend.refreshDelayMillis", 50);
+    private static final int[] NO_VOTES = new int[0];
+    private static final Rated NO_RATINGS = new Rated(new Book[0], NO_VOTES, 0);
+
+    // Best first
+    static final class Neighbors {
+        final Book[] books;
+        final int[] docs;
+        final float[] scores;
+
+        Neighbors(Book[] books, int[] docs, float[] scores) {
+            this.books = books;
+            this.docs = docs;
+            this.scores = scores;
+        }
+
+        int indexOf(int doc) {
+            for (int i = 0; i < docs.length; i++) {
+                if (docs[i] == doc) return i;
+            }
+            return -1;
+        }
+    }
+
+    // One patron's votes, entries packed doc << 3 | vote. A new vote goes into the spare
+    // capacity past size and a changed one is overwritten in place, then a new Rated is
+    // published; readers holding the old one never look past its size. Removal copies.
+    private static final class Rated {
+        final Book[] books;
+        final int[] entries;
+        final int size;
+
+        Rated(Book[] books, int[] entries, int size) {
+            this.books = books;
+            this.entries = entries;
+            this.size = size;
+        }
+    }
+
+    private static final class Change {
+        final Book book;
+        // -1 when the title left the catalog
+        final int userId;
+
+        Change(Book book, int userId) {
+            this.book = book;
+            this.userId = userId;
+        }
+    }
+
+    // A title whose row is being refreshed, and the patrons who stopped counting toward
+    // its similarities, whose other titles may have lost it
+    private static final class Refresh {
+        final Book book;
+        final boolean removed;
+        final Set<Integer> users = new HashSet<>();
+
+        Refresh(Book book, boolean removed) {
+            this.book = book;
+            this.removed = removed;
+        }
+    }
+
+    // Per-thread accumulators indexed by doc, cleared after every row
+    private static final class Scratch {
+        int[] dot = NO_VOTES;
+        int[] shared = NO_VOTES;
+        int[] touched = NO_VOTES;
+        float[] sims = new float[0];
+        final int[] heap = new int[NEIGHBORS];
+
+        void ensure(int docs) {
+            if (dot.length >= docs) return;
+            int capacity = Math.max(docs, dot.length * 2);
+            dot = new int[capacity];
+            shared = new int[capacity];
+            touched = new int[capacity];
+            sims = new float[capacity];
+        }
+    }
+
+    // A lookup's candidates in the order found, with slot mapping doc to position + 1;
+    // slot is cleared as the candidates are read
+    private static final class Candidates {
+        int[] slot = NO_VOTES;
+        int[] docs = NO_VOTES;
+        Book[] books = new Book[0];
+        float[] scores = new float[0];
+
+        void ensure(int docCount) {
+            if (slot.length >= docCount) return;
+            int capacity = Math.max(docCount, slot.length * 2);
+            slot = Arrays.copyOf(slot, capacity);
+            docs = Arrays.copyOf(docs, capacity);
+            books = Arrays.copyOf(books, capacity);
+            scores = Arrays.copyOf(scores, capacity);
+        }
+    }
+
+    private final BlockingQueue<Change> changes = new LinkedBlockingQueue<>();
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+    private final ThreadLocal<Candidates> candidates = ThreadLocal.withInitial(Candidates::new);
+    private final Thread worker;
+    // The first build counts as one change
+    private final AtomicLong submitted = new AtomicLong(1);
+    private long applied;
+    private int awaiting;
+    private final LongAdder rowsComputed = new LongAdder();
+
+    // Owned by the worker
+    private final DocIds docIds = new DocIds();
+    private Book[] books = new Book[16];
+    private int[][] votes = new int[16][];
+    private double[] norms = new double[16];
+    private int docCount;
+    // Written by the worker only; grown by replacement
+    private volatile AtomicReferenceArray<Rated> byUser = new AtomicReferenceArray<>(64);
+
+    RecommendationIndex(List<Book> catalog) {
+        worker = new Thread(() -> run(catalog), "library-recommend");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // Callers hold the title's stripe, so changes to one title arrive in order
+    void rated(Book book, int userId) {
+        submit(new Change(book, userId));
+    }
+
+    void removed(Book book) {
+        submit(new Change(book, -1));
+    }
+
+    List<Book> similar(Book book, int limit, Predicate<Book> include) {
+        Neighbors neighbors = book.getNeighbors();
+        if (neighbors == null || limit <= 0) return Collections.emptyList();
+        List<Book> similar = new ArrayList<>(Math.min(limit, neighbors.books.length));
+        for (Book other : neighbors.books) {
+            if (similar.size() >= limit) break;
+            if (include.test(other)) similar.add(other);
+        }
+        return similar;
+    }
+
+    // The neighbors of everything the patron rated, weighted by how far above or below
+    // the middle they rated it, less what they have already rated
+    List<Book> recommend(String username, int limit, Predicate<Book> include) {
+        int userId = UserIds.find(username);
+        AtomicReferenceArray<Rated> users = byUser;
+        Rated rated = userId >= 0 && userId < users.length() ? users.get(userId) : null;
+        if (rated == null || limit <= 0) return Collections.emptyList();
+        Candidates c = candidates.get();
+        int touched = 0;
+        for (int i = 0; i < rated.size; i++) {
+            int weight = (rated.entries[i] & 7) - MIDPOINT;
+            Neighbors neighbors = rated.books[i].getNeighbors();
+            if (weight == 0 || neighbors == null) continue;
+            for (int j = 0; j < neighbors.docs.length; j++) {
+                int doc = neighbors.docs[j];
+                c.ensure(doc + 1);
+                int at = c.slot[doc] - 1;
+                if (at < 0) {
+                    at = touched++;
+                    c.slot[doc] = touched;
+                    c.docs[at] = doc;
+                    c.books[at] = neighbors.books[j];
+                    c.scores[at] = 0;
+                }
+                c.scores[at] += weight * neighbors.scores[j];
+            }
+        }
+        for (int i = 0; i < rated.size; i++) {
+            int doc = rated.entries[i] >>> 3;
+            if (doc < c.slot.length && c.slot[doc] > 0) c.scores[c.slot[doc] - 1] = 0;
+        }
+        // Insertion into the best few, asking include only of titles that would make the cut
+        Book[] best = new Book[Math.min(limit, touched)];
+        float[] bestScores = new float[best.length];
+        int size = 0;
+        for (int i = 0; i < touched; i++) {
+            float score = c.scores[i];
+            Book book = c.books[i];
+            c.slot[c.docs[i]] = 0;
+            c.books[i] = null;
+            if (score <= 0 || size == best.length && score <= bestScores[size - 1] || !include.test(book)) continue;
+            int at = size < best.length ? size++ : size - 1;
+            for (; at > 0 && bestScores[at - 1] < score; at--) {
+                best[at] = best[at - 1];
+                bestScores[at] = bestScores[at - 1];
+            }
+            best[at] = book;
+            bestScores[at] = score;
+        }
+        return new ArrayList<>(Arrays.asList(best).subList(0, size));
+    }
+
+    // Blocks until every change submitted so far is reflected in the lists
+    void awaitCurrent() throws InterruptedException {
+        long target = submitted.get();
+        synchronized (this) {
+            awaiting++;
+            notifyAll();
+            try {
+                while (applied < target) wait();
+            } finally {
+                awaiting--;
+            }
+        }
+    }
+
+    int pending() {
+        return changes.size();
+    }
+
+    long rowsComputed() {
+        return rowsComputed.sum();
+    }
+
+    void close() {
+        worker.interrupt();
+    }
+
+    private void submit(Change change) {
+        submitted.incrementAndGet();
+        changes.add(change);
+    }
+
+    private void run(List<Book> catalog) {
+        try {
+            try {
+                build(catalog);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            applied(1);
+            List<Change> batch = new ArrayList<>();
+            while (true) {
+                batch.add(changes.take());
+                // Let a burst of ratings gather into one batch, unless someone is waiting
+                synchronized (this) {
+                    if (awaiting == 0 && REFRESH_DELAY_MILLIS > 0) wait(REFRESH_DELAY_MILLIS);
+                }
+                changes.drainTo(batch);
+                try {
+                    apply(batch);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                applied(batch.size());
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private synchronized void applied(int count) {
+        applied += count;
+        notifyAll();
+    }
+
+    private void build(List<Book> catalog) {
+        int[] counts = new int[64];
+        for (Book book : catalog) {
+            int[] entries = book.getRatingEntries();
+            if (entries.length == 0) continue;
+            int doc = docFor(book);
+            votes[doc] = entries;
+            norms[doc] = norm(entries);
+            for (int entry : entries) {
+                int user = RatingVotes.user(entry);
+                if (user >= counts.length) counts = Arrays.copyOf(counts, Math.max(user + 1, counts.length * 2));
+                counts[user]++;
+            }
+        }
+        Book[][] ratedBooks = new Book[counts.length][];
+        int[][] ratedEntries = new int[counts.length][];
+        int[] filled = new int[counts.length];
+        for (int doc = 0; doc < docCount; doc++) {
+            for (int entry : votes[doc]) {
+                int user = RatingVotes.user(entry);
+                if (ratedBooks[user] == null) {
+                    ratedBooks[user] = new Book[counts[user]];
+                    ratedEntries[user] = new int[counts[user]];
+                }
+                ratedBooks[user][filled[user]] = books[doc];
+                ratedEntries[user][filled[user]++] = doc << 3 | RatingVotes.vote(entry);
+            }
+        }
+        AtomicReferenceArray<Rated> users = new AtomicReferenceArray<>(counts.length);
+        for (int user = 0; user < counts.length; user++) {
+            if (ratedBooks[user] != null) users.set(user, new Rated(ratedBooks[user], ratedEntries[user], counts[user]));
+        }
+        byUser = users;
+        recompute(IntStream.range(0, docCount).toArray());
+    }
+
+    private void apply(List<Change> batch) {
+        // Every vector first, so each row below sees the whole batch
+        Map<Integer, Refresh> refreshes = new LinkedHashMap<>();
+        Set<Integer> stale = new LinkedHashSet<>();
+        for (Change change : batch) {
+            Book book = change.book;
+            if (change.userId < 0) {
+                int doc = docIds.get(book.getId());
+                if (doc < 0 || books[doc] != book) continue;
+                Refresh refresh = refreshes.computeIfAbsent(doc, d -> new Refresh(book, true));
+                for (int entry : votes[doc]) {
+                    setVote(RatingVotes.user(entry), doc, book, 0, true, stale);
+                    refresh.users.add(RatingVotes.user(entry));
+                }
+                votes[doc] = NO_VOTES;
+                norms[doc] = 0;
+                books[doc] = null;
+                docIds.remove(book.getId());
+                book.setNeighbors(null);
+            } else {
+                int doc = docFor(book);
+                boolean voted = false;
+                for (int entry : votes[doc]) voted |= RatingVotes.user(entry) == change.userId;
+                votes[doc] = book.getRatingEntries();
+                norms[doc] = norm(votes[doc]);
+                int vote = book.getVote(change.userId);
+                int previous = setVote(change.userId, doc, book, vote, voted, stale);
+                Refresh refresh = refreshes.computeIfAbsent(doc, d -> new Refresh(book, false));
+                if (previous != 0 && previous != MIDPOINT && (vote == 0 || vote == MIDPOINT)) refresh.users.add(change.userId);
+            }
+        }
+        Scratch s = scratch.get();
+        for (Map.Entry<Integer, Refresh> entry : refreshes.entrySet()) {
+            int doc = entry.getKey();
+            Refresh refresh = entry.getValue();
+            int touched = accumulate(doc, s);
+            if (!refresh.removed) refresh.book.setNeighbors(top(s, touched));
+            rowsComputed.increment();
+            for (int i = 0; i < touched; i++) {
+                int other = s.touched[i];
+                if (patch(other, doc, refresh.book, s.sims[other])) stale.add(other);
+            }
+            // Titles these patrons rated that no longer share anyone with this one
+            AtomicReferenceArray<Rated> users = byUser;
+            for (int user : refresh.users) {
+                Rated rated = rated(users, user);
+                for (int i = 0; i < rated.size; i++) {
+                    int other = rated.entries[i] >>> 3;
+                    if (other != doc && s.shared[other] == 0 && patch(other, doc, refresh.book, 0)) stale.add(other);
+                }
+            }
+            clear(s, touched);
+        }
+        recompute(stale.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    private void recompute(int[] docs) {
+        IntStream rows = Arrays.stream(docs);
+        (docs.length > PARALLEL_ROWS ? rows.parallel() : rows).forEach(doc -> {
+            Book book = books[doc];
+            if (book == null) return;
+            Scratch s = scratch.get();
+            int touched = accumulate(doc, s);
+            book.setNeighbors(top(s, touched));
+            clear(s, touched);
+        });
+        rowsComputed.add(docs.length);
+    }
+
+    // Similarity of doc to every title sharing a patron with it, left in the scratch;
+    // returns how many titles that is
+    private int accumulate(int doc, Scratch s) {
+        s.ensure(docCount);
+        AtomicReferenceArray<Rated> users = byUser;
+        int touched = 0;
+        for (int entry : votes[doc]) {
+            int weight = RatingVotes.vote(entry) - MIDPOINT;
+            Rated rated = rated(users, RatingVotes.user(entry));
+            if (weight == 0 || rated.size > MAX_PATRON_RATINGS) continue;
+            for (int i = 0; i < rated.size; i++) {
+                int other = rated.entries[i] >>> 3;
+                int otherWeight = (rated.entries[i] & 7) - MIDPOINT;
+                if (other == doc || otherWeight == 0) continue;
+                if (s.shared[other]++ == 0) s.touched[touched++] = other;
+                s.dot[other] += weight * otherWeight;
+            }
+        }
+        double norm = norms[doc];
+        for (int i = 0; i < touched; i++) {
+            int other = s.touched[i];
+            int shared = s.shared[other];
+            s.sims[other] = (float) (s.dot[other] / (norm * norms[other]) * shared / (shared + SHRINK));
+        }
+        return touched;
+    }
+
+    private static void clear(Scratch s, int touched) {
+        for (int i = 0; i < touched; i++) {
+            s.dot[s.touched[i]] = 0;
+            s.shared[s.touched[i]] = 0;
+        }
+    }
+
+    // The NEIGHBORS most similar titles, through a min-heap on the scratch
+    private Neighbors top(Scratch s, int touched) {
+        int[] heap = s.heap;
+        float[] sims = s.sims;
+        int size = 0;
+        for (int i = 0; i < touched; i++) {
+            int other = s.touched[i];
+            if (sims[other] <= 0) continue;
+            if (size < heap.length) {
+                int at = size++;
+                while (at > 0 && sims[heap[(at - 1) / 2]] > sims[other]) {
+                    heap[at] = heap[(at - 1) / 2];
+                    at = (at - 1) / 2;
+                }
+                heap[at] = other;
+            } else if (sims[other] > sims[heap[0]]) {
+                heap[0] = other;
+                siftDown(heap, size, sims);
+            }
+        }
+        if (size == 0) return null;
+        Book[] best = new Book[size];
+        int[] docs = new int[size];
+        float[] scores = new float[size];
+        for (int i = size - 1; i >= 0; i--) {
+            best[i] = books[heap[0]];
+            docs[i] = heap[0];
+            scores[i] = sims[heap[0]];
+            heap[0] = heap[i];
+            siftDown(heap, i, sims);
+        }
+        return new Neighbors(best, docs, scores);
+    }
+
+    private static void siftDown(int[] heap, int size, float[] sims) {
+        int at = 0, doc = heap[0];
+        while (2 * at + 1 < size) {
+            int child = 2 * at + 1;
+            if (child + 1 < size && sims[heap[child + 1]] < sims[heap[child]]) child++;
+            if (sims[heap[child]] >= sims[doc]) break;
+            heap[at] = heap[child];
+            at = child;
+        }
+        heap[at] = doc;
+    }
+
+    // Moves title to its new similarity in doc's list, or out of it at zero. True when a
+    // full list lost ground at that entry, so a title below the cut may now outrank it.
+    private boolean patch(int doc, int title, Book book, float sim) {
+        Book owner = books[doc];
+        if (owner == null) return false;
+        Neighbors list = owner.getNeighbors();
+        int at = list == null ? -1 : list.indexOf(title);
+        boolean full = list != null && list.books.length >= NEIGHBORS;
+        if (at < 0 && (sim <= 0 || full && sim <= list.scores[list.scores.length - 1])) return false;
+        int kept = list == null ? 0 : list.books.length - (at < 0 ? 0 : 1);
+        int size = Math.min(NEIGHBORS, kept + (sim > 0 ? 1 : 0));
+        Book[] books = new Book[size];
+        int[] docs = new int[size];
+        float[] scores = new float[size];
+        int n = 0;
+        boolean placed = sim <= 0;
+        for (int i = 0; list != null && i < list.books.length && n < size; i++) {
+            if (i == at) continue;
+            if (!placed && sim > list.scores[i]) {
+                books[n] = book;
+                docs[n] = title;
+                scores[n++] = sim;
+                placed = true;
+                if (n == size) break;
+            }
+            books[n] = list.books[i];
+            docs[n] = list.docs[i];
+            scores[n++] = list.scores[i];
+        }
+        if (!placed && n < size) {
+            books[n] = book;
+            docs[n] = title;
+            scores[n] = sim;
+        }
+        owner.setNeighbors(size == 0 ? null : new Neighbors(books, docs, scores));
+        return full && at >= 0 && sim < list.scores[at];
+    }
+
+    // Returns the previous vote, 0 if none. Voted says whether the title's vector had a
+    // vote from this patron, so a first vote skips searching a long list of theirs. A
+    // patron crossing MAX_PATRON_RATINGS changes every pair among their titles, so
+    // those go on the stale list.
+    private int setVote(int user, int doc, Book book, int vote, boolean voted, Set<Integer> stale) {
+        AtomicReferenceArray<Rated> users = byUser;
+        if (user >= users.length()) {
+            AtomicReferenceArray<Rated> grown = new AtomicReferenceArray<>(Math.max(user + 1, users.length() * 2));
+            for (int i = 0; i < users.length(); i++) grown.set(i, users.get(i));
+            byUser = users = grown;
+        }
+        Rated rated = rated(users, user);
+        int at = -1;
+        for (int i = 0; voted && i < rated.size && at < 0; i++) {
+            if (rated.entries[i] >>> 3 == doc) at = i;
+        }
+        int previous = at < 0 ? 0 : rated.entries[at] & 7;
+        Rated updated;
+        if (vote == 0) {
+            if (at < 0) return 0;
+            int size = rated.size - 1;
+            Book[] books = Arrays.copyOf(rated.books, size);
+            int[] entries = Arrays.copyOf(rated.entries, size);
+            if (at < size) {
+                books[at] = rated.books[size];
+                entries[at] = rated.entries[size];
+            }
+            updated = size == 0 ? NO_RATINGS : new Rated(books, entries, size);
+        } else if (at >= 0) {
+            rated.entries[at] = doc << 3 | vote;
+            updated = new Rated(rated.books, rated.entries, rated.size);
+        } else {
+            Book[] books = rated.books;
+            int[] entries = rated.entries;
+            if (rated.size == entries.length) {
+                books = Arrays.copyOf(books, Math.max(4, rated.size * 2));
+                entries = Arrays.copyOf(entries, books.length);
+            }
+            books[rated.size] = book;
+            entries[rated.size] = doc << 3 | vote;
+            updated = new Rated(books, entries, rated.size + 1);
+        }
+        users.set(user, updated == NO_RATINGS ? null : updated);
+        if (rated.size <= MAX_PATRON_RATINGS != updated.size <= MAX_PATRON_RATINGS) {
+            Rated larger = updated.size > rated.size ? updated : rated;
+            for (int i = 0; i < larger.size; i++) stale.add(larger.entries[i] >>> 3);
+        }
+        return previous;
+    }
+
+    private static Rated rated(AtomicReferenceArray<Rated> users, int user) {
+        Rated rated = user < users.length() ? users.get(user) : null;
+        return rated != null ? rated : NO_RATINGS;
+    }
+
+    private int docFor(Book book) {
+        int doc = docIds.get(book.getId());
+        if (doc >= 0) return doc;
+        doc = docCount++;
+        if (doc == books.length) {
+            books = Arrays.copyOf(books, doc * 2);
+            votes = Arrays.copyOf(votes, doc * 2);
+            norms = Arrays.copyOf(norms, doc * 2);
+        }
+        docIds.put(book.getId(), doc);
+        books[doc] = book;
+        votes[doc] = NO_VOTES;
+        return doc;
+    }
+
+    private static double norm(int[] entries) {
+        long sum = 0;
+        for (int entry : entries) {
+            int weight = RatingVotes.vote(entry) - MIDPOINT;
+            sum += weight * weight;
+        }
+        return Math.sqrt(sum);
+    }
+}
+
+interface LibraryClock {
+    LibraryClock SYSTEM = System::currentTimeMillis;
+
+    long millis();
+}
+
+// Manually advanced clock for deterministic scheduling and fine calculations
+class SimulatedClock implements LibraryClock {
+    private final AtomicLong now;
+
+    SimulatedClock(long startMillis) {
+        this.now = new AtomicLong(startMillis);
+    }
+
+    @Override
+    public long millis() {
+        return now.get();
+    }
+
+    void advance(long amount, TimeUnit unit) {
+        now.addAndGet(unit.toMillis(amount));
+    }
+
+    void set(long millis) {
+        now.set(millis);
+    }
+}
+
+// Open loans ordered by due date, so overdue work is proportional to the
+// number of overdue loans rather than to the size of the catalog
+class DueDateIndex {
+    static final class Loan {
+        final String copyId;
+        final String borrower;
+        final long dueMillis;
+        volatile boolean overdue;
+
+        Loan(String copyId, String borrower, long dueMillis) {
+            this.copyId = copyId;
+            this.borrower = borrower;
+            this.dueMillis = dueMillis;
+        }
+    }
+
+    private static final Comparator<Loan> BY_DUE_DATE =
+            Comparator.<Loan>comparingLong(l -> l.dueMillis).thenComparing(l -> l.copyId);
+
+    private final ConcurrentSkipListSet<Loan> byDueDate = new ConcurrentSkipListSet<>(BY_DUE_DATE);
+    private final Map<String, Loan> byCopy = new ConcurrentHashMap<>();
+
+    void add(String copyId, String borrower, long dueMillis) {
+        Loan loan = new Loan(copyId, borrower, dueMillis);
+        Loan previous = byCopy.put(copyId, loan);
+        if (previous != null) byDueDate.remove(previous);
+        byDueDate.add(loan);
+    }
+
+    void remove(String copyId) {
+        Loan loan = byCopy.remove(copyId);
+        if (loan != null) byDueDate.remove(loan);
+    }
+
+    Loan get(String copyId) {
+        return byCopy.get(copyId);
+    }
+
+    // Loans due strictly before the given instant, earliest first
+    NavigableSet<Loan> dueBefore(long millis) {
+        return byDueDate.headSet(new Loan("", null, millis), false);
+    }
+
+    int size() {
+        return byCopy.size();
+    }
+}
+
+class OverdueNotice {
+    private final String bookId;
+    private final String copyId;
+    private final String title;
+    private final String borrower;
+    private final String email;
+    private final Date dueDate;
+    private final int daysOverdue;
+    private final int fineCents;
+    private final boolean firstNotice;
+
+    OverdueNotice(String bookId, String copyId, String title, String borrower, String email, Date dueDate,
+                  int daysOverdue, int fineCents, boolean firstNotice) {
+        this.bookId = bookId;
+        this.copyId = copyId;
+        this.title = title;
+        this.borrower = borrower;
+        this.email = email;
+        this.dueDate = dueDate;
+        this.daysOverdue = daysOverdue;
+        this.fineCents = fineCents;
+        this.firstNotice = firstNotice;
+    }
+
+    public String getBookId() { return bookId; }
+    public String getCopyId() { return copyId; }
+    public String getTitle() { return title; }
+    public String getBorrower() { return borrower; }
+    public String getEmail() { return email; }
+    public Date getDueDate() { return dueDate; }
+    public int getDaysOverdue() { return daysOverdue; }
+    public int getFineCents() { return fineCents; }
+    public boolean isFirstNotice() { return firstNotice; }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s) borrowed by %s, due %tF, %d day(s) overdue, fine $%d.%02d",
+                title, copyId, borrower, dueDate, daysOverdue, fineCents / 100, fineCents % 100);
+    }
+}
+
+// Per-book FIFO waitlists. Queue operations are lock-free; callers that need
+// a waitlist change to be atomic with book state hold that book's stripe.
+// Cancelling only unlinks the patron from their entry; the dead entry stays
+// queued until promotion skips it or dead entries outnumber live ones.
+class HoldQueues {
+    private static final class Entry {
+        final String username;
+
+        Entry(String username) {
+            this.username = username;
+        }
+    }
+
+    private static final class Waitlist {
+        final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+        // Each patron's live entry; one left in the queue without a match here is cancelled
+        final Map<String, Entry> members = new ConcurrentHashMap<>();
+        final AtomicInteger dead = new AtomicInteger();
+
+        boolean live(Entry entry) {
+            return members.get(entry.username) == entry;
+        }
+    }
+
+    private final Map<String, Waitlist> waitlists = new ConcurrentHashMap<>();
+
+    boolean enqueue(String bookId, String username) {
+        Waitlist waitlist = waitlists.computeIfAbsent(bookId, k -> new Waitlist());
+        Entry entry = new Entry(username);
+        if (waitlist.members.putIfAbsent(username, entry) != null) return false;
+        waitlist.queue.add(entry);
+        return true;
+    }
+
+    boolean cancel(String bookId, String username) {
+        Waitlist waitlist = waitlists.get(bookId);
+        if (waitlist == null || waitlist.members.remove(username) == null) return false;
+        if (waitlist.dead.incrementAndGet() > waitlist.members.size() + 64) {
+            waitlist.dead.set(0);
+            waitlist.queue.removeIf(entry -> !waitlist.live(entry));
+        }
+        return true;
+    }
+
+    // Next patron in line, skipping cancelled entries
+    String pollNext(String bookId) {
+        Waitlist waitlist = waitlists.get(bookId);
+        if (waitlist == null) return null;
+        for (Entry next = waitlist.queue.poll(); next != null; next = waitlist.queue.poll()) {
+            if (waitlist.members.remove(next.username, next)) return next.username;
+            waitlist.dead.decrementAndGet();
+        }
+        return null;
+    }
+
+    // 1-based position, or 0 if the patron is not waiting
+    int position(String bookId, String username) {
+        Waitlist waitlist = waitlists.get(bookId);
+        Entry entry = waitlist == null ? null : waitlist.members.get(username);
+        if (entry == null) return 0;
+        int position = 1;
+        for (Entry waiting : waitlist.queue) {
+            if (waiting == entry) return position;
+            if (waitlist.live(waiting)) position++;
+        }
+        return 0;
+    }
+
+    // Patrons waiting across all titles
+    int total() {
+        int total = 0;
+        for (Waitlist waitlist : waitlists.values()) total += waitlist.members.size();
+        return total;
+    }
+
+    int size(String bookId) {
+        Waitlist waitlist = waitlists.get(bookId);
+        return waitlist == null ? 0 : waitlist.members.size();
+    }
+
+    List<String> waiting(String bookId) {
+        Waitlist waitlist = waitlists.get(bookId);
+        List<String> waiting = new ArrayList<>();
+        if (waitlist == null) return waiting;
+        for (Entry entry : waitlist.queue) {
+            if (waitlist.live(entry)) waiting.add(entry.username);
+        }
+        return waiting;
+    }
+
+    void clear(String bookId) {
+        waitlists.remove(bookId);
+    }
+}
+
+// Counters, gauges and latency histograms for one library. Readable over JMX as
+// ewu.library:type=Metrics and as Prometheus text from LibraryServer's /metrics.
+// Recording costs two nanoTime calls and a few uncontended atomic adds, so it stays on.
+class LibraryMetrics implements DynamicMBean {
+    private static final String PREFIX = "ewu_library_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    enum Family {
+        OPERATION("operation", "operation", "Time spent in Library operations"),
+        PERSISTENCE("persistence", "target", "Time spent loading, writing and flushing persistent state");
+
+        final String name;
+        final String label;
+        final String help;
+
+        Family(String name, String label, String help) {
+            this.name = name;
+            this.label = label;
+            this.help = help;
+        }
+    }
+
+    // Log-linear buckets in the style of HdrHistogram: 32 per power of two, so a
+    // reported value is within about 3% of the recorded one. Nanoseconds, capped near 137 s.
+    static final class LatencyHistogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int MAX_EXPONENT = 36;
+        private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+        private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BITS + 2) << SUB_BITS);
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        void since(long startNanos) {
+            record(System.nanoTime() - startNanos, 0);
+        }
+
+        void record(long nanos, long written) {
+            nanos = Math.max(0, nanos);
+            counts.incrementAndGet(bucket(Math.min(nanos, MAX_VALUE)));
+            total.add(nanos);
+            max.accumulate(nanos);
+            if (written > 0) bytes.add(written);
+        }
+
+        void failed() {
+            errors.increment();
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_COUNT) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return ((exponent - SUB_BITS + 1) << SUB_BITS) + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1));
+        }
+
+        // Largest value that falls in the bucket
+        static long highest(int bucket) {
+            if (bucket < SUB_COUNT) return bucket;
+            int shift = (bucket >> SUB_BITS) - 1;
+            long lowest = (long) (SUB_COUNT + (bucket & (SUB_COUNT - 1))) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        // [count, sum, max, quantiles...] read from one pass over the buckets
+        long[] snapshot(double... quantiles) {
+            long[] buckets = new long[counts.length()];
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) count += buckets[i] = counts.get(i);
+            long[] result = new long[3 + quantiles.length];
+            result[0] = count;
+            result[1] = total.sum();
+            result[2] = max.get();
+            for (int q = 0; q < quantiles.length; q++) {
+                long rank = Math.max(1, (long) Math.ceil(quantiles[q] * count));
+                long seen = 0;
+                for (int i = 0; i < buckets.length && count > 0; i++) {
+                    seen += buckets[i];
+                    if (seen >= rank) {
+                        result[3 + q] = Math.min(highest(i), result[2]);
+                        break;
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Sampled {
+        final String help;
+        final boolean counter;
+        final LongSupplier value;
+
+        Sampled(String help, boolean counter, LongSupplier value) {
+            this.help = help;
+            this.counter = counter;
+            this.value = value;
+        }
+    }
+
+    private final Map<String, Sampled> sampled = new ConcurrentSkipListMap<>();
+    private final Map<Family, Map<String, LatencyHistogram>> histograms = new EnumMap<>(Family.class);
+    private ObjectName objectName;
+
+    LibraryMetrics() {
+        for (Family family : Family.values()) histograms.put(family, new ConcurrentHashMap<>());
+    }
+
+    LatencyHistogram operation(String name) {
+        return histogram(Family.OPERATION, name);
+    }
+
+    LatencyHistogram persistence(String target) {
+        return histogram(Family.PERSISTENCE, target);
+    }
+
+    private LatencyHistogram histogram(Family family, String name) {
+        Map<String, LatencyHistogram> byName = histograms.get(family);
+        LatencyHistogram histogram = byName.get(name);
+        return histogram != null ? histogram : byName.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    // Sampled when read; the name should end in _total
+    void counter(String name, String help, LongSupplier value) {
+        sampled.put(name, new Sampled(help, true, value));
+    }
+
+    void gauge(String name, String help, LongSupplier value) {
+        sampled.put(name, new Sampled(help, false, value));
+    }
+
+    // Prometheus text exposition format 0.0.4
+    String prometheus() {
+        StringBuilder text = new StringBuilder(4096);
+        sampled.forEach((name, metric) -> {
+            text.append("# HELP ").append(PREFIX).append(name).append(' ').append(metric.help).append('\n');
+            text.append("# TYPE ").append(PREFIX).append(name).append(metric.counter ? " counter\n" : " gauge\n");
+            text.append(PREFIX).append(name).append(' ').append(metric.value.getAsLong()).append('\n');
+        });
+        for (Family family : Family.values()) {
+            Map<String, LatencyHistogram> byName = new TreeMap<>(histograms.get(family));
+            if (byName.isEmpty()) continue;
+            String metric = PREFIX + family.name + "_seconds";
+            text.append("# HELP ").append(metric).append(' ').append(family.help).append('\n');
+            text.append("# TYPE ").append(metric).append(" summary\n");
+            byName.forEach((name, histogram) -> {
+                String label = family.label + "=" + Json.quote(name);
+                long[] snapshot = histogram.snapshot(QUANTILES);
+                for (int q = 0; q < QUANTILES.length; q++) {
+                    text.append(metric).append('{').append(label).append(",quantile=\"").append(QUANTILES[q])
+                            .append("\"} ").append(snapshot[3 + q] / 1e9).append('\n');
+                }
+                text.append(metric).append("_sum{").append(label).append("} ").append(snapshot[1] / 1e9).append('\n');
+                text.append(metric).append("_count{").append(label).append("} ").append(snapshot[0]).append('\n');
+            });
+            if (family != Family.PERSISTENCE) continue;
+            appendCounter(text, byName, family, "bytes_total", "Bytes written", h -> h.bytes.sum());
+            appendCounter(text, byName, family, "errors_total", "Failed reads and writes", h -> h.errors.sum());
+        }
+        return text.toString();
+    }
+
+    private static void appendCounter(StringBuilder text, Map<String, LatencyHistogram> byName, Family family,
+                                      String suffix, String help, java.util.function.ToLongFunction<LatencyHistogram> value) {
+        String metric = PREFIX + family.name + "_" + suffix;
+        text.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(metric).append(" counter\n");
+        byName.forEach((name, histogram) -> text.append(metric).append('{').append(family.label).append('=')
+                .append(Json.quote(name)).append("} ").append(value.applyAsLong(histogram)).append('\n'));
+    }
+
+    // JMX attributes: each counter and gauge, plus <family>.<name>.count, .meanMicros,
+    // .p50Micros ... .p999Micros and .maxMicros for every histogram (.bytes and .errors for persistence)
+    private Map<String, Object> attributes() {
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        sampled.forEach((name, metric) -> attributes.put(name, metric.value.getAsLong()));
+        for (Family family : Family.values()) {
+            new TreeMap<>(histograms.get(family)).forEach((name, histogram) -> {
+                String prefix = family.name + "." + name + ".";
+                long[] snapshot = histogram.snapshot(QUANTILES);
+                attributes.put(prefix + "count", snapshot[0]);
+                attributes.put(prefix + "meanMicros", snapshot[0] == 0 ? 0.0 : snapshot[1] / 1e3 / snapshot[0]);
+                for (int q = 0; q < QUANTILES.length; q++) {
+                    String quantile = String.valueOf(QUANTILES[q]).substring(2);
+                    attributes.put(prefix + "p" + (quantile.length() == 1 ? quantile + "0" : quantile) + "Micros",
+                            snapshot[3 + q] / 1e3);
+                }
+                attributes.put(prefix + "maxMicros", snapshot[2] / 1e3);
+                if (family == Family.PERSISTENCE) {
+                    attributes.put(prefix + "bytes", histogram.bytes.sum());
+                    attributes.put(prefix + "errors", histogram.errors.sum());
+                }
+            });
+        }
+        return attributes;
+    }
+
+    // Registers as ewu.library:type=Metrics, numbered if another library in the JVM got there first
+    synchronized void registerMBean() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (int instance = 0; objectName == null; instance++) {
+            try {
+                ObjectName name = new ObjectName("ewu.library:type=Metrics" + (instance == 0 ? "" : ",instance=" + instance));
+                server.registerMBean(this, name);
+                objectName = name;
+            } catch (InstanceAlreadyExistsException e) {
+                // Try the next instance number
+            } catch (JMException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    synchronized void unregisterMBean() {
+        if (objectName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        objectName = null;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = attributes().get(attribute);
+        if (value == null) throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Object> attributes = attributes();
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            if (attributes.containsKey(name)) list.add(new Attribute(name, attributes.get(name)));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    // Rebuilt on each call since histograms appear as operations are first used
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> infos = new ArrayList<>();
+        attributes().forEach((name, value) -> infos.add(new MBeanAttributeInfo(name, value.getClass().getName(),
+                name, true, false, false)));
+        return new MBeanInfo(getClass().getName(), "Library metrics", infos.toArray(new MBeanAttributeInfo[0]),
+                null, null, null);
+    }
+}
+
+// Where the library is kept between runs. Library applies every change in memory
+// first and then hands the store the same record the journal would replay.
+interface LibraryStore extends Closeable {
+    // -Dewu.store=jdbc:<url> selects a database; the snapshot and journal files are the default
+    static LibraryStore configured() {
+        String store = System.getProperty("ewu.store", "file");
+        return store.startsWith("jdbc:") ? new JdbcLibraryStore(store) : new FileLibraryStore();
+    }
+
+    interface Recorder {
+        void record(byte type, Object... fields);
+    }
+
+    interface Action<T> {
+        T run() throws IOException;
+    }
+
+    // The library as its store sees it
+    interface Catalog {
+        // Runs the action under the catalog write lock, so nothing is applied or recorded meanwhile
+        <T> T exclusive(Action<T> action) throws IOException;
+
+        // Encodes the current state as a snapshot covering records up to seq; call inside exclusive
+        byte[] encode(long seq) throws IOException;
+
+        // Where the store reports write timings, bytes and failures
+        LibraryMetrics metrics();
+    }
+
+    // The saved state, or null for a new library
+    SnapshotCodec.Snapshot load() throws IOException;
+
+    // Called once the loaded state is indexed; replays whatever was recorded after it
+    void open(Catalog catalog, Journal.Handler replay) throws IOException;
+
+    // Called with the affected locks held so store order matches state order
+    void record(byte type, Object... fields);
+
+    // Applies a bulk change under the catalog write lock; apply reports each change to the recorder
+    void recordBulk(Consumer<Recorder> apply);
+
+    // Runs a batch of ordinary changes, each still recorded as it happens, letting the
+    // store make them durable together at the end rather than as it goes
+    default void recordBatch(Runnable batch) {
+        batch.run();
+    }
+
+    // Called after all locks are released. May wait for the disk, if the store's
+    // durability policy asks for it.
+    void flush();
+
+    // Completes once everything recorded so far is durable
+    CompletableFuture<Void> durable();
+
+    @Override
+    void close();
+}
+
+// A snapshot file plus a journal of the changes made since it was written.
+// Changes are queued for the journal's writer thread rather than written by the
+// caller; -Dewu.journal.durability=sync makes each mutating call wait until its
+// change is on disk, concurrent callers sharing one sync. The default, async,
+// returns at once; Library.durable() says when the changes have landed.
+class FileLibraryStore implements LibraryStore {
+    private static final String DATA_FILE = "EWULibraryManagementSystem.dat";
+    private static final String LEGACY_DATA_FILE = "EWULibraryManagementSystem.ser";
+    private static final String JOURNAL_FILE = "EWULibraryManagementSystem.journal";
+    private static final boolean JOURNALED = !"snapshot".equals(System.getProperty("ewu.persistence"));
+    private static final boolean SYNC_DURABILITY = "sync".equals(System.getProperty("ewu.journal.durability", "async"));
+    // How long the writer holds a group open to gather more changes; trades latency for fewer syncs
+    private static final long COMMIT_DELAY_MILLIS = Long.getLong("ewu.journal.commitDelayMillis", 0);
+    private static final int SNAPSHOT_EVERY = Integer.getInteger("ewu.journal.snapshotEvery", 1000);
+    // Held from serialization through the rename so snapshots reach disk in order
+    private static final Object SNAPSHOT_LOCK = new Object();
+
+    private final Path directory;
+    private final boolean syncDurability;
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private Catalog catalog;
+    // The library's once opened; a legacy migration during load reports nowhere
+    private LibraryMetrics metrics = new LibraryMetrics();
+    private Journal journal;
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "library-snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean snapshotPending;
+    // A full save queued on the snapshot thread and not yet started; later changes join it
+    private CompletableFuture<Void> pendingSave;
+    private CompletableFuture<Void> lastSave = CompletableFuture.completedFuture(null);
+    private long loadedSeq;
+
+    // In the working directory
+    FileLibraryStore() {
+        this(Paths.get(""), SYNC_DURABILITY);
+    }
+
+    FileLibraryStore(Path directory, boolean syncDurability) {
+        this.directory = directory;
+        this.syncDurability = syncDurability;
+    }
+
+    @Override
+    public SnapshotCodec.Snapshot load() throws IOException {
+        Path data = directory.resolve(DATA_FILE);
+        if (!Files.exists(data)) return migrateLegacyData();
+        SnapshotCodec.Snapshot saved = SnapshotCodec.decode(data);
+        loadedSeq = saved.journalSeq;
+        return saved;
+    }
+
+    // One-time conversion of a Java-serialized snapshot from older versions
+    private SnapshotCodec.Snapshot migrateLegacyData() {
+        SnapshotCodec.Snapshot saved;
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(directory.resolve(LEGACY_DATA_FILE).toFile()))) {
+            saved = ((Library) ois.readObject()).toSnapshot();
+        } catch (FileNotFoundException e) {
+            // First run
+            return null;
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+            return null;
+        }
+        loadedSeq = saved.journalSeq;
+        try {
+            writeSnapshot(SnapshotCodec.encode(saved.books, saved.users, saved.journalSeq, new HoldQueues()));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return saved;
+    }
+
+    // Snapshot plus journal tail: records already covered by the snapshot are skipped by sequence number
+    @Override
+    public void open(Catalog catalog, Journal.Handler replay) {
+        this.catalog = catalog;
+        this.metrics = catalog.metrics();
+        if (!JOURNALED) return;
+        String journalFile = directory.resolve(JOURNAL_FILE).toString();
+        try {
+            Journal.replay(journalFile, (seq, type, fields) -> {
+                if (seq <= loadedSeq) return;
+                loadedSeq = seq;
+                replay.apply(seq, type, fields);
+            });
+            journal = new Journal(journalFile, loadedSeq, COMMIT_DELAY_MILLIS, metrics, e -> {
+                // The group is lost from the journal; a full snapshot on the next flush covers it
+                e.printStackTrace();
+                dirty.set(true);
+            });
+            if (journal.hasRolled()) {
+                // A previous compaction did not finish; fold the rolled journal in now
+                writeSnapshot(catalog.exclusive(() -> catalog.encode(journal.lastSeq())));
+                journal.deleteRolled();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            metrics.persistence("journal").failed();
+            journal = null;
+        }
+    }
+
+    @Override
+    public void record(byte type, Object... fields) {
+        if (journal == null) {
+            dirty.set(true);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            int written = journal.append(type, fields);
+            metrics.persistence("journal").record(System.nanoTime() - start, written);
+        } catch (IOException e) {
+            e.printStackTrace();
+            metrics.persistence("journal").failed();
+            dirty.set(true);
+        }
+    }
+
+    @Override
+    public void recordBatch(Runnable batch) {
+        if (journal == null) {
+            batch.run();
+            return;
+        }
+        journal.beginBatch();
+        try {
+            batch.run();
+        } finally {
+            journal.endBatch();
+        }
+    }
+
+    // Writes one snapshot covering the change, holding the write lock until it is
+    // durable so no journaled mutation can refer to rows that are not yet on disk.
+    @Override
+    public void recordBulk(Consumer<Recorder> apply) {
+        synchronized (SNAPSHOT_LOCK) {
+            try {
+                catalog.exclusive(() -> {
+                    apply.accept((type, fields) -> { });
+                    if (journal != null) journal.roll();
+                    writeSnapshot(catalog.encode(coveredSeq()));
+                    if (journal != null) journal.deleteRolled();
+                    return null;
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+                metrics.persistence("snapshot").failed();
+                dirty.set(true);
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (dirty.get()) {
+            scheduleSave();
+        } else if (journal != null && journal.recordsSinceRoll() >= SNAPSHOT_EVERY && !snapshotPending) {
+            snapshotPending = true;
+            snapshotExecutor.execute(this::compact);
+        }
+        if (syncDurability) {
+            try {
+                durable().join();
+            } catch (CompletionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> durable() {
+        if (pendingSave != null) return pendingSave;
+        CompletableFuture<Void> journaled = journal != null ? journal.whenDurable() : CompletableFuture.completedFuture(null);
+        return lastSave.isDone() ? journaled : CompletableFuture.allOf(lastSave, journaled);
+    }
+
+    // Runs on the snapshot thread. Only the in-memory serialization holds the
+    // catalog lock; the disk write happens while mutations keep journaling.
+    private void compact() {
+        try {
+            synchronized (SNAPSHOT_LOCK) {
+                byte[] image = catalog.exclusive(() -> journal.roll() ? catalog.encode(journal.lastSeq()) : null);
+                if (image == null) return;
+                writeSnapshot(image);
+                journal.deleteRolled();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            metrics.persistence("snapshot").failed();
+        } finally {
+            snapshotPending = false;
+        }
+    }
+
+    // Full saves run on the snapshot thread; changes made before one starts are all in it
+    private synchronized void scheduleSave() {
+        if (pendingSave != null) return;
+        CompletableFuture<Void> save = new CompletableFuture<>();
+        pendingSave = save;
+        lastSave = save;
+        snapshotExecutor.execute(() -> {
+            synchronized (this) {
+                pendingSave = null;
+            }
+            dirty.set(false);
+            try {
+                synchronized (SNAPSHOT_LOCK) {
+                    writeSnapshot(catalog.exclusive(() -> catalog.encode(coveredSeq())));
+                }
+                save.complete(null);
+            } catch (IOException e) {
+                e.printStackTrace();
+                metrics.persistence("snapshot").failed();
+                dirty.set(true);
+                save.completeExceptionally(e);
+            }
+        });
+    }
+
+    private long coveredSeq() {
+        return journal != null ? journal.lastSeq() : loadedSeq;
+    }
+
+    // Written to a temporary file and renamed so a crash never leaves a half-written snapshot
+    private void writeSnapshot(byte[] image) throws IOException {
+        long start = System.nanoTime();
+        Path target = directory.resolve(DATA_FILE);
+        Path temp = directory.resolve(DATA_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(image);
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        metrics.persistence("snapshot").record(System.nanoTime() - start, image.length);
+    }
+
+    // Finishes queued saves and writes whatever the journal still holds
+    @Override
+    public void close() {
+        try {
+            snapshotExecutor.shutdown();
+            snapshotExecutor.awaitTermination(30, TimeUnit.SECONDS);
+            if (journal != null) journal.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+// Keeps the library in an embedded SQL database (H2, SQLite, ...) named by its JDBC
+// URL, e.g. -Dewu.store=jdbc:h2:./library with the driver on the classpath. Each
+// record becomes a few row-level statements on one connection and is committed on
+// the next flush, so concurrent changes share commits. A failed statement rolls back
+// everything uncommitted and the next flush rewrites every table from the library.
+// Startup reads every table back into memory and the library answers all of its
+// queries from its own indexes, so the catalog must fit in the heap; the SQL indexes
+// on loans, copies and waitlists are for reports run against the tables directly.
+// Pushing the library's reads down into SQL is not supported.
+class JdbcLibraryStore implements LibraryStore {
+    private static final String[] SCHEMA = {
+        "CREATE TABLE IF NOT EXISTS books (id VARCHAR(255) PRIMARY KEY, title VARCHAR(1024) NOT NULL,"
+                + " author VARCHAR(512), genre VARCHAR(255), publication_year INT, seq BIGINT NOT NULL)",
+        "CREATE TABLE IF NOT EXISTS copies (id VARCHAR(255) PRIMARY KEY, book_id VARCHAR(255) NOT NULL,"
+                + " held_for VARCHAR(255), hold_expires BIGINT, seq BIGINT NOT NULL)",
+        "CREATE TABLE IF NOT EXISTS users (username VARCHAR(255) PRIMARY KEY, password VARCHAR(255),"
+                + " full_name VARCHAR(512), email VARCHAR(512), admin BOOLEAN NOT NULL, active BOOLEAN NOT NULL,"
+                + " seq BIGINT NOT NULL)",
+        "CREATE TABLE IF NOT EXISTS loans (copy_id VARCHAR(255) PRIMARY KEY, username VARCHAR(255) NOT NULL,"
+                + " due_date BIGINT NOT NULL, seq BIGINT NOT NULL)",
+        "CREATE TABLE IF NOT EXISTS ratings (book_id VARCHAR(255) NOT NULL, username VARCHAR(255) NOT NULL,"
+                + " rating INT NOT NULL, PRIMARY KEY (book_id, username))",
+        "CREATE TABLE IF NOT EXISTS waitlist (book_id VARCHAR(255) NOT NULL, username VARCHAR(255) NOT NULL,"
+                + " seq BIGINT NOT NULL, PRIMARY KEY (book_id, username))",
+        "CREATE INDEX IF NOT EXISTS copies_book ON copies (book_id)",
+        "CREATE INDEX IF NOT EXISTS loans_user ON loans (username)",
+        "CREATE INDEX IF NOT EXISTS loans_due ON loans (due_date)",
+        "CREATE INDEX IF NOT EXISTS waitlist_order ON waitlist (book_id, seq)",
+    };
+
+    private final String url;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private Catalog catalog;
+    private LibraryMetrics metrics = new LibraryMetrics();
+    private Connection connection;
+    // Orders rows the way the in-memory lists are ordered
+    private long seq;
+    private boolean uncommitted;
+    // A write failed and was rolled back; the tables no longer match the library
+    private boolean dirty;
+    // Rewrites every table, so a database that keeps refusing it is retried at most once a second
+    private long nextResync;
+
+    JdbcLibraryStore(String url) {
+        this.url = url;
+    }
+
+    @Override
+    public synchronized SnapshotCodec.Snapshot load() throws IOException {
+        try {
+            connection = DriverManager.getConnection(url);
+            connection.setAutoCommit(false);
+            try (Statement ddl = connection.createStatement()) {
+                for (String sql : SCHEMA) ddl.execute(sql);
+            }
+            connection.commit();
+            return read();
+        } catch (SQLException e) {
+            throw new IOException("Cannot open " + url, e);
+        }
+    }
+
+    private SnapshotCodec.Snapshot read() throws SQLException {
+        List<Book> books = new ArrayList<>();
+        Map<String, Book> bookIndex = new HashMap<>();
+        try (ResultSet rs = query("SELECT id, title, author, genre, publication_year, seq FROM books ORDER BY seq")) {
+            while (rs.next()) {
+                Book book = new Book(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getInt(5), 0);
+                books.add(book);
+                bookIndex.put(book.getId(), book);
+                seq = Math.max(seq, rs.getLong(6));
+            }
+        }
+        try (ResultSet rs = query("SELECT c.id, c.book_id, l.username, l.due_date, c.held_for, c.hold_expires, c.seq"
+                + " FROM copies c LEFT JOIN loans l ON l.copy_id = c.id ORDER BY c.seq")) {
+            while (rs.next()) {
+                Book book = bookIndex.get(rs.getString(2));
+                if (book == null) continue;
+                BookCopy copy = book.addCopy(rs.getString(1));
+                if (rs.getString(3) != null) book.checkOut(copy, rs.getString(3), new Date(rs.getLong(4)));
+                if (rs.getString(5) != null) book.hold(copy, rs.getString(5), new Date(rs.getLong(6)));
+                seq = Math.max(seq, rs.getLong(7));
+            }
+        }
+        List<User> users = new ArrayList<>();
+        Map<String, User> userIndex = new HashMap<>();
+        try (ResultSet rs = query("SELECT username, password, full_name, email, admin, active, seq FROM users ORDER BY seq")) {
+            while (rs.next()) {
+                User user = new User(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getBoolean(5));
+                user.setActive(rs.getBoolean(6));
+                users.add(user);
+                userIndex.put(user.getUsername(), user);
+                seq = Math.max(seq, rs.getLong(7));
+            }
+        }
+        try (ResultSet rs = query("SELECT copy_id, username, seq FROM loans ORDER BY seq")) {
+            while (rs.next()) {
+                User user = userIndex.get(rs.getString(2));
+                if (user != null) user.addBorrowedBook(rs.getString(1));
+                seq = Math.max(seq, rs.getLong(3));
+            }
+        }
+        try (ResultSet rs = query("SELECT book_id, username, rating FROM ratings")) {
+            while (rs.next()) {
+                Book book = bookIndex.get(rs.getString(1));
+                if (book != null) book.addRating(rs.getString(2), rs.getInt(3));
+            }
+        }
+        Map<String, List<String>> waitlists = new HashMap<>();
+        try (ResultSet rs = query("SELECT book_id, username, seq FROM waitlist ORDER BY seq")) {
+            while (rs.next()) {
+                waitlists.computeIfAbsent(rs.getString(1), k -> new ArrayList<>()).add(rs.getString(2));
+                seq = Math.max(seq, rs.getLong(3));
+            }
+        }
+        return new SnapshotCodec.Snapshot(books, users, 0, waitlists);
+    }
+
+    // Everything is written as it happens, so there is nothing to replay
+    @Override
+    public void open(Catalog catalog, Journal.Handler replay) {
+        this.catalog = catalog;
+        this.metrics = catalog.metrics();
+    }
+
+    @Override
+    public synchronized void record(byte type, Object... fields) {
+        // The rewrite on the next flush covers it
+        if (dirty) return;
+        long start = System.nanoTime();
+        try {
+            write(type, fields);
+            uncommitted = true;
+            metrics.persistence("jdbc_write").since(start);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            metrics.persistence("jdbc_write").failed();
+            rollback();
+        }
+    }
+
+    // Drops the failed record's statements and everything else not yet committed;
+    // rewrite() puts all of it back from the library
+    private void rollback() {
+        dirty = true;
+        uncommitted = false;
+        if (connection == null) return;
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void resync() {
+        long start = System.nanoTime();
+        synchronized (this) {
+            if (catalog == null || start - nextResync < 0) return;
+            nextResync = start + TimeUnit.SECONDS.toNanos(1);
+        }
+        try {
+            // Write lock before this store's monitor, the order recordBulk takes them in
+            catalog.exclusive(() -> {
+                synchronized (this) {
+                    if (dirty) rewrite();
+                }
+                return null;
+            });
+            metrics.persistence("jdbc_resync").since(start);
+        } catch (IOException e) {
+            e.printStackTrace();
+            metrics.persistence("jdbc_resync").failed();
+        }
+    }
+
+    // Replaces every row with the library's current state, in one transaction.
+    // Caller holds the catalog write lock and this store's monitor.
+    private void rewrite() throws IOException {
+        SnapshotCodec.Snapshot state = SnapshotCodec.decode(catalog.encode(0));
+        try {
+            for (String table : new String[] {"loans", "waitlist", "ratings", "copies", "books", "users"}) {
+                update("DELETE FROM " + table);
+            }
+            seq = 0;
+            for (Book book : state.books) {
+                update("INSERT INTO books (id, title, author, genre, publication_year, seq) VALUES (?, ?, ?, ?, ?, ?)",
+                        book.getId(), book.getTitle(), book.getAuthor(), book.getGenre(), book.getPublicationYear(), ++seq);
+                for (BookCopy copy : book.getCopies()) {
+                    Date expires = copy.getHoldExpires();
+                    update("INSERT INTO copies (id, book_id, held_for, hold_expires, seq) VALUES (?, ?, ?, ?, ?)",
+                            copy.getId(), book.getId(), copy.getHeldFor(), expires == null ? null : expires.getTime(), ++seq);
+                    if (copy.getBorrower() == null) continue;
+                    Date due = copy.getDueDate();
+                    update("INSERT INTO loans (copy_id, username, due_date, seq) VALUES (?, ?, ?, ?)",
+                            copy.getId(), copy.getBorrower(), due == null ? 0L : due.getTime(), ++seq);
+                }
+                for (int entry : book.getRatingEntries()) {
+                    update("INSERT INTO ratings (book_id, username, rating) VALUES (?, ?, ?)",
+                            book.getId(), UserIds.name(RatingVotes.user(entry)), RatingVotes.vote(entry));
+                }
+                for (String username : state.waitlists.getOrDefault(book.getId(), Collections.emptyList())) {
+                    update("INSERT INTO waitlist (book_id, username, seq) VALUES (?, ?, ?)", book.getId(), username, ++seq);
+                }
+            }
+            for (User user : state.users) {
+                update("INSERT INTO users (username, password, full_name, email, admin, active, seq)"
+                        + " VALUES (?, ?, ?, ?, ?, ?, ?)", user.getUsername(), user.getPassword(), user.getFullName(),
+                        user.getEmail(), user.isAdmin(), user.isActive(), ++seq);
+            }
+            connection.commit();
+            dirty = false;
+            uncommitted = false;
+        } catch (SQLException e) {
+            rollback();
+            throw new IOException("Cannot rewrite " + url, e);
+        }
+    }
+
+    private void write(byte type, Object[] f) throws SQLException {
+        switch (type) {
+            case Journal.REGISTER:
+                update("INSERT INTO users (username, password, full_name, email, admin, active, seq)"
+                        + " VALUES (?, ?, ?, ?, ?, TRUE, ?)", f[0], f[1], f[2], f[3], f[4], ++seq);
+                break;
+            case Journal.UPDATE_USER:
+                update("UPDATE users SET password = ?, full_name = ?, email = ?, active = ? WHERE username = ?",
+                        f[1], f[2], f[3], f[4], f[0]);
+                break;
+            case Journal.ADD_BOOK: {
+                update("INSERT INTO books (id, title, author, genre, publication_year, seq) VALUES (?, ?, ?, ?, ?, ?)",
+                        f[0], f[1], f[2], f[3], f[4], ++seq);
+                int copies = f.length > 5 ? (Integer) f[5] : 1;
+                for (int i = 1; i <= copies; i++) addCopy(f[0], Book.copyId((String) f[0], i));
+                break;
+            }
+            case Journal.REMOVE_BOOK:
+                update("DELETE FROM loans WHERE copy_id IN (SELECT id FROM copies WHERE book_id = ?)", f[0]);
+                update("DELETE FROM copies WHERE book_id = ?", f[0]);
+                update("DELETE FROM ratings WHERE book_id = ?", f[0]);
+                update("DELETE FROM waitlist WHERE book_id = ?", f[0]);
+                update("DELETE FROM books WHERE id = ?", f[0]);
+                break;
+            case Journal.ADD_COPY:
+                addCopy(f[0], f[1]);
+                break;
+            case Journal.REMOVE_COPY:
+                update("DELETE FROM copies WHERE id = ?", f[0]);
+                break;
+            case Journal.BORROW:
+                // Borrowing also uses up any hold on the copy and the patron's place in line
+                update("INSERT INTO loans (copy_id, username, due_date, seq) VALUES (?, ?, ?, ?)", f[0], f[1], f[2], ++seq);
+                update("UPDATE copies SET held_for = NULL, hold_expires = NULL WHERE id = ?", f[0]);
+                update("DELETE FROM waitlist WHERE username = ? AND book_id = (SELECT book_id FROM copies WHERE id = ?)",
+                        f[1], f[0]);
+                break;
+            case Journal.RETURN:
+                update("DELETE FROM loans WHERE copy_id = ?", f[0]);
+                break;
+            case Journal.RENEW:
+                update("UPDATE loans SET due_date = ? WHERE copy_id = ?", f[1], f[0]);
+                break;
+            case Journal.RATE:
+                if (update("UPDATE ratings SET rating = ? WHERE book_id = ? AND username = ?", f[2], f[0], f[1]) == 0) {
+                    update("INSERT INTO ratings (book_id, username, rating) VALUES (?, ?, ?)", f[0], f[1], f[2]);
+                }
+                break;
+            case Journal.PLACE_HOLD:
+                update("INSERT INTO waitlist (book_id, username, seq) VALUES (?, ?, ?)", f[0], f[1], ++seq);
+                break;
+            case Journal.CANCEL_HOLD:
+                update("DELETE FROM waitlist WHERE book_id = ? AND username = ?", f[0], f[1]);
+                break;
+            case Journal.PROMOTE_HOLD:
+                if (f[1] == null) {
+                    update("UPDATE copies SET held_for = NULL, hold_expires = NULL WHERE id = ?", f[0]);
+                } else {
+                    update("UPDATE copies SET held_for = ?, hold_expires = ? WHERE id = ?", f[1], f[2], f[0]);
+                    update("DELETE FROM waitlist WHERE username = ? AND book_id = (SELECT book_id FROM copies WHERE id = ?)",
+                            f[1], f[0]);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void addCopy(Object bookId, Object copyId) throws SQLException {
+        update("INSERT INTO copies (id, book_id, seq) VALUES (?, ?, ?)", copyId, bookId, ++seq);
+    }
+
+    private int update(String sql, Object... params) throws SQLException {
+        PreparedStatement statement = prepare(sql);
+        for (int i = 0; i < params.length; i++) {
+            if (params[i] == null) statement.setNull(i + 1, Types.VARCHAR);
+            else statement.setObject(i + 1, params[i]);
+        }
+        return statement.executeUpdate();
+    }
+
+    private ResultSet query(String sql) throws SQLException {
+        return prepare(sql).executeQuery();
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+        if (connection == null) throw new SQLException("Store is not open: " + url);
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    // The whole change commits as one transaction
+    @Override
+    public void recordBulk(Consumer<Recorder> apply) {
+        try {
+            catalog.exclusive(() -> {
+                synchronized (this) {
+                    apply.accept(this::record);
+                    if (dirty) rewrite();
+                    else commit();
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void flush() {
+        synchronized (this) {
+            if (!dirty) {
+                commit();
+                return;
+            }
+        }
+        resync();
+    }
+
+    // Commits on the caller; the database does its own group commit
+    @Override
+    public CompletableFuture<Void> durable() {
+        flush();
+        synchronized (this) {
+            if (dirty) return CompletableFuture.failedFuture(new IOException("Tables out of sync with the library: " + url));
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private void commit() {
+        if (!uncommitted) return;
+        long start = System.nanoTime();
+        try {
+            connection.commit();
+            uncommitted = false;
+            metrics.persistence("jdbc_commit").since(start);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            metrics.persistence("jdbc_commit").failed();
+            rollback();
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        synchronized (this) {
+            closeConnection();
+        }
+    }
+
+    private void closeConnection() {
+        if (connection == null) return;
+        try {
+            for (PreparedStatement statement : statements.values()) statement.close();
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        statements.clear();
+        connection = null;
+    }
+}
+
+// Keeps nothing; for libraries that only live in memory, such as one rebuilt from the history
+class TransientLibraryStore implements LibraryStore {
+    private Catalog catalog;
+
+    @Override
+    public SnapshotCodec.Snapshot load() {
+        return null;
+    }
+
+    @Override
+    public void open(Catalog catalog, Journal.Handler replay) {
+        this.catalog = catalog;
+    }
+
+    @Override
+    public void record(byte type, Object... fields) {
+    }
+
+    @Override
+    public void recordBulk(Consumer<Recorder> apply) {
+        try {
+            catalog.exclusive(() -> {
+                apply.accept((type, fields) -> { });
+                return null;
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public CompletableFuture<Void> durable() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void close() {
+    }
+}
+
+// Immutable list stored in chunks of up to CHUNK elements. Adding or removing returns
+// a new list that shares every chunk it did not touch, so a new version of a
+// million-entry list costs one chunk and the chunk table rather than a full copy.
+final class ChunkedList<T> extends AbstractList<T> implements RandomAccess {
+    private static final int CHUNK = 1024;
+    private static final ChunkedList<?> EMPTY = new ChunkedList<>(new Object[0][], new int[0]);
+
+    private final Object[][] chunks;
+    // Elements in chunks 0..i; chunks are never empty, so this is strictly increasing
+    private final int[] ends;
+
+    private ChunkedList(Object[][] chunks, int[] ends) {
+        this.chunks = chunks;
+        this.ends = ends;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> ChunkedList<T> empty() {
+        return (ChunkedList<T>) EMPTY;
+    }
+
+    static <T> ChunkedList<T> of(Collection<? extends T> values) {
+        return ChunkedList.<T>empty().withAll(values);
+    }
+
+    @Override
+    public int size() {
+        return ends.length == 0 ? 0 : ends[ends.length - 1];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < 0 || index >= size()) throw new IndexOutOfBoundsException("Index " + index + ", size " + size());
+        int chunk = chunkOf(index);
+        return (T) chunks[chunk][index - start(chunk)];
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int chunk;
+            private int offset;
+
+            @Override
+            public boolean hasNext() {
+                return chunk < chunks.length;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (chunk >= chunks.length) throw new NoSuchElementException();
+                T value = (T) chunks[chunk][offset];
+                if (++offset == chunks[chunk].length) {
+                    chunk++;
+                    offset = 0;
+                }
+                return value;
+            }
+        };
+    }
+
+    ChunkedList<T> with(T value) {
+        return withAll(Collections.singletonList(value));
+    }
+
+    // Tops up the last chunk, then appends full chunks
+    ChunkedList<T> withAll(Collection<? extends T> values) {
+        if (values.isEmpty()) return this;
+        Iterator<? extends T> source = values.iterator();
+        int remaining = values.size();
+        int last = chunks.length - 1;
+        boolean topUp = last >= 0 && chunks[last].length < CHUNK;
+        int added = (Math.max(0, remaining - (topUp ? CHUNK - chunks[last].length : 0)) + CHUNK - 1) / CHUNK;
+        Object[][] newChunks = Arrays.copyOf(chunks, chunks.length + added);
+        int[] newEnds = Arrays.copyOf(ends, ends.length + added);
+        int size = size();
+        int chunk = topUp ? last : chunks.length;
+        for (; remaining > 0; chunk++) {
+            int offset = chunk == last ? chunks[last].length : 0;
+            int length = Math.min(CHUNK, offset + remaining);
+            Object[] filled = chunk == last ? Arrays.copyOf(chunks[last], length) : new Object[length];
+            for (int i = offset; i < length; i++) filled[i] = source.next();
+            remaining -= length - offset;
+            size += length - offset;
+            newChunks[chunk] = filled;
+            newEnds[chunk] = size;
+        }
+        return new ChunkedList<>(newChunks, newEnds);
+    }
+
+    // Finds the value by binary search on a key that rises along the list, first over
+    // the chunks' last elements and then within one chunk. This list if the value is not in it.
+    ChunkedList<T> without(T value, ToLongFunction<? super T> key) {
+        if (chunks.length == 0) return this;
+        long target = key.applyAsLong(value);
+        int chunk = 0;
+        for (int high = chunks.length - 1; chunk < high; ) {
+            int mid = (chunk + high) >>> 1;
+            if (key(key, chunks[mid], chunks[mid].length - 1) < target) chunk = mid + 1;
+            else high = mid;
+        }
+        Object[] values = chunks[chunk];
+        for (int low = 0, high = values.length - 1; low <= high; ) {
+            int mid = (low + high) >>> 1;
+            long found = key(key, values, mid);
+            if (found < target) low = mid + 1;
+            else if (found > target) high = mid - 1;
+            else return values[mid] == value ? withoutAt(chunk, mid) : this;
+        }
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    private long key(ToLongFunction<? super T> key, Object[] values, int i) {
+        return key.applyAsLong((T) values[i]);
+    }
+
+    // A chunk left under half full is merged with a neighbour it fits beside, so
+    // removals do not leave the chunk table full of slivers
+    private ChunkedList<T> withoutAt(int chunk, int offset) {
+        int from = chunk, to = chunk + 1;
+        int length = chunks[chunk].length - 1;
+        if (length < CHUNK / 2) {
+            if (to < chunks.length && length + chunks[to].length <= CHUNK) {
+                length += chunks[to++].length;
+            } else if (from > 0 && length + chunks[from - 1].length <= CHUNK) {
+                length += chunks[--from].length;
+            }
+        }
+        Object[] merged = new Object[length];
+        int n = 0;
+        for (int c = from; c < to; c++) {
+            Object[] values = chunks[c];
+            if (c == chunk) {
+                System.arraycopy(values, 0, merged, n, offset);
+                System.arraycopy(values, offset + 1, merged, n + offset, values.length - offset - 1);
+                n += values.length - 1;
+            } else {
+                System.arraycopy(values, 0, merged, n, values.length);
+                n += values.length;
+            }
+        }
+        int kept = length > 0 ? 1 : 0;
+        Object[][] newChunks = new Object[chunks.length - (to - from) + kept][];
+        int[] newEnds = new int[newChunks.length];
+        System.arraycopy(chunks, 0, newChunks, 0, from);
+        System.arraycopy(ends, 0, newEnds, 0, from);
+        if (kept > 0) {
+            newChunks[from] = merged;
+            newEnds[from] = start(from) + length;
+        }
+        for (int c = to; c < chunks.length; c++) {
+            newChunks[c - (to - from) + kept] = chunks[c];
+            newEnds[c - (to - from) + kept] = ends[c] - 1;
+        }
+        return new ChunkedList<>(newChunks, newEnds);
+    }
+
+    private int chunkOf(int index) {
+        int found = Arrays.binarySearch(ends, index);
+        return found >= 0 ? found + 1 : -found - 1;
+    }
+
+    private int start(int chunk) {
+        return chunk == 0 ? 0 : ends[chunk - 1];
+    }
+}
+
+// One published version of the catalog's book and user lists. It never changes, so
+// readers can hold and iterate it without locking while writers publish newer ones.
+// The books and users themselves are live: use Book.read() for a consistent view of
+// a title's copies.
+final class CatalogView {
+    private final long version;
+    private final ChunkedList<Book> books;
+    private final ChunkedList<User> users;
+
+    CatalogView(long version, ChunkedList<Book> books, ChunkedList<User> users) {
+        this.version = version;
+        this.books = books;
+        this.users = users;
+    }
+
+    public long getVersion() { return version; }
+    public List<Book> getBooks() { return books; }
+    public List<User> getUsers() { return users; }
+
+    CatalogView withBooks(ChunkedList<Book> books) {
+        return new CatalogView(version + 1, books, users);
+    }
+
+    CatalogView withUsers(ChunkedList<User> users) {
+        return new CatalogView(version + 1, books, users);
+    }
+
+    ChunkedList<Book> books() { return books; }
+    ChunkedList<User> users() { return users; }
+}
+
+class Library implements Serializable {
+    private static final long serialVersionUID = 1L;
+    // Only set on a Library read from an old Java-serialized file; a live library
+    // publishes its lists in view
+    private List<Book> books;
+    private List<User> users;
+    private long journalSeq;
+    // Replaced under the catalog write lock, read without any lock
+    private transient volatile CatalogView view;
+    private transient Map<String, Book> bookIndex;
+    private transient Map<String, BookCopy> copyIndex;
+    private transient Map<String, User> userIndex;
+    private transient SearchIndex searchIndex;
+    private transient FacetIndex facetIndex;
+    private transient RatingRanking ratingRanking;
+    private transient RecommendationIndex recommendations;
+    private transient DueDateIndex dueIndex;
+    private transient HoldQueues holds;
+    private transient Map<String, Long> heldBooks;
+    private transient volatile LibraryClock clock;
+    private transient ScheduledExecutorService overdueScheduler;
+    private transient LibraryStore store;
+    private transient HistoryLog history;
+    private transient LibraryMetrics metrics;
+    private transient Thread shutdownHook;
+    // Last Book.catalogOrder handed out; only advanced under the catalog write lock
+    private transient long catalogOrder;
+    // Structural changes (add/remove book, register, snapshots) take the write lock;
+    // borrow/return/rate share the read lock and serialize only on their stripes.
+    private transient ReentrantReadWriteLock catalogLock;
+    private transient ReentrantLock[] bookLocks;
+    private transient ReentrantLock[] userLocks;
+    private static final int LOCK_STRIPES = 64;
+    private static final int EXPORT_PAGE_SIZE = 4096;
+    private static final int IMPORT_BATCH_SIZE = 10000;
+    private static final int EXPORT_BUFFER_SIZE = 1 << 20;
+    private static final DateTimeFormatter EXPORT_DATE_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneId.systemDefault());
+    private static final ExecutorService EXPORT_EXECUTOR = Executors.newFixedThreadPool(3, r -> {
+        Thread t = new Thread(r, "library-export");
+        t.setDaemon(true);
+        return t;
+    });
+    static final int MAX_BOOKS_PER_USER = 5;
+    private static final int LOAN_PERIOD_DAYS = 14;
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    // Overdue fines: 25 cents for each started day late, capped at $20.00 per loan
+    private static final int FINE_CENTS_PER_DAY = 25;
+    private static final int MAX_FINE_CENTS = 2000;
+    private static final int HOLD_PICKUP_DAYS = 3;
+
+    public Library() {
+        this(LibraryStore.configured());
+    }
+
+    public Library(LibraryStore store) {
+        this(store, HistoryLog.configured());
+    }
+
+    // A null history keeps none
+    public Library(LibraryStore store, HistoryLog history) {
+        view = new CatalogView(0, ChunkedList.empty(), ChunkedList.empty());
+        clock = LibraryClock.SYSTEM;
+        holds = new HoldQueues();
+        catalogLock = new ReentrantReadWriteLock();
+        bookLocks = newStripes();
+        userLocks = newStripes();
+        this.store = store;
+        this.history = history;
+        metrics = new LibraryMetrics();
+        registerGauges();
+        loadData();
+        rebuildIndexes();
+        try {
+            store.open(new StoreCatalog(), this::applyJournalRecord);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        shutdownHook = new Thread(this::close, "library-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        if (!"false".equals(System.getProperty("ewu.metrics.jmx"))) metrics.registerMBean();
+        if (history != null && history.isEmpty() && (!view.getBooks().isEmpty() || !view.getUsers().isEmpty())) seedHistory();
+
+        // Recorded like any registration, so the account is still there after a restart
+        if (view.getUsers().isEmpty()) {
+            String hashed = PasswordHasher.hash("admin123");
+            catalogLock.writeLock().lock();
+            try {
+                applyRegister("admin", hashed, "System Admin", "admin@ewu.edu", true);
+                record(null, "admin", Journal.REGISTER, "admin", hashed, "System Admin", "admin@ewu.edu", true);
+            } finally {
+                catalogLock.writeLock().unlock();
+            }
+            flush();
+        }
+    }
+
+    // Unknown usernames are checked against a decoy hash so they take as long as wrong passwords.
+    // A plaintext or outdated stored password is rehashed on the first successful login.
+    public User login(String username, String password) {
+        long start = System.nanoTime();
+        try {
+            if (username == null || password == null) return null;
+            User user = findUserByUsername(username);
+            String stored = user != null ? user.getPassword() : null;
+            if (!PasswordHasher.verify(password, stored) || !user.isActive()) return null;
+            if (PasswordHasher.needsRehash(stored)) {
+                String rehashed = PasswordHasher.hash(password);
+                catalogLock.readLock().lock();
+                ReentrantLock userLock = stripe(userLocks, username);
+                userLock.lock();
+                try {
+                    // Skip if the password changed while we were hashing
+                    if (user.getPassword() != stored) return user;
+                    user.setPassword(rehashed);
+                    recordUser(user);
+                } finally {
+                    userLock.unlock();
+                    catalogLock.readLock().unlock();
+                }
+                flush();
+            }
+            return user;
+        } finally {
+            metrics.operation("login").since(start);
+        }
+    }
+
+    public void changePassword(User user, String password) {
+        long start = System.nanoTime();
+        try {
+            String hashed = PasswordHasher.hash(password);
+            catalogLock.readLock().lock();
+            ReentrantLock userLock = stripe(userLocks, user.getUsername());
+            userLock.lock();
+            try {
+                user.setPassword(hashed);
+                recordUser(user);
+            } finally {
+                userLock.unlock();
+                catalogLock.readLock().unlock();
+            }
+            flush();
+        } finally {
+            metrics.operation("changePassword").since(start);
+        }
+    }
+
+    public boolean register(String username, String password, String fullName, String email, boolean isAdmin) {
+        long start = System.nanoTime();
+        try {
+            if (findUserByUsername(username) != null) return false;
+            // Hashing is deliberately slow, so it happens before taking the write lock
+            String hashed = PasswordHasher.hash(password);
+            catalogLock.writeLock().lock();
+            try {
+                if (findUserByUsername(username) != null) {
+                    return false;
+                }
+                applyRegister(username, hashed, fullName, email, isAdmin);
+                record(null, username, Journal.REGISTER, username, hashed, fullName, email, isAdmin);
+            } finally {
+                catalogLock.writeLock().unlock();
+            }
+            flush();
+            return true;
+        } finally {
+            metrics.operation("register").since(start);
+        }
+    }
+
+    public List<Book> searchBooks(String query) {
+        long start = System.nanoTime();
+        try {
+            return searchIndex.search(query);
+        } finally {
+            metrics.operation("searchBooks").since(start);
+        }
+    }
+
+    // Events in [from, to), oldest first, streamed from disk
+    public void forEachEvent(long from, long to, Consumer<HistoryLog.Event> action) throws IOException {
+        if (history != null) history.scan(from, to, action);
+    }
+
+    // The latest events in [from, to) for a book, oldest first: who had it, holds, ratings, admin changes
+    public List<HistoryLog.Event> getBookHistory(String bookId, long from, long to, int limit) {
+        long start = System.nanoTime();
+        try {
+            return recentEvents("book:" + bookId, from, to, limit);
+        } finally {
+            metrics.operation("getBookHistory").since(start);
+        }
+    }
+
+    public List<HistoryLog.Event> getUserHistory(String username, long from, long to, int limit) {
+        long start = System.nanoTime();
+        try {
+            return recentEvents("user:" + username, from, to, limit);
+        } finally {
+            metrics.operation("getUserHistory").since(start);
+        }
+    }
+
+    private List<HistoryLog.Event> recentEvents(String key, long from, long to, int limit) {
+        ArrayDeque<HistoryLog.Event> recent = new ArrayDeque<>();
+        if (history == null || limit <= 0) return new ArrayList<>();
+        try {
+            history.scan(key, from, to, event -> {
+                if (recent.size() == limit) recent.pollFirst();
+                recent.addLast(event);
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return new ArrayList<>(recent);
+    }
+
+    // Values picked within a facet are OR'ed and the facets AND'ed
+    public List<Book> browseBooks(Map<FacetIndex.Field, Set<String>> selection) {
+        long start = System.nanoTime();
+        try {
+            return facetIndex.filter(selection);
+        } finally {
+            metrics.operation("browseBooks").since(start);
+        }
+    }
+
+    public Map<String, Integer> getFacetCounts(FacetIndex.Field field, Map<FacetIndex.Field, Set<String>> selection) {
+        long start = System.nanoTime();
+        try {
+            return facetIndex.counts(field, selection);
+        } finally {
+            metrics.operation("getFacetCounts").since(start);
+        }
+    }
+
+    public List<Book> getTopRated(int limit) {
+        long start = System.nanoTime();
+        try {
+            return ratingRanking.highestRated(limit);
+        } finally {
+            metrics.operation("getTopRated").since(start);
+        }
+    }
+
+    public List<Book> getMostRated(int limit) {
+        long start = System.nanoTime();
+        try {
+            return ratingRanking.mostRated(limit);
+        } finally {
+            metrics.operation("getMostRated").since(start);
+        }
+    }
+
+    // "Patrons who liked this also liked", closest first
+    public List<Book> getSimilarBooks(String bookId, int limit) {
+        long start = System.nanoTime();
+        try {
+            Book book = findBookById(bookId);
+            return book == null ? Collections.emptyList() : recommendations.similar(book, limit, this::inCatalog);
+        } finally {
+            metrics.operation("getSimilarBooks").since(start);
+        }
+    }
+
+    // Titles like the ones this patron rated well, excluding what they already rated
+    public List<Book> getRecommendations(String username, int limit) {
+        long start = System.nanoTime();
+        try {
+            return recommendations.recommend(username, limit, this::inCatalog);
+        } finally {
+            metrics.operation("getRecommendations").since(start);
+        }
+    }
+
+    // Recommendations refresh in the background; this waits for the ones rated so far
+    void awaitRecommendations() throws InterruptedException {
+        recommendations.awaitCurrent();
+    }
+
+    private boolean inCatalog(Book book) {
+        return findBookById(book.getId()) == book;
+    }
+
+    // A title id borrows any copy, preferring one held for this patron; a copy id
+    // borrows that particular copy
+    public String borrowBook(String bookId, String username) {
+        long start = System.nanoTime();
+        try {
+            String result;
+            catalogLock.readLock().lock();
+            try {
+                result = checkOut(bookId, username);
+            } finally {
+                catalogLock.readLock().unlock();
+            }
+            flush();
+            return result;
+        } finally {
+            metrics.operation("borrowBook").since(start);
+        }
+    }
+
+    // Self-checkout: borrows each title or copy for one patron, with one flush for the
+    // whole batch. The patron's stripe is held throughout, so the borrow limit applies
+    // to the batch as a whole; items that fail are reported and the rest go ahead.
+    public CirculationResult borrowBooks(String username, Collection<String> ids) {
+        long start = System.nanoTime();
+        try {
+            CirculationResult result = new CirculationResult();
+            catalogLock.readLock().lock();
+            try {
+                ReentrantLock userLock = stripe(userLocks, username);
+                userLock.lock();
+                try {
+                    store.recordBatch(() -> {
+                        for (String id : ids) {
+                            String message = checkOut(id, username);
+                            result.add(id, message.startsWith("Book borrowed"), message);
+                        }
+                    });
+                } finally {
+                    userLock.unlock();
+                }
+            } finally {
+                catalogLock.readLock().unlock();
+            }
+            flush();
+            return result;
+        } finally {
+            metrics.operation("borrowBooks").since(start);
+        }
+    }
+
+    // Called with the catalog read lock held
+    private String checkOut(String bookId, String username) {
+        Book book = findBookById(bookId);
+        BookCopy requested = book == null ? findCopyById(bookId) : null;
+        if (requested != null) book = requested.getBook();
+        User user = findUserByUsername(username);
+        
+        if (book == null) return "Book not found!";
+        if (user == null) return "User not found!";
+        
+        // Always user stripe before book stripe, so the borrow limit and the
+        // availability check are both atomic with the state change
+        ReentrantLock userLock = stripe(userLocks, username);
+        ReentrantLock bookLock = stripe(bookLocks, book.getId());
+        userLock.lock();
+        bookLock.lock();
+        try {
+            BookCopy copy = requested;
+            if (copy == null) {
+                copy = book.findHeldFor(username);
+                if (copy == null) copy = book.nextAvailable();
+                if (copy == null && book.hasHolds() && expireHolds(book) > 0) {
+                    copy = book.findHeldFor(username);
+                    if (copy == null) copy = book.nextAvailable();
+                }
+                if (copy == null) return book.hasHolds() ? "Book is on hold for another patron!" : "Book already borrowed!";
+            } else {
+                if (copy.getBorrower() != null) return "Book already borrowed!";
+                Date holdExpires = copy.getHoldExpires();
+                if (holdExpires != null && holdExpires.getTime() < clock.millis()) promoteNextHold(copy);
+                String holder = copy.getHeldFor();
+                if (holder != null && !holder.equals(username)) return "Book is on hold for another patron!";
+            }
+            if (user.getBorrowedBooks().size() >= MAX_BOOKS_PER_USER) return "Borrow limit reached!";
+            
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(clock.millis());
+            cal.add(Calendar.DAY_OF_YEAR, LOAN_PERIOD_DAYS);
+            applyBorrow(copy, user, cal.getTime());
+            record(book.getId(), username, Journal.BORROW, copy.getId(), username, cal.getTimeInMillis());
+            return "Book borrowed! Due: " + String.format("%tF", copy.getDueDate());
+        } finally {
+            bookLock.unlock();
+            userLock.unlock();
+        }
+    }
+
+    public String returnBook(String copyId) {
+        long start = System.nanoTime();
+        try {
+            String result;
+            catalogLock.readLock().lock();
+            try {
+                result = checkIn(copyId);
+            } finally {
+                catalogLock.readLock().unlock();
+            }
+            flush();
+            return result;
+        } finally {
+            metrics.operation("returnBook").since(start);
+        }
+    }
+
+    // Returns bin: checks in each copy, whoever borrowed it, with one flush for the whole
+    // batch. Each item is its own state change; failures are reported per item.
+    public CirculationResult returnBooks(Collection<String> copyIds) {
+        long start = System.nanoTime();
+        try {
+            CirculationResult result = new CirculationResult();
+            catalogLock.readLock().lock();
+            try {
+                store.recordBatch(() -> {
+                    for (String copyId : copyIds) {
+                        String message = checkIn(copyId);
+                        result.add(copyId, message.startsWith("Book returned"), message);
+                    }
+                });
+            } finally {
+                catalogLock.readLock().unlock();
+            }
+            flush();
+            return result;
+        } finally {
+            metrics.operation("returnBooks").since(start);
+        }
+    }
+
+    // Called with the catalog read lock held
+    private String checkIn(String copyId) {
+        BookCopy copy = findCopyById(copyId);
+        if (copy == null) return "Book not found!";
+        Book book = copy.getBook();
+        
+        while (true) {
+            String borrower = copy.getBorrower();
+            if (borrower == null) return "Book wasn't borrowed!";
+            
+            ReentrantLock userLock = stripe(userLocks, borrower);
+            ReentrantLock bookLock = stripe(bookLocks, book.getId());
+            userLock.lock();
+            bookLock.lock();
+            try {
+                // The borrower was read before locking; retry if the loan changed hands
+                if (!borrower.equals(copy.getBorrower())) continue;
+                applyReturn(copy);
+                record(book.getId(), borrower, Journal.RETURN, copyId);
+                if (holds.size(book.getId()) > 0) promoteNextHold(copy);
+                return "Book returned successfully!";
+            } finally {
+                bookLock.unlock();
+                userLock.unlock();
+            }
+        }
+    }
+
+    // Starts a fresh loan period, unless the loan is overdue or someone is waiting for the title
+    public String renewBook(String copyId, String username) {
+        long start = System.nanoTime();
+        try {
+            String result;
+            catalogLock.readLock().lock();
+            try {
+                BookCopy copy = findCopyById(copyId);
+                if (copy == null) return "Book not found!";
+                Book book = copy.getBook();
+
+                ReentrantLock userLock = stripe(userLocks, username);
+                ReentrantLock bookLock = stripe(bookLocks, book.getId());
+                userLock.lock();
+                bookLock.lock();
+                try {
+                    if (!username.equals(copy.getBorrower())) return "You haven't borrowed this book!";
+                    Date due = copy.getDueDate();
+                    if (due != null && due.getTime() < clock.millis()) return "Book is overdue - please return it!";
+                    if (holds.size(book.getId()) > 0) return "Other patrons are waiting for this book!";
+
+                    Calendar cal = Calendar.getInstance();
+                    cal.setTimeInMillis(clock.millis());
+                    cal.add(Calendar.DAY_OF_YEAR, LOAN_PERIOD_DAYS);
+                    applyRenew(copy, cal.getTime());
+                    record(book.getId(), username, Journal.RENEW, copyId, cal.getTimeInMillis());
+                    result = "Book renewed! Due: " + String.format("%tF", copy.getDueDate());
+                } finally {
+                    bookLock.unlock();
+                    userLock.unlock();
+                }
+            } finally {
+                catalogLock.readLock().unlock();
+            }
+            flush();
+            return result;
+        } finally {
+            metrics.operation("renewBook").since(start);
+        }
+    }
+
+    public String rateBook(String bookId, String username, int rating) {
+        long start = System.nanoTime();
+        try {
+            catalogLock.readLock().lock();
+            try {
+                Book book = findBookById(bookId);
+                if (book == null) return "Book not found!";
+            
+                ReentrantLock bookLock = stripe(bookLocks, bookId);
+                bookLock.lock();
+                try {
+                    int userId = UserIds.of(username);
+                    book.addRating(userId, rating);
+                    ratingRanking.update(book);
+                    recommendations.rated(book, userId);
+                    record(bookId, username, Journal.RATE, bookId, username, rating);
+                } finally {
+                    bookLock.unlock();
+                }
+            } finally {
+                catalogLock.readLock().unlock();
+            }
+            flush();
+            return "Rating submitted!";
+        } finally {
+            metrics.operation("rateBook").since(start);
+        }
+    }
+
+    public boolean addBook(String id, String title, String author, String genre, int year) {
+        return addBook(id, title, author, genre, year, 1);
+    }
+
+    public boolean addBook(String id, String title, String author, String genre, int year, int copies) {
+        long start = System.nanoTime();
+        try {
+            catalogLock.writeLock().lock();
+            try {
+                if (copies < 1 || copyIdsTaken(id, copies)) return false;
+                applyAddBook(id, title, author, genre, year, copies);
+                record(id, null, Journal.ADD_BOOK, id, title, author, genre, year, copies);
+            } finally {
+                catalogLock.writeLock().unlock();
+            }
+            flush();
+            return true;
+        } finally {
+            metrics.operation("addBook").since(start);
+        }
+    }
+
+    public boolean removeBook(String bookId) {
+        long start = System.nanoTime();
+        try {
+            catalogLock.writeLock().lock();
+            try {
+                Book book = findBookById(bookId);
+                if (book == null) return false;
+                applyRemoveBook(book);
+                record(bookId, null, Journal.REMOVE_BOOK, bookId);
+            } finally {
+                catalogLock.writeLock().unlock();
+            }
+            flush();
+            return true;
+        } finally {
+            metrics.operation("removeBook").since(start);
+        }
+    }
+
+    public String placeHold(String bookId, String username) {
+        long start = System.nanoTime();
+        try {
+            String result;
+            catalogLock.readLock().lock();
+            try {
+                Book book = findBookById(bookId);
+                if (book == null) return "Book not found!";
+                if (findUserByUsername(username) == null) return "User not found!";
+            
+                // The book stripe makes enqueueing atomic with a concurrent return's promotion
+                ReentrantLock bookLock = stripe(bookLocks, bookId);
+                bookLock.lock();
+                try {
+                    if (findBorrowedCopy(book, username) != null) return "You already have this book!";
+                    if (book.findHeldFor(username) != null) return "This book is already on hold for you!";
+                    if (book.isAvailable()) return "Book is available - borrow it instead!";
+                    if (!holds.enqueue(bookId, username)) return "You are already on the waitlist!";
+                    record(bookId, username, Journal.PLACE_HOLD, bookId, username);
+                    // Every change to the line happens under this stripe, so the patron just added is last
+                    result = "Hold placed! Position in line: " + holds.size(bookId);
+                } finally {
+                    bookLock.unlock();
+                }
+            } finally {
+                catalogLock.readLock().unlock();
+            }
+            flush();
+            return result;
+        } finally {
+            metrics.operation("placeHold").since(start);
+        }
+    }
+
+    public String cancelHold(String bookId, String username) {
+        long start = System.nanoTime();
+        try {
+            catalogLock.readLock().lock();
+            try {
+                Book book = findBookById(bookId);
+                if (book == null) return "Book not found!";
+            
+                ReentrantLock bookLock = stripe(bookLocks, bookId);
+                bookLock.lock();
+                try {
+                    BookCopy held = book.findHeldFor(username);
+                    if (held != null) {
+                        promoteNextHold(held);
+                    } else if (holds.cancel(bookId, username)) {
+                        record(bookId, username, Journal.CANCEL_HOLD, bookId, username);
+                    } else {
+                        return "You have no hold on this book!";
+                    }
+                } finally {
+                    bookLock.unlock();
+                }
+            } finally {
+                catalogLock.readLock().unlock();
+            }
+            flush();
+            return "Hold cancelled.";
+        } finally {
+            metrics.operation("cancelHold").since(start);
+        }
+    }
+
+    public int getHoldPosition(String bookId, String username) {
+        return holds.position(bookId, username);
+    }
+
+    public int getWaitlistSize(String bookId) {
+        return holds.size(bookId);
+    }
+
+    // Releases holds whose pickup window has passed, handing each copy to the next patron in line
+    public int processExpiredHolds() {
+        long start = System.nanoTime();
+        try {
+            long now = clock.millis();
+            int expired = 0;
+            catalogLock.readLock().lock();
+            try {
+                for (Map.Entry<String, Long> held : heldBooks.entrySet()) {
+                    if (held.getValue() >= now) continue;
+                    BookCopy copy = findCopyById(held.getKey());
+                    if (copy == null) continue;
+                    ReentrantLock bookLock = stripe(bookLocks, copy.getBook().getId());
+                    bookLock.lock();
+                    try {
+                        Date expires = copy.getHoldExpires();
+                        if (expires != null && expires.getTime() < now) {
+                            promoteNextHold(copy);
+                            expired++;
+                        }
+                    } finally {
+                        bookLock.unlock();
+                    }
+                }
+            } finally {
+                catalogLock.readLock().unlock();
+            }
+            if (expired > 0) flush();
+            return expired;
+        } finally {
+            metrics.operation("processExpiredHolds").since(start);
+        }
+    }
+
+    // Caller holds the book's stripe
+    private int expireHolds(Book book) {
+        long now = clock.millis();
+        int expired = 0;
+        for (BookCopy copy : book.getCopies()) {
+            Date expires = copy.getHoldExpires();
+            if (expires != null && expires.getTime() < now) {
+                promoteNextHold(copy);
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    // Caller holds the book's stripe. Gives the copy to the next waiting patron
+    // for the pickup window, or puts it back on the shelf if nobody is waiting.
+    private void promoteNextHold(BookCopy copy) {
+        String next = holds.pollNext(copy.getBook().getId());
+        long expires = next == null ? 0 : clock.millis() + HOLD_PICKUP_DAYS * DAY_MILLIS;
+        applyHold(copy, next, expires);
+        record(copy.getBook().getId(), next, Journal.PROMOTE_HOLD, copy.getId(), next, expires);
+    }
+
+    private void applyHold(BookCopy copy, String username, long expires) {
+        if (username == null) {
+            copy.getBook().releaseHold(copy);
+            heldBooks.remove(copy.getId());
+        } else {
+            copy.getBook().hold(copy, username, new Date(expires));
+            heldBooks.put(copy.getId(), expires);
+        }
+        facetIndex.updateAvailability(copy.getBook());
+    }
+
+    // Adds a physical copy to an existing title and returns its id, or null if the title is unknown
+    public String addCopy(String bookId) {
+        long start = System.nanoTime();
+        try {
+            String copyId;
+            catalogLock.writeLock().lock();
+            try {
+                Book book = findBookById(bookId);
+                if (book == null) return null;
+                int n = book.getCopyCount() + 1;
+                do {
+                    copyId = Book.copyId(bookId, n++);
+                } while (copyIndex.containsKey(copyId) || bookIndex.containsKey(copyId));
+                applyAddCopy(book, copyId);
+                record(bookId, null, Journal.ADD_COPY, bookId, copyId);
+                if (holds.size(bookId) > 0) promoteNextHold(copyIndex.get(copyId));
+            } finally {
+                catalogLock.writeLock().unlock();
+            }
+            flush();
+            return copyId;
+        } finally {
+            metrics.operation("addCopy").since(start);
+        }
+    }
+
+    public String removeCopy(String copyId) {
+        long start = System.nanoTime();
+        try {
+            catalogLock.writeLock().lock();
+            try {
+                BookCopy copy = findCopyById(copyId);
+                if (copy == null) return "Copy not found!";
+                if (copy.getBorrower() != null) return "Copy is on loan!";
+                if (copy.getHeldFor() != null) return "Copy is on hold for " + copy.getHeldFor() + "!";
+                applyRemoveCopy(copy);
+                record(copy.getBook().getId(), null, Journal.REMOVE_COPY, copyId);
+            } finally {
+                catalogLock.writeLock().unlock();
+            }
+            flush();
+            return "Copy removed!";
+        } finally {
+            metrics.operation("removeCopy").since(start);
+        }
+    }
+
+    // Persists changes made directly on a User (profile, active flag); passwords go through changePassword
+    public void updateUser(User user) {
+        long start = System.nanoTime();
+        try {
+            catalogLock.readLock().lock();
+            ReentrantLock userLock = stripe(userLocks, user.getUsername());
+            userLock.lock();
+            try {
+                recordUser(user);
+            } finally {
+                userLock.unlock();
+                catalogLock.readLock().unlock();
+            }
+            flush();
+        } finally {
+            metrics.operation("updateUser").since(start);
+        }
+    }
+
+    // Caller holds the user's stripe
+    private void recordUser(User user) {
+        record(null, user.getUsername(), Journal.UPDATE_USER, user.getUsername(), user.getPassword(),
+                user.getFullName(), user.getEmail(), user.isActive());
+    }
+
+    private static ReentrantLock[] newStripes() {
+        ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++) locks[i] = new ReentrantLock();
+        return locks;
+    }
+
+    private static ReentrantLock stripe(ReentrantLock[] locks, String key) {
+        int h = key.hashCode();
+        return locks[(h ^ (h >>> 16)) & (locks.length - 1)];
+    }
+
+    private void applyRegister(String username, String password, String fullName, String email, boolean isAdmin) {
+        User user = new User(username, password, fullName, email, isAdmin);
+        view = view.withUsers(view.users().with(user));
+        userIndex.put(username, user);
+    }
+
+    private void applyBorrow(BookCopy copy, User user, Date dueDate) {
+        Book book = copy.getBook();
+        if (copy.getHeldFor() != null) heldBooks.remove(copy.getId());
+        book.checkOut(copy, user.getUsername(), dueDate);
+        user.addBorrowedBook(copy.getId());
+        dueIndex.add(copy.getId(), user.getUsername(), dueDate.getTime());
+        holds.cancel(book.getId(), user.getUsername());
+        facetIndex.updateAvailability(book);
+    }
+
+    private void applyReturn(BookCopy copy) {
+        User user = findUserByUsername(copy.getBorrower());
+        if (user != null) user.removeBorrowedBook(copy.getId());
+        
+        copy.getBook().checkIn(copy);
+        dueIndex.remove(copy.getId());
+        facetIndex.updateAvailability(copy.getBook());
+    }
+
+    private void applyRenew(BookCopy copy, Date dueDate) {
+        copy.getBook().renew(copy, dueDate);
+        dueIndex.add(copy.getId(), copy.getBorrower(), dueDate.getTime());
+    }
+
+    private void applyAddBook(String id, String title, String author, String genre, int year, int copies) {
+        Book book = new Book(id, title, author, genre, year, copies);
+        book.setCatalogOrder(++catalogOrder);
+        view = view.withBooks(view.books().with(book));
+        bookIndex.put(id, book);
+        for (BookCopy copy : book.getCopies()) copyIndex.put(copy.getId(), copy);
+        searchIndex.add(book);
+        facetIndex.add(book);
+    }
+
+    private void applyRemoveBook(Book book) {
+        for (BookCopy copy : book.getCopies()) {
+            User borrower = findUserByUsername(copy.getBorrower());
+            if (borrower != null) borrower.removeBorrowedBook(copy.getId());
+            copyIndex.remove(copy.getId());
+            dueIndex.remove(copy.getId());
+            heldBooks.remove(copy.getId());
+        }
+        view = view.withBooks(view.books().without(book, Book::getCatalogOrder));
+        bookIndex.remove(book.getId());
+        searchIndex.remove(book);
+        facetIndex.remove(book);
+        ratingRanking.remove(book);
+        recommendations.removed(book);
+        holds.clear(book.getId());
+    }
+
+    private void applyAddCopy(Book book, String copyId) {
+        copyIndex.put(copyId, book.addCopy(copyId));
+        facetIndex.updateAvailability(book);
+    }
+
+    private void applyRemoveCopy(BookCopy copy) {
+        if (copy.getBook().removeCopy(copy)) {
+            copyIndex.remove(copy.getId());
+            facetIndex.updateAvailability(copy.getBook());
+        }
+    }
+
+    private void applyJournalRecord(long seq, byte type, Object[] f) {
+        if (seq <= journalSeq) return;
+        journalSeq = seq;
+        switch (type) {
+            case Journal.REGISTER:
+                if (findUserByUsername((String) f[0]) == null) {
+                    applyRegister((String) f[0], (String) f[1], (String) f[2], (String) f[3], (Boolean) f[4]);
+                }
+                break;
+            case Journal.ADD_BOOK:
+                if (findBookById((String) f[0]) == null) {
+                    applyAddBook((String) f[0], (String) f[1], (String) f[2], (String) f[3], (Integer) f[4],
+                            f.length > 5 ? (Integer) f[5] : 1);
+                }
+                break;
+            case Journal.REMOVE_BOOK: {
+                Book book = findBookById((String) f[0]);
+                if (book != null) applyRemoveBook(book);
+                break;
+            }
+            case Journal.ADD_COPY: {
+                Book book = findBookById((String) f[0]);
+                if (book != null && findCopyById((String) f[1]) == null) applyAddCopy(book, (String) f[1]);
+                break;
+            }
+            case Journal.REMOVE_COPY: {
+                BookCopy copy = findCopyById((String) f[0]);
+                if (copy != null) applyRemoveCopy(copy);
+                break;
+            }
+            case Journal.BORROW: {
+                // Records written before copies existed carry the title id, which is also the first copy's id
+                BookCopy copy = findCopyById((String) f[0]);
+                User user = findUserByUsername((String) f[1]);
+                if (copy != null && user != null && copy.getBorrower() == null) {
+                    applyBorrow(copy, user, new Date((Long) f[2]));
+                }
+                break;
+            }
+            case Journal.RETURN: {
+                BookCopy copy = findCopyById((String) f[0]);
+                if (copy != null && copy.getBorrower() != null) applyReturn(copy);
+                break;
+            }
+            case Journal.RENEW: {
+                BookCopy copy = findCopyById((String) f[0]);
+                if (copy != null && copy.getBorrower() != null) applyRenew(copy, new Date((Long) f[1]));
+                break;
+            }
+            case Journal.RATE: {
+                Book book = findBookById((String) f[0]);
+                if (book != null) {
+                    int userId = UserIds.of((String) f[1]);
+                    book.addRating(userId, (Integer) f[2]);
+                    ratingRanking.update(book);
+                    recommendations.rated(book, userId);
+                }
+                break;
+            }
+            case Journal.PLACE_HOLD:
+                if (findBookById((String) f[0]) != null) holds.enqueue((String) f[0], (String) f[1]);
+                break;
+            case Journal.CANCEL_HOLD:
+                holds.cancel((String) f[0], (String) f[1]);
+                break;
+            case Journal.PROMOTE_HOLD: {
+                BookCopy copy = findCopyById((String) f[0]);
+                if (copy != null) {
+                    if (f[1] != null) holds.cancel(copy.getBook().getId(), (String) f[1]);
+                    applyHold(copy, (String) f[1], (Long) f[2]);
+                }
+                break;
+            }
+            case Journal.UPDATE_USER: {
+                User user = findUserByUsername((String) f[0]);
+                if (user != null) {
+                    user.setPassword((String) f[1]);
+                    user.setFullName((String) f[2]);
+                    user.setEmail((String) f[3]);
+                    user.setActive((Boolean) f[4]);
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private Book findBookById(String id) {
+        return id == null ? null : bookIndex.get(id);
+    }
+
+    private BookCopy findCopyById(String id) {
+        return id == null ? null : copyIndex.get(id);
+    }
+
+    // Copy ids live in the same namespace as title ids
+    private boolean copyIdsTaken(String id, int copies) {
+        if (bookIndex.containsKey(id) || copyIndex.containsKey(id)) return true;
+        for (int i = 2; i <= copies; i++) {
+            String copyId = Book.copyId(id, i);
+            if (bookIndex.containsKey(copyId) || copyIndex.containsKey(copyId)) return true;
+        }
+        return false;
+    }
+
+    // The patron's loan of this title, found through their handful of loans rather than the copies
+    private BookCopy findBorrowedCopy(Book book, String username) {
+        User user = findUserByUsername(username);
+        if (user == null) return null;
+        for (String copyId : new ArrayList<>(user.getBorrowedBooks())) {
+            BookCopy copy = findCopyById(copyId);
+            if (copy != null && copy.getBook() == book) return copy;
+        }
+        return null;
+    }
+    
+    private User findUserByUsername(String username) {
+        return username == null ? null : userIndex.get(username);
+    }
+
+    // Indexes are transient, so they are rebuilt from the lists after every load
+    private void rebuildIndexes() {
+        List<Book> books = view.getBooks();
+        List<User> users = view.getUsers();
+        bookIndex = new ConcurrentHashMap<>(Math.max(16, books.size() * 2));
+        for (Book book : books) bookIndex.putIfAbsent(book.getId(), book);
+        copyIndex = new ConcurrentHashMap<>(Math.max(16, books.size() * 2));
+        for (Book book : books) {
+            for (BookCopy copy : book.getCopies()) copyIndex.putIfAbsent(copy.getId(), copy);
+        }
+        userIndex = new ConcurrentHashMap<>(Math.max(16, users.size() * 2));
+        for (User user : users) userIndex.putIfAbsent(user.getUsername(), user);
+        searchIndex = new SearchIndex(books);
+        facetIndex = new FacetIndex(books);
+        ratingRanking = new RatingRanking();
+        for (Book book : books) {
+            if (book.getRatingCount() > 0) ratingRanking.update(book);
+        }
+        recommendations = new RecommendationIndex(books);
+        dueIndex = new DueDateIndex();
+        heldBooks = new ConcurrentHashMap<>();
+        for (BookCopy copy : copyIndex.values()) {
+            if (copy.getHeldFor() != null) heldBooks.put(copy.getId(), copy.getHoldExpires().getTime());
+            if (copy.getBorrower() != null && copy.getDueDate() != null) {
+                dueIndex.add(copy.getId(), copy.getBorrower(), copy.getDueDate().getTime());
+            }
+        }
+    }
+
+    private void loadData() {
+        long start = System.nanoTime();
+        try {
+            SnapshotCodec.Snapshot saved = store.load();
+            metrics.persistence("load").since(start);
+            if (saved == null) return;
+            for (Book book : saved.books) book.setCatalogOrder(++catalogOrder);
+            view = new CatalogView(0, ChunkedList.of(saved.books), ChunkedList.of(saved.users));
+            this.journalSeq = saved.journalSeq;
+            saved.waitlists.forEach((bookId, waiting) -> waiting.forEach(u -> holds.enqueue(bookId, u)));
+        } catch (IOException e) {
+            e.printStackTrace();
+            metrics.persistence("load").failed();
+        }
+    }
+
+    // Used when migrating a Java-serialized library
+    SnapshotCodec.Snapshot toSnapshot() {
+        CatalogView current = view;
+        if (current != null) return new SnapshotCodec.Snapshot(current.getBooks(), current.getUsers(), journalSeq, new HashMap<>());
+        return new SnapshotCodec.Snapshot(books, users, journalSeq, new HashMap<>());
+    }
+
+    // What the store sees of the library: the write lock and the encoded state
+    private final class StoreCatalog implements LibraryStore.Catalog {
+        @Override
+        public <T> T exclusive(LibraryStore.Action<T> action) throws IOException {
+            catalogLock.writeLock().lock();
+            try {
+                return action.run();
+            } finally {
+                catalogLock.writeLock().unlock();
+            }
+        }
+
+        @Override
+        public byte[] encode(long seq) throws IOException {
+            journalSeq = seq;
+            return SnapshotCodec.encode(view.getBooks(), view.getUsers(), journalSeq, holds);
+        }
+
+        @Override
+        public LibraryMetrics metrics() {
+            return metrics;
+        }
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (overdueScheduler != null) overdueScheduler.shutdownNow();
+        }
+        recommendations.close();
+        store.close();
+        if (history != null) history.close();
+        metrics.unregisterMBean();
+        // A closed library is not kept reachable by its hook
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // Already shutting down, possibly in this very hook
+        }
+    }
+
+    private void registerGauges() {
+        metrics.gauge("books", "Titles in the catalog", this::getBookCount);
+        metrics.gauge("copies", "Physical copies", () -> copyIndex.size());
+        metrics.gauge("users", "Registered accounts", this::getUserCount);
+        metrics.gauge("loans", "Copies on loan", () -> dueIndex.size());
+        metrics.gauge("holds_waiting", "Patrons on waitlists", () -> holds.total());
+        metrics.gauge("search_index_documents", "Titles in the search index", () -> searchIndex.size());
+        metrics.gauge("facet_index_documents", "Titles in the facet index", () -> facetIndex.size());
+        metrics.gauge("search_cache_entries", "Queries in the search result cache", () -> searchIndex.cacheSize());
+        metrics.counter("search_cache_hits_total", "Searches answered from the result cache", () -> searchIndex.cacheHits());
+        metrics.counter("search_cache_misses_total", "Searches that ran against the index", () -> searchIndex.cacheMisses());
+        metrics.counter("search_cache_evictions_total", "Cached results dropped for size or age", () -> searchIndex.cacheEvictions());
+        metrics.counter("search_cache_invalidations_total", "Cached results dropped because a title they match was added or removed",
+                () -> searchIndex.cacheInvalidations());
+        metrics.gauge("recommendation_pending_changes", "Ratings not yet reflected in recommendations",
+                () -> recommendations.pending());
+        metrics.counter("recommendation_rows_total", "Similarity rows computed for recommendations",
+                () -> recommendations.rowsComputed());
+    }
+
+    public LibraryMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Completes once every change made so far is on disk, however the store's durability is configured
+    public CompletableFuture<Void> durable() {
+        return store.durable();
+    }
+
+    // Replays the whole history into a library that persists nothing, e.g. to recover
+    // from a lost snapshot or to check the history against the live state
+    public static Library fromHistory(HistoryLog history) throws IOException {
+        Library library = new Library(new TransientLibraryStore(), null);
+        history.replay(library::applyJournalRecord);
+        return library;
+    }
+
+    // A history started for an existing library opens with events that recreate its current state
+    private void seedHistory() {
+        long now = clock.millis();
+        CatalogView current = view;
+        for (User user : current.getUsers()) {
+            history.append(now, Journal.REGISTER, null, user.getUsername(), user.getUsername(), user.getPassword(),
+                    user.getFullName(), user.getEmail(), user.isAdmin());
+            if (!user.isActive()) {
+                history.append(now, Journal.UPDATE_USER, null, user.getUsername(), user.getUsername(),
+                        user.getPassword(), user.getFullName(), user.getEmail(), false);
+            }
+        }
+        for (Book book : current.getBooks()) {
+            String id = book.getId();
+            history.append(now, Journal.ADD_BOOK, id, null, id, book.getTitle(), book.getAuthor(), book.getGenre(),
+                    book.getPublicationYear(), 0);
+            for (BookCopy copy : book.getCopies()) {
+                history.append(now, Journal.ADD_COPY, id, null, id, copy.getId());
+                String borrower = copy.getBorrower();
+                if (borrower != null) {
+                    Date due = copy.getDueDate();
+                    history.append(now, Journal.BORROW, id, borrower, copy.getId(), borrower, due != null ? due.getTime() : now);
+                } else if (copy.getHeldFor() != null) {
+                    history.append(now, Journal.PROMOTE_HOLD, id, copy.getHeldFor(), copy.getId(), copy.getHeldFor(),
+                            copy.getHoldExpires().getTime());
+                }
+            }
+            for (int entry : book.getRatingEntries()) {
+                String username = UserIds.name(RatingVotes.user(entry));
+                history.append(now, Journal.RATE, id, username, id, username, RatingVotes.vote(entry));
+            }
+            for (String username : holds.waiting(id)) history.append(now, Journal.PLACE_HOLD, id, username, id, username);
+        }
+        history.flush();
+    }
+
+    // The current version of the catalog: the same book and user lists for as long as
+    // the caller holds it, however the catalog changes meanwhile
+    public CatalogView getCatalogView() {
+        return view;
+    }
+
+    // Read-only and not copied; see getCatalogView()
+    public List<Book> getAllBooks() {
+        return view.getBooks();
+    }
+
+    public List<User> getAllUsers() {
+        return view.getUsers();
+    }
+
+    public int getBookCount() {
+        return view.getBooks().size();
+    }
+
+    // One page of the catalog in insertion order, for views that load rows on demand
+    public List<Book> getBooks(int offset, int limit) {
+        return page(view.getBooks(), offset, limit);
+    }
+
+    public int getUserCount() {
+        return view.getUsers().size();
+    }
+
+    public List<User> getUsers(int offset, int limit) {
+        return page(view.getUsers(), offset, limit);
+    }
+
+    private static <T> List<T> page(List<T> all, int offset, int limit) {
+        int from = Math.min(offset, all.size());
+        int to = (int) Math.min(all.size(), (long) from + limit);
+        return all.subList(from, to);
+    }
+
+    public Book getBook(String bookId) { return findBookById(bookId); }
+    public BookCopy getCopy(String copyId) { return findCopyById(copyId); }
+    public BookCopy getBorrowedCopy(String bookId, String username) {
+        Book book = findBookById(bookId);
+        return book == null ? null : findBorrowedCopy(book, username);
+    }
+
+    public List<BookCopy> getBorrowedCopies(String username) {
+        User user = findUserByUsername(username);
+        List<BookCopy> loans = new ArrayList<>();
+        if (user == null) return loans;
+        for (String copyId : new ArrayList<>(user.getBorrowedBooks())) {
+            BookCopy copy = findCopyById(copyId);
+            if (copy != null) loans.add(copy);
+        }
+        return loans;
+    }
+    public User getUser(String username) { return findUserByUsername(username); }
+
+    public void setClock(LibraryClock clock) {
+        this.clock = clock;
+    }
+
+    public boolean isOverdue(String copyId) {
+        DueDateIndex.Loan loan = dueIndex.get(copyId);
+        return loan != null && loan.dueMillis < clock.millis();
+    }
+
+    // Walks only the loans already past due: marks them overdue, assesses the
+    // running fine and returns the reminder batch for this pass
+    public List<OverdueNotice> processOverdue() {
+        long start = System.nanoTime();
+        try {
+            long now = clock.millis();
+            List<OverdueNotice> notices = new ArrayList<>();
+            for (DueDateIndex.Loan loan : dueIndex.dueBefore(now)) {
+                boolean firstNotice = !loan.overdue;
+                loan.overdue = true;
+                int days = (int) ((now - loan.dueMillis + DAY_MILLIS - 1) / DAY_MILLIS);
+                int fine = Math.min(MAX_FINE_CENTS, days * FINE_CENTS_PER_DAY);
+                BookCopy copy = findCopyById(loan.copyId);
+                User user = findUserByUsername(loan.borrower);
+                notices.add(new OverdueNotice(copy != null ? copy.getBook().getId() : null, loan.copyId,
+                        copy != null ? copy.getBook().getTitle() : "",
+                        loan.borrower, user != null ? user.getEmail() : null,
+                        new Date(loan.dueMillis), days, fine, firstNotice));
+            }
+            return notices;
+        } finally {
+            metrics.operation("processOverdue").since(start);
+        }
+    }
+
+    public synchronized void startOverdueScheduler(long period, TimeUnit unit, Consumer<List<OverdueNotice>> sink) {
+        if (overdueScheduler != null) return;
+        overdueScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "library-overdue");
+            t.setDaemon(true);
+            return t;
+        });
+        overdueScheduler.scheduleAtFixedRate(() -> {
+            try {
+                processExpiredHolds();
+                List<OverdueNotice> notices = processOverdue();
+                if (!notices.isEmpty()) sink.accept(notices);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, 0, period, unit);
+    }
+
+    public void exportDataToTextFiles() {
+        try {
+            exportDataToTextFiles(false, null).join();
+        } catch (CompletionException e) {
+            e.getCause().printStackTrace();
+        }
+    }
+
+    // Writes the three export files concurrently from one version of the catalog, so
+    // the files agree with each other. Progress is reported from the export threads.
+    public CompletableFuture<Void> exportDataToTextFiles(boolean gzip, ExportProgress progress) {
+        CatalogView catalog = view;
+        long total = catalog.getBooks().size() + 2L * catalog.getUsers().size();
+        AtomicLong written = new AtomicLong();
+        String suffix = gzip ? ".txt.gz" : ".txt";
+        return CompletableFuture.allOf(
+                CompletableFuture.runAsync(() -> exportAdminsToText(catalog, "EWU_Admins" + suffix, gzip, written, total, progress), EXPORT_EXECUTOR),
+                CompletableFuture.runAsync(() -> exportBooksToText(catalog, "EWU_Books" + suffix, gzip, written, total, progress), EXPORT_EXECUTOR),
+                CompletableFuture.runAsync(() -> exportUsersToText(catalog, "EWU_Users" + suffix, gzip, written, total, progress), EXPORT_EXECUTOR));
+    }
+
+    private void exportAdminsToText(CatalogView catalog, String file, boolean gzip, AtomicLong written, long total, ExportProgress progress) {
+        try (Writer writer = openExportWriter(file, gzip)) {
+            writer.write("Username,Full Name,Email,Active\n");
+            StringBuilder row = new StringBuilder(256);
+            for (int offset = 0; ; offset += EXPORT_PAGE_SIZE) {
+                List<User> page = page(catalog.getUsers(), offset, EXPORT_PAGE_SIZE);
+                for (User user : page) {
+                    if (user.isAdmin()) {
+                        row.setLength(0);
+                        appendCsv(row, user.getUsername()).append(',');
+                        appendCsv(row, user.getFullName()).append(',');
+                        appendCsv(row, user.getEmail()).append(',');
+                        row.append(user.isActive()).append('\n');
+                        writer.append(row);
+                    }
+                }
+                reportProgress(written, page.size(), total, progress);
+                if (page.size() < EXPORT_PAGE_SIZE) break;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void exportBooksToText(CatalogView catalog, String file, boolean gzip, AtomicLong written, long total, ExportProgress progress) {
+        try (Writer writer = openExportWriter(file, gzip)) {
+            writer.write("ID,Title,Author,Genre,Year,Available,Borrower,Due Date,Average Rating,Rating Count,Copies\n");
+            StringBuilder row = new StringBuilder(256);
+            for (int offset = 0; ; offset += EXPORT_PAGE_SIZE) {
+                List<Book> page = page(catalog.getBooks(), offset, EXPORT_PAGE_SIZE);
+                for (Book book : page) writer.append(book.read(b -> appendBookRow(row, b)));
+                reportProgress(written, page.size(), total, progress);
+                if (page.size() < EXPORT_PAGE_SIZE) break;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Replaces the row with the book's, including the borrowers of all copies and the earliest due date
+    private static StringBuilder appendBookRow(StringBuilder row, Book book) {
+        Date dueDate = null;
+        StringJoiner borrowers = new StringJoiner(";");
+        for (BookCopy copy : book.getCopies()) {
+            if (copy.getBorrower() == null) continue;
+            borrowers.add(copy.getBorrower());
+            Date due = copy.getDueDate();
+            if (due != null && (dueDate == null || due.before(dueDate))) dueDate = due;
+        }
+        row.setLength(0);
+        appendCsv(row, book.getId()).append(',');
+        appendCsv(row, book.getTitle()).append(',');
+        appendCsv(row, book.getAuthor()).append(',');
+        appendCsv(row, book.getGenre()).append(',');
+        row.append(book.getPublicationYear()).append(',');
+        row.append(book.isAvailable()).append(',');
+        appendCsv(row, borrowers.toString()).append(',');
+        row.append(dueDate != null ? EXPORT_DATE_FORMAT.format(dueDate.toInstant()) : "").append(',');
+        long rating = Math.round(book.getAverageRating() * 100);
+        row.append(rating / 100).append('.').append(rating % 100 < 10 ? "0" : "").append(rating % 100).append(',');
+        row.append(book.getRatingCount()).append(',');
+        return row.append(book.getCopyCount()).append('\n');
+    }
+
+    private void exportUsersToText(CatalogView catalog, String file, boolean gzip, AtomicLong written, long total, ExportProgress progress) {
+        try (Writer writer = openExportWriter(file, gzip)) {
+            writer.write("Username,Full Name,Email,Active,Borrowed Books\n");
+            StringBuilder row = new StringBuilder(256);
+            for (int offset = 0; ; offset += EXPORT_PAGE_SIZE) {
+                List<User> page = page(catalog.getUsers(), offset, EXPORT_PAGE_SIZE);
+                for (User user : page) {
+                    if (!user.isAdmin()) {
+                        row.setLength(0);
+                        appendCsv(row, user.getUsername()).append(',');
+                        appendCsv(row, user.getFullName()).append(',');
+                        appendCsv(row, user.getEmail()).append(',');
+                        row.append(user.isActive()).append(',');
+                        appendCsv(row, String.join(";", user.getBorrowedBooks())).append('\n');
+                        writer.append(row);
+                    }
+                }
+                reportProgress(written, page.size(), total, progress);
+                if (page.size() < EXPORT_PAGE_SIZE) break;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Relative to -Dewu.export.dir, the working directory by default
+    private static Writer openExportWriter(String file, boolean gzip) throws IOException {
+        Path path = Paths.get(System.getProperty("ewu.export.dir", ""), file);
+        OutputStream out = Channels.newOutputStream(FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        out = gzip ? new GZIPOutputStream(out, EXPORT_BUFFER_SIZE) : new BufferedOutputStream(out, EXPORT_BUFFER_SIZE);
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), EXPORT_BUFFER_SIZE);
+    }
+
+    // RFC 4180: quote fields containing separators, quotes or line breaks
+    static StringBuilder appendCsv(StringBuilder row, String value) {
+        if (value == null) return row;
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) return row.append(value);
+        row.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') row.append('"');
+            row.append(c);
+        }
+        return row.append('"');
+    }
+
+    private static void reportProgress(AtomicLong written, int rows, long total, ExportProgress progress) {
+        long done = written.addAndGet(rows);
+        if (progress != null) progress.update(done, total);
+    }
+
+    // Bulk import of books in the EWU_Books export layout (ID,Title,Author,Genre,Year,...,Copies).
+    // Rows are parsed and validated in batches; everything that passes is inserted
+    // under one write lock and persisted with a single snapshot instead of a
+    // journal record per row. Loan and rating columns are not imported; a missing
+    // Copies column means one copy.
+    public ImportResult importBooks(Reader source) throws IOException {
+        long started = System.nanoTime();
+        try {
+            long start = System.nanoTime();
+            ImportResult result = new ImportResult();
+            CsvReader csv = new CsvReader(source);
+            Set<String> seen = new HashSet<>();
+            List<Book> staged = new ArrayList<>();
+            List<String[]> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+            List<Integer> batchLines = new ArrayList<>(IMPORT_BATCH_SIZE);
+
+            List<String> record = csv.next();
+            if (record != null && !record.isEmpty() && record.get(0).equalsIgnoreCase("ID")) record = csv.next();
+            while (record != null) {
+                result.rowsRead++;
+                batch.add(record.toArray(new String[0]));
+                batchLines.add(csv.getRecordLine());
+                if (batch.size() == IMPORT_BATCH_SIZE) stageBooks(batch, batchLines, seen, staged, result);
+                record = csv.next();
+            }
+            stageBooks(batch, batchLines, seen, staged, result);
+
+            commitBulk(recorder -> {
+                List<Book> added = new ArrayList<>(staged.size());
+                for (Book book : staged) {
+                    if (copyIdsTaken(book.getId(), book.getCopyCount())) {
+                        result.reject(-1, "Book ID " + book.getId() + " was added while importing");
+                        continue;
+                    }
+                    book.setCatalogOrder(++catalogOrder);
+                    added.add(book);
+                    bookIndex.put(book.getId(), book);
+                    for (BookCopy copy : book.getCopies()) copyIndex.put(copy.getId(), copy);
+                    searchIndex.add(book);
+                    facetIndex.add(book);
+                    record(recorder, book.getId(), null, Journal.ADD_BOOK, book.getId(), book.getTitle(), book.getAuthor(),
+                            book.getGenre(), book.getPublicationYear(), book.getCopyCount());
+                    result.imported++;
+                }
+                view = view.withBooks(view.books().withAll(added));
+            });
+            result.elapsedNanos = System.nanoTime() - start;
+            return result;
+        } finally {
+            metrics.operation("importBooks").since(started);
+        }
+    }
+
+    private void stageBooks(List<String[]> batch, List<Integer> lines, Set<String> seen, List<Book> staged, ImportResult result) {
+        for (int i = 0; i < batch.size(); i++) {
+            String[] row = batch.get(i);
+            int line = lines.get(i);
+            if (row.length < 5) {
+                result.reject(line, "Expected at least 5 columns, found " + row.length);
+                continue;
+            }
+            String id = row[0].trim();
+            if (id.isEmpty() || row[1].trim().isEmpty()) {
+                result.reject(line, "Book ID and title are required");
+                continue;
+            }
+            int year;
+            try {
+                year = Integer.parseInt(row[4].trim());
+            } catch (NumberFormatException e) {
+                result.reject(line, "Invalid year '" + row[4] + "'");
+                continue;
+            }
+            int copies = 1;
+            if (row.length > 10 && !row[10].trim().isEmpty()) {
+                try {
+                    copies = Integer.parseInt(row[10].trim());
+                } catch (NumberFormatException e) {
+                    copies = -1;
+                }
+                if (copies < 1) {
+                    result.reject(line, "Invalid copy count '" + row[10] + "'");
+                    continue;
+                }
+            }
+            if (!seen.add(id)) {
+                result.reject(line, "Duplicate book ID " + id + " in file");
+            } else if (copyIdsTaken(id, copies)) {
+                result.reject(line, "Book ID " + id + " already exists");
+            } else {
+                staged.add(new Book(id, row[1], row[2], row[3], year, copies));
+            }
+        }
+        batch.clear();
+        lines.clear();
+    }
+
+    // Bulk import of patrons as Username,Password,Full Name,Email,Active. A header
+    // row may reorder the columns; the EWU_Users / EWU_Admins exports carry no
+    // passwords, so their rows are rejected. Borrowed books are not imported.
+    // Passwords are hashed in parallel before the catalog is locked.
+    public ImportResult importUsers(Reader source, boolean admins) throws IOException {
+        long started = System.nanoTime();
+        try {
+            long start = System.nanoTime();
+            ImportResult result = new ImportResult();
+            CsvReader csv = new CsvReader(source);
+            Set<String> seen = new HashSet<>();
+            List<User> staged = new ArrayList<>();
+            int[] columns = {0, 1, 2, 3, 4};
+
+            List<String> record = csv.next();
+            if (record != null && !record.isEmpty() && record.get(0).trim().equalsIgnoreCase("Username")) {
+                String[] names = {"Username", "Password", "Full Name", "Email", "Active"};
+                for (int c = 0; c < names.length; c++) {
+                    columns[c] = -1;
+                    for (int i = 0; i < record.size(); i++) {
+                        if (record.get(i).trim().equalsIgnoreCase(names[c])) columns[c] = i;
+                    }
+                }
+                record = csv.next();
+            }
+            while (record != null) {
+                result.rowsRead++;
+                int line = csv.getRecordLine();
+                String username = column(record, columns[0]).trim();
+                String password = column(record, columns[1]);
+                if (record.size() < 4) {
+                    result.reject(line, "Expected at least 4 columns, found " + record.size());
+                } else if (username.isEmpty() || password.isEmpty()) {
+                    result.reject(line, "Username and password are required");
+                } else if (!seen.add(username)) {
+                    result.reject(line, "Duplicate username " + username + " in file");
+                } else if (findUserByUsername(username) != null) {
+                    result.reject(line, "Username " + username + " already exists");
+                } else {
+                    User user = new User(username, password, column(record, columns[2]), column(record, columns[3]), admins);
+                    if (columns[4] >= 0 && columns[4] < record.size()) {
+                        user.setActive(!record.get(columns[4]).trim().equalsIgnoreCase("false"));
+                    }
+                    staged.add(user);
+                }
+                record = csv.next();
+            }
+            staged.parallelStream().forEach(user -> user.setPassword(PasswordHasher.hash(user.getPassword())));
+
+            commitBulk(recorder -> {
+                List<User> added = new ArrayList<>(staged.size());
+                for (User user : staged) {
+                    if (findUserByUsername(user.getUsername()) != null) {
+                        result.reject(-1, "Username " + user.getUsername() + " was registered while importing");
+                        continue;
+                    }
+                    added.add(user);
+                    userIndex.put(user.getUsername(), user);
+                    record(recorder, null, user.getUsername(), Journal.REGISTER, user.getUsername(), user.getPassword(),
+                            user.getFullName(), user.getEmail(), user.isAdmin());
+                    if (!user.isActive()) {
+                        record(recorder, null, user.getUsername(), Journal.UPDATE_USER, user.getUsername(), user.getPassword(),
+                                user.getFullName(), user.getEmail(), false);
+                    }
+                    result.imported++;
+                }
+                view = view.withUsers(view.users().withAll(added));
+            });
+            result.elapsedNanos = System.nanoTime() - start;
+            return result;
+        } finally {
+            metrics.operation("importUsers").since(started);
+        }
+    }
+
+    private static String column(List<String> record, int index) {
+        return index >= 0 && index < record.size() ? record.get(index) : "";
+    }
+
+    // Applies a bulk change as one unit of storage; the store holds the catalog
+    // write lock while it runs
+    private void commitBulk(Consumer<LibraryStore.Recorder> apply) {
+        store.recordBulk(apply);
+        flush();
+    }
+
+    // Stores the change and adds it to the history under the book and patron it concerns.
+    // Called with the affected locks held, like the store's own record.
+    private void record(String bookId, String username, byte type, Object... fields) {
+        store.record(type, fields);
+        if (history != null) appendHistory(bookId, username, type, fields);
+    }
+
+    private void record(LibraryStore.Recorder recorder, String bookId, String username, byte type, Object... fields) {
+        recorder.record(type, fields);
+        if (history != null) appendHistory(bookId, username, type, fields);
+    }
+
+    private void appendHistory(String bookId, String username, byte type, Object[] fields) {
+        long start = System.nanoTime();
+        int written = history.append(clock.millis(), type, bookId, username, fields);
+        if (written < 0) metrics.persistence("history").failed();
+        else metrics.persistence("history").record(System.nanoTime() - start, written);
+    }
+
+    // Called after all locks are released
+    private void flush() {
+        long start = System.nanoTime();
+        store.flush();
+        metrics.persistence("store_flush").since(start);
+        if (history != null) {
+            start = System.nanoTime();
+            history.flush();
+            metrics.persistence("history_flush").since(start);
+        }
+    }
+}
+
+interface ExportProgress {
+    void update(long rowsWritten, long totalRows);
+}
+
+class ImportResult {
+    private static final int MAX_REPORTED_REJECTIONS = 1000;
+
+    int rowsRead;
+    int imported;
+    int rejected;
+    long elapsedNanos;
+    final List<String> rejections = new ArrayList<>();
+
+    void reject(int line, String reason) {
+        rejected++;
+        if (rejections.size() < MAX_REPORTED_REJECTIONS) {
+            rejections.add(line > 0 ? "line " + line + ": " + reason : reason);
+        }
+    }
+
+    public int getRowsRead() { return rowsRead; }
+    public int getImported() { return imported; }
+    public int getRejected() { return rejected; }
+    public List<String> getRejections() { return rejections; }
+
+    public double getRowsPerSecond() {
+        return elapsedNanos == 0 ? 0 : rowsRead * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d rows read, %d imported, %d rejected in %.1f s (%.0f rows/s)",
+                rowsRead, imported, rejected, elapsedNanos / 1e9, getRowsPerSecond());
+    }
+}
+
+// Per-item outcome of a batch borrow or return, in the order the items were given
+class CirculationResult {
+    static final class Item {
+        final String id;
+        final boolean succeeded;
+        final String message;
+
+        Item(String id, boolean succeeded, String message) {
+            this.id = id;
+            this.succeeded = succeeded;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return id + ": " + message;
+        }
+    }
+
+    private final List<Item> items = new ArrayList<>();
+    private int succeeded;
+
+    void add(String id, boolean ok, String message) {
+        items.add(new Item(id, ok, message));
+        if (ok) succeeded++;
+    }
+
+    public List<Item> getItems() { return items; }
+    public int getSucceeded() { return succeeded; }
+    public int getFailed() { return items.size() - succeeded; }
+
+    public List<Item> getFailures() {
+        List<Item> failures = new ArrayList<>();
+        for (Item item : items) {
+            if (!item.succeeded) failures.add(item);
+        }
+        return failures;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d of %d succeeded", succeeded, items.size());
+    }
+}
+
+// Streaming RFC 4180 reader matching what Library.appendCsv writes:
+// quoted fields may contain commas, doubled quotes and line breaks
+class CsvReader {
+    private final Reader in;
+    private int line = 1;
+    private int recordLine;
+    private int pushback = -2;
+
+    CsvReader(Reader in) {
+        this.in = in instanceof BufferedReader ? in : new BufferedReader(in, 1 << 16);
+    }
+
+    int getRecordLine() {
+        return recordLine;
+    }
+
+    List<String> next() throws IOException {
+        int c = read();
+        while (c == '\r' || c == '\n') c = read();
+        if (c == -1) return null;
+        recordLine = line;
+
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) throw new IOException("Unterminated quoted field starting on line " + recordLine);
+                if (c == '"') {
+                    int n = read();
+                    if (n == '"') {
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                        c = n;
+                        continue;
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n' || c == '\r' || c == -1) {
+                if (c == '\r') {
+                    int n = read();
+                    if (n != '\n') pushback = n;
+                }
+                fields.add(field.toString());
+                return fields;
+            } else {
+                field.append((char) c);
+            }
+            c = read();
+        }
+    }
+
+    private int read() throws IOException {
+        int c;
+        if (pushback != -2) {
+            c = pushback;
+            pushback = -2;
+        } else {
+            c = in.read();
+        }
+        if (c == '\n') line++;
+        return c;
+    }
+}
+
+// Bearer tokens issued at login and recently verified Basic credentials, held
+// in one bounded LRU with an idle timeout so authenticated requests skip the
+// password hash. An entry is only honoured while the user's stored hash and
+// active flag are unchanged, so a password reset or deactivation revokes it.
+class SessionCache {
+    private static final class Session {
+        final User user;
+        final String credential;
+        long expires;
+
+        Session(User user, long expires) {
+            this.user = user;
+            this.credential = user.getPassword();
+            this.expires = expires;
+        }
+    }
+
+    private final int capacity;
+    private final long idleMillis;
+    private final byte[] secret = new byte[32];
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Session> sessions;
+
+    SessionCache(int capacity, long idleMillis) {
+        this.capacity = capacity;
+        this.idleMillis = idleMillis;
+        this.sessions = new LinkedHashMap<String, Session>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                return size() > SessionCache.this.capacity;
+            }
+        };
+        random.nextBytes(secret);
+    }
+
+    String issue(User user) {
+        byte[] token = new byte[32];
+        random.nextBytes(token);
+        String key = Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+        put(key, user);
+        return key;
+    }
+
+    // Cache key for a username/password pair; keyed by this process's secret so
+    // the cache never holds anything that could be checked offline
+    String credentialKey(String username, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(secret);
+            digest.update(username.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(password.getBytes(StandardCharsets.UTF_8));
+            return "basic:" + Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    synchronized void put(String key, User user) {
+        sessions.put(key, new Session(user, System.currentTimeMillis() + idleMillis));
+    }
+
+    synchronized User validate(String key) {
+        Session session = sessions.get(key);
+        if (session == null) return null;
+        long now = System.currentTimeMillis();
+        if (session.expires < now || !session.user.isActive() || session.user.getPassword() != session.credential) {
+            sessions.remove(key);
+            return null;
+        }
+        session.expires = now + idleMillis;
+        return session.user;
+    }
+
+    synchronized void revoke(String key) {
+        sessions.remove(key);
+    }
+}
+
+// Token buckets per client address and per username. Every login attempt that
+// has to verify a password takes one token from each; tokens refill steadily,
+// so a credential-stuffing run is held to the refill rate.
+class LoginThrottle {
+    static final class Exceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Exceeded() {
+            super("Too many login attempts, try again later", null, false, false);
+        }
+    }
+
+    private static final class Bucket {
+        double tokens;
+        long updated;
+
+        Bucket(double tokens, long updated) {
+            this.tokens = tokens;
+            this.updated = updated;
+        }
+    }
+
+    private static final int MAX_BUCKETS = 100_000;
+
+    private final int addressBurst;
+    private final double addressPerMilli;
+    private final int userBurst;
+    private final double userPerMilli;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    LoginThrottle(int addressBurst, int addressPerMinute, int userBurst, int userPerMinute) {
+        this.addressBurst = addressBurst;
+        this.addressPerMilli = addressPerMinute / 60_000.0;
+        this.userBurst = userBurst;
+        this.userPerMilli = userPerMinute / 60_000.0;
+    }
+
+    static LoginThrottle fromProperties() {
+        return new LoginThrottle(
+                Integer.getInteger("ewu.auth.addressBurst", 30), Integer.getInteger("ewu.auth.addressPerMinute", 60),
+                Integer.getInteger("ewu.auth.userBurst", 10), Integer.getInteger("ewu.auth.userPerMinute", 10));
+    }
+
+    void acquire(String address, String username) {
+        long now = System.currentTimeMillis();
+        if (buckets.size() > MAX_BUCKETS) evictFull(now);
+        // Both buckets are charged even when the first refuses, so probing one
+        // username from many addresses still drains that username's bucket
+        boolean addressOk = take("ip:" + address, addressBurst, addressPerMilli, now);
+        boolean userOk = take("user:" + username, userBurst, userPerMilli, now);
+        if (!addressOk || !userOk) throw new Exceeded();
+    }
+
+    private boolean take(String key, int burst, double perMilli, long now) {
+        Bucket bucket = buckets.computeIfAbsent(key, k -> new Bucket(burst, now));
+        synchronized (bucket) {
+            bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.updated) * perMilli);
+            bucket.updated = now;
+            if (bucket.tokens < 1) return false;
+            bucket.tokens--;
+            return true;
+        }
+    }
+
+    // Buckets that would have refilled completely carry no state worth keeping
+    private void evictFull(long now) {
+        buckets.entrySet().removeIf(e -> {
+            boolean user = e.getKey().startsWith("user:");
+            double perMilli = user ? userPerMilli : addressPerMilli;
+            int burst = user ? userBurst : addressBurst;
+            synchronized (e.getValue()) {
+                return e.getValue().tokens + (now - e.getValue().updated) * perMilli >= burst;
+            }
+        });
+    }
+}
+
+// Micro-benchmarks for the library's hot paths over deterministic synthetic catalogs:
+//   java EWULibraryManagementSystem --bench [<books>x<users> ...]
+// Each benchmark gets warmup iterations and then timed ones, JMH-style, and reports
+// ns/op, allocated bytes/op and GC activity. Latency benchmarks time every call, on one
+// or more threads at once, and also report the median and 99th percentile. -Dewu.bench.only=<name>,... runs just the
+// named benchmarks and builds only the fixtures they need. Results go to -Dewu.bench.out; when
+// -Dewu.bench.baseline names an earlier results file, each result is compared with it
+// and the run fails if anything got slower by more than -Dewu.bench.threshold percent.
+class LibraryBenchmark {
+    private static final String[] DEFAULT_SCALES = {"1000x100", "100000x10000", "1000000x1000000"};
+    private static final int WARMUP = Integer.getInteger("ewu.bench.warmup", 3);
+    private static final int ITERATIONS = Integer.getInteger("ewu.bench.iterations", 5);
+    private static final long ITERATION_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("ewu.bench.iterationMillis", 1000));
+    private static final double THRESHOLD = Double.parseDouble(System.getProperty("ewu.bench.threshold", "10"));
+    private static final long SEED = Long.getLong("ewu.bench.seed", 42);
+    private static final int RATINGS = Integer.getInteger("ewu.bench.ratings", 1000000);
+    // A JDBC URL with %s where a database file path goes, e.g. jdbc:h2:%s
+    private static final String JDBC_URL = System.getProperty("ewu.bench.jdbcUrl");
+    private static final Set<String> ONLY = new HashSet<>(Arrays.asList(
+            System.getProperty("ewu.bench.only", "").split("\\s*,\\s*")));
+    static final String PASSWORD = "bench-password";
+    private static final String[] GENRES = {"Fiction", "Mystery", "Science", "History", "Poetry", "Biography",
+            "Fantasy", "Romance", "Travel", "Philosophy", "Art", "Music", "Cooking", "Law", "Medicine",
+            "Economics", "Drama", "Horror", "Religion", "Sports"};
+    private static final String[] SYLLABLES = {"ka", "lo", "mi", "ra", "ten", "vor", "si", "dun", "el", "ba",
+            "qui", "zor", "pa", "ne", "tal", "os", "ri", "gan", "fe", "lu"};
+
+    interface Operation {
+        long run(int i) throws Exception;
+    }
+
+    static final class Result {
+        final String key;
+        final double nanosPerOp;
+        final double error;
+        final double bytesPerOp;
+        final long gcCount;
+        final long gcMillis;
+        // NaN unless every call was timed
+        final double p50;
+        final double p99;
+
+        Result(String key, double nanosPerOp, double error, double bytesPerOp, long gcCount, long gcMillis,
+                double p50, double p99) {
+            this.key = key;
+            this.nanosPerOp = nanosPerOp;
+            this.error = error;
+            this.bytesPerOp = bytesPerOp;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+            this.p50 = p50;
+            this.p99 = p99;
+        }
+    }
+
+    private static volatile long sink;
+
+    // Returns the process exit status: 1 if a result regressed against the baseline
+    static int run(String[] args) throws Exception {
+        String[] scales = args.length > 0 ? args : DEFAULT_SCALES;
+        Path scratch = Files.createTempDirectory("ewu-bench");
+        System.setProperty("ewu.export.dir", scratch.toString());
+        List<Result> results = new ArrayList<>();
+        // Measured once per scale rather than per operation
+        Map<String, Double> figures = new LinkedHashMap<>();
+        System.out.printf("%-18s %-18s %14s %8s %12s %12s %12s %6s %8s%n", "scale", "benchmark", "ns/op", "error",
+                "p50 ns", "p99 ns", "B/op", "gc", "gc ms");
+        for (String scale : scales) {
+            String[] parts = scale.split("x");
+            int books = Integer.parseInt(parts[0]), users = Integer.parseInt(parts[1]);
+            results.addAll(runScale(scale, books, users, scratch.resolve(scale), figures));
+        }
+        deleteTree(scratch);
+        write(Paths.get(System.getProperty("ewu.bench.out", "EWULibraryManagementSystem.bench.properties")), results, figures);
+        String baseline = System.getProperty("ewu.bench.baseline");
+        return baseline == null ? 0 : compare(results, Paths.get(baseline));
+    }
+
+    private static List<Result> runScale(String scale, int bookCount, int userCount, Path scratch,
+            Map<String, Double> figures) throws Exception {
+        Files.createDirectories(scratch);
+        SnapshotCodec.Snapshot generated = generate(bookCount, userCount, SEED);
+        Library library = new Library(new TransientLibraryStore() {
+            @Override
+            public SnapshotCodec.Snapshot load() {
+                return generated;
+            }
+        }, null);
+        String[] queries = queries(generated.books, SEED);
+        Path snapshot = scratch.resolve("snapshot.dat");
+        Files.write(snapshot, encode(library));
+        List<Runnable> cleanup = new ArrayList<>();
+
+        Map<String, Operation> benchmarks = new LinkedHashMap<>();
+        // Benchmarks whose calls are timed one by one, and on how many threads
+        Map<String, Integer> timed = new HashMap<>();
+        // Primary-key lookups, and the stream over the catalog they replaced, for keys
+        // spread across the catalog and formatted up front
+        String[] bookKeys = new String[4096], userKeys = new String[4096];
+        for (int i = 0; i < bookKeys.length; i++) {
+            bookKeys[i] = bookId((int) ((i * 7919L) % bookCount));
+            userKeys[i] = userId((int) ((i * 7919L) % userCount));
+        }
+        benchmarks.put("lookupBook", i -> library.getBook(bookKeys[i & 4095]) != null ? 1 : 0);
+        benchmarks.put("lookupBookScan", i -> library.getAllBooks().stream()
+                .filter(b -> b.getId().equals(bookKeys[i & 4095])).findFirst().isPresent() ? 1 : 0);
+        benchmarks.put("lookupUser", i -> library.getUser(userKeys[i & 4095]) != null ? 1 : 0);
+        benchmarks.put("lookupUserScan", i -> library.getAllUsers().stream()
+                .filter(u -> u.getUsername().equals(userKeys[i & 4095])).findFirst().isPresent() ? 1 : 0);
+        benchmarks.put("searchBooks", i -> library.searchBooks(queries[i % queries.length]).size());
+        timed.put("searchBooks", 1);
+        // The lowercase-and-contains pass over four fields per title that the index replaced
+        benchmarks.put("searchScan", i -> {
+            String query = queries[i % queries.length].toLowerCase();
+            return library.getAllBooks().stream()
+                    .filter(b -> b.getTitle().toLowerCase().contains(query) || b.getAuthor().toLowerCase().contains(query)
+                            || b.getGenre().toLowerCase().contains(query) || b.getId().toLowerCase().contains(query))
+                    .collect(java.util.stream.Collectors.toList()).size();
+        });
+        timed.put("searchScan", 1);
+        // A few popular queries, with one in ten operations adding or removing a title that matches them
+        benchmarks.put("searchMixed", i -> {
+            if (i % 10 != 9) return library.searchBooks(queries[(i % 7) * (i % 5)]).size();
+            String id = "M" + bookId((i / 10) % 64);
+            Book popular = generated.books.get((i / 10) % bookCount);
+            if (library.addBook(id, popular.getTitle(), popular.getAuthor(), popular.getGenre(), popular.getPublicationYear())) return 1;
+            return library.removeBook(id) ? 2 : 0;
+        });
+        benchmarks.put("borrowReturn", i -> borrowReturn(library, i, bookCount, userCount));
+        // Two patrons racing for eight single-copy titles, so each keeps running into the loan
+        // limit. A call borrows the title for its patron, or returns it if the patron has it.
+        // A successful borrow claims the title and a place in the patron's count, failing the
+        // run on a double loan or a patron over the limit; both are released before the return.
+        AtomicReferenceArray<String> holders = new AtomicReferenceArray<>(8);
+        AtomicIntegerArray loans = new AtomicIntegerArray(2);
+        Operation contendedBorrow = i -> {
+            int title = i % 8, patron = (i / 8) % 2;
+            String bookId = bookId(bookCount - 1 - title), username = userId(userCount - 1 - patron);
+            if (library.borrowBook(bookId, username).startsWith("Book borrowed")) {
+                if (!holders.compareAndSet(title, null, username)) {
+                    throw new IllegalStateException(bookId + " lent to " + username + " while out to " + holders.get(title));
+                }
+                if (loans.incrementAndGet(patron) > Library.MAX_BOOKS_PER_USER) {
+                    throw new IllegalStateException(username + " has more than " + Library.MAX_BOOKS_PER_USER + " loans");
+                }
+                return 1;
+            }
+            if (!holders.compareAndSet(title, username, null)) return 0;
+            loans.decrementAndGet(patron);
+            return library.returnBook(Book.copyId(bookId, 1)).startsWith("Book returned") ? 2 : 0;
+        };
+        for (int threads : new int[] {1, 8, 32}) {
+            benchmarks.put("contendedBorrow" + threads, contendedBorrow);
+            timed.put("contendedBorrow" + threads, threads);
+        }
+        // Readers going through the published catalog to 64 titles that a writer thread keeps
+        // lending out and taking back, each reading a title's copies and availability
+        // together. The writer only runs while readers have been active in the last 50 ms,
+        // so it stays out of the other benchmarks.
+        if (selected("catalogRead1", "catalogRead2", "catalogRead4", "catalogRead8")) {
+            int first = Math.max(0, bookCount - 100);
+            AtomicLong lastRead = new AtomicLong();
+            AtomicBoolean stopped = new AtomicBoolean();
+            Thread writer = new Thread(() -> {
+                String patron = userId(Math.max(0, userCount - 3));
+                for (int j = 0; !stopped.get(); j++) {
+                    if (System.nanoTime() - lastRead.get() > TimeUnit.MILLISECONDS.toNanos(50)) {
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                        continue;
+                    }
+                    String bookId = bookId(first + j % 64);
+                    library.borrowBook(bookId, patron);
+                    library.returnBook(Book.copyId(bookId, 1));
+                }
+            }, "bench-writer");
+            writer.setDaemon(true);
+            writer.start();
+            cleanup.add(() -> {
+                stopped.set(true);
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            Operation catalogRead = i -> {
+                if ((i & 1023) == 0) lastRead.set(System.nanoTime());
+                Book book = library.getAllBooks().get(first + i % 64);
+                int[] seen = book.read(b -> {
+                    int out = 0;
+                    for (BookCopy copy : b.getCopies()) {
+                        if (copy.getBorrower() != null) out++;
+                    }
+                    return new int[] {out, b.getAvailableCopies()};
+                });
+                if (seen[0] + seen[1] > book.getCopyCount()) throw new IllegalStateException(book.getId() + " read mid-loan");
+                return seen[0];
+            };
+            for (int threads : new int[] {1, 2, 4, 8}) {
+                benchmarks.put("catalogRead" + threads, catalogRead);
+                timed.put("catalogRead" + threads, threads);
+            }
+        }
+        // A title added at the end of the catalog and taken out again, so the removal has to
+        // find it at the far end of the published book list
+        benchmarks.put("addRemoveBook", i -> {
+            String bookId = "bench-added-" + i;
+            library.addBook(bookId, "Added Title", "Bench Author", GENRES[i % GENRES.length], 2000);
+            return library.removeBook(bookId) ? 1 : 0;
+        });
+        benchmarks.put("rateBook", i -> library.rateBook(bookId(i % bookCount), userId((i / bookCount) % userCount),
+                1 + i % 5).length());
+        // Votes piling onto eight titles at once, from one thread and from eight
+        Operation rateHot = i -> library.rateBook(bookId(i % 8), userId(i % userCount), 1 + i % 5).length();
+        for (int threads : new int[] {1, 8}) {
+            benchmarks.put("rateHot" + threads, rateHot);
+            timed.put("rateHot" + threads, threads);
+        }
+        benchmarks.put("login", i -> library.login(userId(i % userCount), PASSWORD) != null ? 1 : 0);
+        // Credential stuffing, wrong passwords throughout, through the limits the server puts in
+        // front of login: every attempt from one address, one account tried from a new address
+        // each time, and a new address and account each time, which neither limit can refuse.
+        // A refused attempt never reaches the password hash; how many got through is reported
+        // after the timings.
+        Map<String, long[]> stuffing = new LinkedHashMap<>();
+        for (String attack : new String[] {"stuffOneAddress", "stuffOneUser", "stuffSpread"}) {
+            if (!selected(attack)) continue;
+            LoginThrottle throttle = LoginThrottle.fromProperties();
+            long[] attempts = new long[2];
+            stuffing.put(attack, attempts);
+            benchmarks.put(attack, i -> {
+                String address = attack.equals("stuffOneAddress") ? "203.0.113.7"
+                        : "10." + (i >>> 16 & 255) + "." + (i >>> 8 & 255) + "." + (i & 255);
+                String username = attack.equals("stuffOneUser") ? userId(0) : userId(i % userCount);
+                attempts[0]++;
+                try {
+                    throttle.acquire(address, username);
+                } catch (LoginThrottle.Exceeded e) {
+                    return 0;
+                }
+                attempts[1]++;
+                return library.login(username, "not-" + PASSWORD) == null ? 1 : 2;
+            });
+        }
+        benchmarks.put("saveData", i -> {
+            byte[] image = encode(library);
+            try (FileChannel channel = FileChannel.open(scratch.resolve("save.dat"), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(image);
+                while (buffer.hasRemaining()) channel.write(buffer);
+                channel.force(true);
+            }
+            return image.length;
+        });
+        benchmarks.put("loadData", i -> SnapshotCodec.decode(snapshot).books.size());
+        // From the snapshot file to a library ready to serve, indexes and all
+        Path coldDirectory = Files.createDirectories(scratch.resolve("cold"));
+        Files.copy(snapshot, coldDirectory.resolve("EWULibraryManagementSystem.dat"));
+        benchmarks.put("coldStart", i -> {
+            Library cold = new Library(new FileLibraryStore(coldDirectory, false), null);
+            int books = cold.getBookCount();
+            cold.close();
+            return books;
+        });
+        benchmarks.put("export", i -> {
+            library.exportDataToTextFiles(false, null).join();
+            return 1;
+        });
+        // Borrow and return against the snapshot and journal files, returning once the
+        // change is queued for the journal writer, and once it is on disk
+        if (selected("journaledAsync", "journaledSync")) {
+            Library queued = journaled(scratch.resolve("queued"), snapshot, false);
+            Library durable = journaled(scratch.resolve("durable"), snapshot, true);
+            cleanup.add(queued::close);
+            cleanup.add(durable::close);
+            benchmarks.put("journaledAsync", i -> borrowReturn(queued, i, bookCount, userCount));
+            benchmarks.put("journaledSync", i -> borrowReturn(durable, i, bookCount, userCount));
+        }
+        // Self-checkout and the returns bin on a library that syncs every flush. A call lends
+        // out a run of titles, five to a patron, and takes them all back: circulationSingle
+        // one title at a time, circulation<n> through borrowBooks and one returnBooks of n
+        // copies. Divide by n to compare per item.
+        if (selected("circulationSingle", "circulation1", "circulation10", "circulation100", "circulation1000")) {
+            Library batched = journaled(scratch.resolve("batched"), snapshot, true);
+            cleanup.add(batched::close);
+            benchmarks.put("circulationSingle", i -> borrowReturn(batched, i, bookCount, userCount));
+            for (int size : new int[] {1, 10, 100, 1000}) {
+                benchmarks.put("circulation" + size, i -> {
+                    List<String> lent = new ArrayList<>(size);
+                    for (int first = 0; first < size; first += Library.MAX_BOOKS_PER_USER) {
+                        List<String> titles = new ArrayList<>();
+                        for (int n = first; n < Math.min(size, first + Library.MAX_BOOKS_PER_USER); n++) {
+                            titles.add(bookId((int) (((long) i * size + n) % bookCount)));
+                        }
+                        String patron = userId((int) (((long) i * size + first) / Library.MAX_BOOKS_PER_USER % userCount));
+                        for (CirculationResult.Item item : batched.borrowBooks(patron, titles).getItems()) {
+                            if (item.succeeded) lent.add(Book.copyId(item.id, 1));
+                        }
+                    }
+                    return batched.returnBooks(lent).getSucceeded();
+                });
+            }
+        }
+        // The same catalog in a database, given -Dewu.bench.jdbcUrl and its driver on the
+        // classpath: startup reading every table back, to set against coldStart, and borrow
+        // and return committing each change, to set against journaledSync
+        if (JDBC_URL != null && selected("coldStartJdbc")) {
+            String url = String.format(JDBC_URL, scratch.resolve("jdbc-cold"));
+            populate(url, generated);
+            benchmarks.put("coldStartJdbc", i -> {
+                Library cold = new Library(new JdbcLibraryStore(url), null);
+                int books = cold.getBookCount();
+                cold.close();
+                return books;
+            });
+        }
+        if (JDBC_URL != null && selected("borrowReturnJdbc")) {
+            String url = String.format(JDBC_URL, scratch.resolve("jdbc-live"));
+            populate(url, generated);
+            Library stored = new Library(new JdbcLibraryStore(url), null);
+            cleanup.add(stored::close);
+            benchmarks.put("borrowReturnJdbc", i -> borrowReturn(stored, i, bookCount, userCount));
+        }
+        // A return with a line of 10 and of 10,000 patrons (fewer if the scale has too few)
+        // behind a single-copy title, over a copy of the catalog. A call has the patron the
+        // copy is held for pick it up, returns it to the next in line, and puts the first
+        // patron back at the end, so the line stays the same length. holdCancel10000 has a
+        // patron from anywhere in the 10,000 cancel and rejoin at the end.
+        if (selected("holdReturn10", "holdReturn10000", "holdCancel10000")) {
+            SnapshotCodec.Snapshot queued = SnapshotCodec.decode(snapshot);
+            Library holding = new Library(new TransientLibraryStore() {
+                @Override
+                public SnapshotCodec.Snapshot load() {
+                    return queued;
+                }
+            }, null);
+            cleanup.add(holding::close);
+            int[] lines = {10, 10000};
+            for (int t = 0; t < lines.length; t++) {
+                String bookId = bookId(t), copyId = Book.copyId(bookId, 1);
+                holding.borrowBook(bookId, userId(0));
+                for (int u = 1; u <= Math.min(lines[t], userCount - 1); u++) holding.placeHold(bookId, userId(u));
+                holding.returnBook(copyId);
+                benchmarks.put("holdReturn" + lines[t], i -> {
+                    String patron = holding.getCopy(copyId).getHeldFor();
+                    if (!holding.borrowBook(bookId, patron).startsWith("Book borrowed")
+                            || !holding.returnBook(copyId).startsWith("Book returned")) {
+                        throw new IllegalStateException(bookId + " did not pass to the next patron in line");
+                    }
+                    return holding.placeHold(bookId, patron).length();
+                });
+            }
+            String bookId = bookId(lines.length);
+            int line = Math.min(10000, userCount - 1);
+            holding.borrowBook(bookId, userId(0));
+            for (int u = 1; u <= line; u++) holding.placeHold(bookId, userId(u));
+            benchmarks.put("holdCancel10000", i -> {
+                // Hashed, since a fixed stride would keep picking whoever rejoined first
+                String patron = userId(1 + Math.floorMod(Long.hashCode(i * 0x9E3779B97F4A7C15L), line));
+                if (!holding.cancelHold(bookId, patron).equals("Hold cancelled.")) {
+                    throw new IllegalStateException(patron + " was not waiting for " + bookId);
+                }
+                return holding.placeHold(bookId, patron).length();
+            });
+        }
+        // Recommendations over a second copy of the catalog carrying RATINGS votes (fewer if
+        // the scale is too small for them): lookups, one vote through to refreshed lists,
+        // and a full build from scratch over a third copy. The top-ten lists come from the
+        // same copy, next to the sort over the catalog they replaced.
+        int ratingCount = (int) Math.min(RATINGS, (long) bookCount * userCount / 10);
+        if (selected("similarBooks", "recommend", "rateRecommend", "topRated", "mostRated", "topRatedScan")) {
+            SnapshotCodec.Snapshot ratedCatalog = generate(bookCount, userCount, SEED);
+            rate(ratedCatalog.books, userCount, ratingCount, SEED);
+            Library rated = new Library(new TransientLibraryStore() {
+                @Override
+                public SnapshotCodec.Snapshot load() {
+                    return ratedCatalog;
+                }
+            }, null);
+            rated.awaitRecommendations();
+            cleanup.add(rated::close);
+            benchmarks.put("similarBooks", i -> rated.getSimilarBooks(bookId(i % bookCount), 10).size());
+            benchmarks.put("recommend", i -> rated.getRecommendations(userId(i % userCount), 10).size());
+            benchmarks.put("rateRecommend", i -> {
+                rated.rateBook(bookId((int) ((i * 7919L) % bookCount)), userId(i % userCount), 1 + i % 5);
+                rated.awaitRecommendations();
+                return 1;
+            });
+            benchmarks.put("topRated", i -> rated.getTopRated(10).size());
+            benchmarks.put("mostRated", i -> rated.getMostRated(10).size());
+            benchmarks.put("topRatedScan", i -> rated.getAllBooks().stream()
+                    .filter(b -> b.getRatingCount() > 0)
+                    .sorted(Comparator.comparingDouble(Book::getAverageRating).reversed())
+                    .limit(10).count());
+        }
+        // Kiosk-style traffic over HTTP from many clients at once: catalog searches, with one
+        // request in ten fetching a title, against a server with its own copy of the catalog.
+        // Clients share a few sessions opened up front, so the per-address login limit is
+        // not what gets measured.
+        if (selected("http100", "http1000")) {
+            SnapshotCodec.Snapshot served = SnapshotCodec.decode(snapshot);
+            LibraryServer server = new LibraryServer(new Library(new TransientLibraryStore() {
+                @Override
+                public SnapshotCodec.Snapshot load() {
+                    return served;
+                }
+            }, null), 0);
+            server.start();
+            cleanup.add(server::stop);
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            String base = "http://127.0.0.1:" + server.getPort();
+            String[] tokens = new String[Math.min(16, userCount)];
+            for (int t = 0; t < tokens.length; t++) {
+                String login = "{\"username\":\"" + userId(t) + "\",\"password\":\"" + PASSWORD + "\"}";
+                HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(base + "/api/login"))
+                        .POST(HttpRequest.BodyPublishers.ofString(login)).build(), HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() != 200) throw new IllegalStateException("Login returned " + response.statusCode());
+                // The token leads the session object, ahead of the nested loan list parseObject can't read
+                String session = response.body();
+                tokens[t] = (String) Json.parseObject(session.substring(0, session.indexOf(',')) + "}").get("token");
+            }
+            Operation request = i -> {
+                String path = i % 10 == 9 ? "/api/books/" + bookId((int) ((i * 7919L) % bookCount))
+                        : "/api/books?limit=20&q=" + URLEncoder.encode(queries[i % queries.length], StandardCharsets.UTF_8);
+                HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(base + path))
+                        .header("Authorization", "Bearer " + tokens[i % tokens.length]).build(),
+                        HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() != 200) throw new IllegalStateException(path + " returned " + response.statusCode());
+                return response.body().length();
+            };
+            for (int clients : new int[] {100, 1000}) {
+                benchmarks.put("http" + clients, request);
+                timed.put("http" + clients, clients);
+            }
+        }
+        if (selected("recommendBuild")) {
+            List<Book> unindexed = generate(bookCount, userCount, SEED).books;
+            rate(unindexed, userCount, ratingCount, SEED);
+            benchmarks.put("recommendBuild", i -> {
+                RecommendationIndex index = new RecommendationIndex(unindexed);
+                index.awaitCurrent();
+                index.close();
+                return index.rowsComputed();
+            });
+        }
+
+        if (selected("heapAfterLoad")) footprint(scale, bookCount, coldDirectory, figures);
+
+        // Catch a broken setup before it turns into fast, meaningless numbers
+        if (!library.borrowBook(bookId(0), userId(0)).startsWith("Book borrowed")
+                || !library.returnBook(Book.copyId(bookId(0), 1)).startsWith("Book returned")
+                || library.login(userId(0), PASSWORD) == null) {
+            throw new IllegalStateException("Benchmark library is not usable");
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (Map.Entry<String, Operation> benchmark : benchmarks.entrySet()) {
+            if (!selected(benchmark.getKey())) continue;
+            String key = scale + "." + benchmark.getKey();
+            Integer threads = timed.get(benchmark.getKey());
+            Result result = threads == null ? measure(key, benchmark.getValue())
+                    : measureTimed(key, threads, benchmark.getValue());
+            System.out.printf(Locale.ROOT, "%-18s %-18s %14.1f %7.1f%% %12s %12s %12.1f %6d %8d%n", scale,
+                    benchmark.getKey(), result.nanosPerOp, result.error, nanos(result.p50), nanos(result.p99),
+                    result.bytesPerOp, result.gcCount, result.gcMillis);
+            results.add(result);
+        }
+        for (Map.Entry<String, long[]> attack : stuffing.entrySet()) {
+            long[] attempts = attack.getValue();
+            double admitted = (double) attempts[1] / Math.max(1, attempts[0]);
+            figures.put(scale + "." + attack.getKey() + ".admittedShare", admitted);
+            System.out.printf(Locale.ROOT, "%-18s %-18s %d of %d attempts reached the password check (%.4f%%)%n",
+                    scale, attack.getKey(), attempts[1], attempts[0], admitted * 100);
+        }
+        library.close();
+        for (Runnable fixture : cleanup) fixture.run();
+        return results;
+    }
+
+    private static boolean selected(String... names) {
+        if (ONLY.contains("")) return true;
+        for (String name : names) {
+            if (ONLY.contains(name)) return true;
+        }
+        return false;
+    }
+
+    // Live heap added by opening the snapshot, measured between full collections, and
+    // how long a full collection takes with the opened library still live (alongside the
+    // benchmark's own copy of the catalog)
+    private static void footprint(String scale, int bookCount, Path directory, Map<String, Double> figures) {
+        long before = liveHeap();
+        long start = System.nanoTime();
+        Library loaded = new Library(new FileLibraryStore(directory, false), null);
+        double loadMillis = (System.nanoTime() - start) / 1e6;
+        long heap = liveHeap() - before;
+        start = System.nanoTime();
+        for (int i = 0; i < 5; i++) System.gc();
+        double fullGcMillis = (System.nanoTime() - start) / 5e6;
+        int books = loaded.getBookCount();
+        loaded.close();
+        figures.put(scale + ".heapAfterLoad.bytes", (double) heap);
+        figures.put(scale + ".heapAfterLoad.bytesPerTitle", (double) heap / bookCount);
+        figures.put(scale + ".heapAfterLoad.loadMillis", loadMillis);
+        figures.put(scale + ".heapAfterLoad.fullGcMillis", fullGcMillis);
+        System.out.printf(Locale.ROOT, "%-18s %-18s %.1f MB live for %d titles (%.0f B/title), loaded in %.0f ms,"
+                + " full GC %.0f ms%n", scale, "heapAfterLoad", heap / 1048576.0, books, (double) heap / bookCount,
+                loadMillis, fullGcMillis);
+    }
+
+    private static long liveHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long borrowReturn(Library library, int i, int bookCount, int userCount) {
+        String bookId = bookId(i % bookCount);
+        String borrowed = library.borrowBook(bookId, userId(i % userCount));
+        return borrowed.length() + library.returnBook(Book.copyId(bookId, 1)).length();
+    }
+
+    private static Library journaled(Path directory, Path snapshot, boolean syncDurability) throws IOException {
+        Files.createDirectories(directory);
+        Files.copy(snapshot, directory.resolve("EWULibraryManagementSystem.dat"));
+        return new Library(new FileLibraryStore(directory, syncDurability), null);
+    }
+
+    // Writes the catalog into an empty database through the store's own statements
+    private static void populate(String url, SnapshotCodec.Snapshot catalog) throws IOException {
+        JdbcLibraryStore store = new JdbcLibraryStore(url);
+        store.load();
+        int rows = 0;
+        for (Book book : catalog.books) {
+            store.record(Journal.ADD_BOOK, book.getId(), book.getTitle(), book.getAuthor(), book.getGenre(),
+                    book.getPublicationYear(), book.getCopyCount());
+            if (++rows % 10000 == 0) store.flush();
+        }
+        for (User user : catalog.users) {
+            store.record(Journal.REGISTER, user.getUsername(), user.getPassword(), user.getFullName(), user.getEmail(),
+                    user.isAdmin());
+            if (++rows % 10000 == 0) store.flush();
+        }
+        store.close();
+    }
+
+    private static byte[] encode(Library library) throws IOException {
+        SnapshotCodec.Snapshot state = library.toSnapshot();
+        return SnapshotCodec.encode(state.books, state.users, state.journalSeq, new HoldQueues());
+    }
+
+    private static Result measure(String key, Operation operation) throws Exception {
+        int[] next = {0};
+        for (int i = 0; i < WARMUP; i++) iteration(operation, next);
+        long[][] measured = new long[ITERATIONS][];
+        for (int i = 0; i < ITERATIONS; i++) measured[i] = iteration(operation, next);
+        return summarize(key, measured, Double.NaN, Double.NaN);
+    }
+
+    // ns/op is wall time per completed call across all the threads, so it falls as
+    // throughput rises; the percentiles are of single calls
+    private static Result measureTimed(String key, int threads, Operation operation) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "bench-client");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            AtomicInteger next = new AtomicInteger();
+            for (int i = 0; i < WARMUP; i++) {
+                timedIteration(pool, threads, operation, next, new LibraryMetrics.LatencyHistogram());
+            }
+            LibraryMetrics.LatencyHistogram latency = new LibraryMetrics.LatencyHistogram();
+            long[][] measured = new long[ITERATIONS][];
+            for (int i = 0; i < ITERATIONS; i++) measured[i] = timedIteration(pool, threads, operation, next, latency);
+            long[] quantiles = latency.snapshot(0.5, 0.99);
+            return summarize(key, measured, quantiles[3], quantiles[4]);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Mean over the timed iterations; error is their relative standard deviation
+    private static Result summarize(String key, long[][] measured, double p50, double p99) {
+        double[] nanosPerOp = new double[measured.length];
+        long ops = 0, bytes = 0, gcCount = 0, gcMillis = 0;
+        for (int i = 0; i < measured.length; i++) {
+            nanosPerOp[i] = (double) measured[i][1] / measured[i][0];
+            ops += measured[i][0];
+            bytes += measured[i][2];
+            gcCount += measured[i][3];
+            gcMillis += measured[i][4];
+        }
+        double mean = Arrays.stream(nanosPerOp).average().orElse(0);
+        double variance = Arrays.stream(nanosPerOp).map(v -> (v - mean) * (v - mean)).sum() / Math.max(1, measured.length - 1);
+        return new Result(key, mean, mean == 0 ? 0 : 100 * Math.sqrt(variance) / mean, (double) bytes / ops, gcCount, gcMillis,
+                p50, p99);
+    }
+
+    // Runs batches, doubled while they finish within a millisecond, until the iteration
+    // time is up: [operations, nanos, allocated bytes, collections, collection millis]
+    private static long[] iteration(Operation operation, int[] next) throws Exception {
+        long allocated = allocatedBytes(), collections = gcCount(), collectionMillis = gcMillis();
+        long result = 0, ops = 0;
+        int batch = 1;
+        long start = System.nanoTime(), end = start + ITERATION_NANOS, now;
+        do {
+            long batchStart = System.nanoTime();
+            for (int i = 0; i < batch; i++) result += operation.run(next[0]++ & Integer.MAX_VALUE);
+            ops += batch;
+            now = System.nanoTime();
+            if (now - batchStart < 1_000_000 && batch < 1 << 20) batch <<= 1;
+        } while (now < end);
+        sink += result;
+        return new long[] {ops, now - start, allocatedBytes() - allocated, gcCount() - collections, gcMillis() - collectionMillis};
+    }
+
+    // Each thread calls back to back until the iteration time is up, recording every call
+    private static long[] timedIteration(ExecutorService pool, int threads, Operation operation, AtomicInteger next,
+            LibraryMetrics.LatencyHistogram latency) throws Exception {
+        long allocated = allocatedBytes(), collections = gcCount(), collectionMillis = gcMillis();
+        long start = System.nanoTime(), end = start + ITERATION_NANOS;
+        List<Future<Long>> callers = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            callers.add(pool.submit(() -> {
+                long result = 0, ops = 0;
+                for (long now = System.nanoTime(); now < end; ops++) {
+                    long before = now;
+                    result += operation.run(next.getAndIncrement() & Integer.MAX_VALUE);
+                    now = System.nanoTime();
+                    latency.record(now - before, 0);
+                }
+                sink += result;
+                return ops;
+            }));
+        }
+        long ops = 0;
+        for (Future<Long> caller : callers) ops += caller.get();
+        long now = System.nanoTime();
+        return new long[] {ops, now - start, allocatedBytes() - allocated, gcCount() - collections, gcMillis() - collectionMillis};
+    }
+
+    private static String nanos(double value) {
+        return Double.isNaN(value) ? "-" : String.format(Locale.ROOT, "%.0f", value);
+    }
+
+    // Across all threads, since exports and snapshot writes run off the caller
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) total += bytes;
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (java.lang.management.GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (java.lang.management.GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    static String bookId(int i) {
+        return String.format("B%07d", i);
+    }
+
+    static String userId(int i) {
+        return String.format("u%07d", i);
+    }
+
+    // The same seed always gives the same catalog. Every user shares one password
+    // hash, since hashing a million passwords would dominate the setup.
+    static SnapshotCodec.Snapshot generate(int bookCount, int userCount, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int authorCount = Math.max(1, bookCount / 10);
+        List<Book> books = new ArrayList<>(bookCount);
+        for (int i = 0; i < bookCount; i++) {
+            int words = 2 + random.nextInt(3);
+            StringBuilder title = new StringBuilder();
+            for (int w = 0; w < words; w++) {
+                if (w > 0) title.append(' ');
+                title.append(word(random));
+            }
+            int author = random.nextInt(authorCount);
+            books.add(new Book(bookId(i), title.toString(), name(author, seed), GENRES[random.nextInt(GENRES.length)],
+                    1900 + random.nextInt(125), 1));
+        }
+        String password = PasswordHasher.hash(PASSWORD);
+        List<User> users = new ArrayList<>(userCount);
+        for (int i = 0; i < userCount; i++) {
+            String username = userId(i);
+            users.add(new User(username, password, name(i, seed + 1), username + "@example.edu", false));
+        }
+        return new SnapshotCodec.Snapshot(books, users, 0, new HashMap<>());
+    }
+
+    // Each patron mostly rates one genre, favouring its first titles, and rates it well;
+    // the rest of their votes are scattered and low, so there is structure to find
+    static void rate(List<Book> books, int userCount, int ratingCount, long seed) {
+        SplittableRandom random = new SplittableRandom(seed + 3);
+        Map<String, List<Book>> byGenre = new TreeMap<>();
+        for (Book book : books) byGenre.computeIfAbsent(book.getGenre(), g -> new ArrayList<>()).add(book);
+        List<List<Book>> genres = new ArrayList<>(byGenre.values());
+        for (int i = 0; i < ratingCount; i++) {
+            int user = random.nextInt(userCount);
+            boolean favourite = random.nextInt(4) != 0;
+            List<Book> pool = genres.get(favourite ? user % genres.size() : random.nextInt(genres.size()));
+            Book book = pool.get(random.nextInt(random.nextInt(pool.size()) + 1));
+            book.addRating(userId(user), favourite ? 4 + random.nextInt(2) : 1 + random.nextInt(3));
+        }
+    }
+
+    // Title words and authors as a patron would type them, some cut short
+    private static String[] queries(List<Book> books, long seed) {
+        SplittableRandom random = new SplittableRandom(seed + 2);
+        String[] queries = new String[1024];
+        for (int i = 0; i < queries.length; i++) {
+            Book book = books.get(random.nextInt(books.size()));
+            String[] words = (random.nextBoolean() ? book.getTitle() : book.getAuthor()).split(" ");
+            String query = words[random.nextInt(words.length)];
+            queries[i] = random.nextInt(4) == 0 ? query.substring(0, Math.min(query.length(), 3)) : query;
+        }
+        return queries;
+    }
+
+    private static String word(SplittableRandom random) {
+        StringBuilder word = new StringBuilder();
+        for (int i = 1 + random.nextInt(3); i > 0; i--) word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        word.setCharAt(0, Character.toUpperCase(word.charAt(0)));
+        return word.toString();
+    }
+
+    private static String name(int i, long seed) {
+        SplittableRandom random = new SplittableRandom(seed * 31 + i);
+        return word(random) + " " + word(random);
+    }
+
+    private static void write(Path file, List<Result> results, Map<String, Double> figures) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (Result result : results) {
+                out.write(String.format(Locale.ROOT, "%s.nsPerOp=%.3f%n", result.key, result.nanosPerOp));
+                out.write(String.format(Locale.ROOT, "%s.error=%.3f%n", result.key, result.error));
+                out.write(String.format(Locale.ROOT, "%s.bytesPerOp=%.1f%n", result.key, result.bytesPerOp));
+                if (Double.isNaN(result.p99)) continue;
+                out.write(String.format(Locale.ROOT, "%s.p50Nanos=%.0f%n", result.key, result.p50));
+                out.write(String.format(Locale.ROOT, "%s.p99Nanos=%.0f%n", result.key, result.p99));
+            }
+            for (Map.Entry<String, Double> figure : figures.entrySet()) {
+                out.write(String.format(Locale.ROOT, "%s=%.1f%n", figure.getKey(), figure.getValue()));
+            }
+        }
+        System.out.println("Results written to " + file);
+    }
+
+    private static int compare(List<Result> results, Path baselineFile) throws IOException {
+        Properties baseline = new Properties();
+        try (Reader in = Files.newBufferedReader(baselineFile, StandardCharsets.UTF_8)) {
+            baseline.load(in);
+        }
+        int regressions = 0;
+        System.out.printf("%nAgainst %s (threshold %.1f%%):%n", baselineFile, THRESHOLD);
+        for (Result result : results) {
+            String before = baseline.getProperty(result.key + ".nsPerOp");
+            if (before == null) {
+                System.out.printf("  %-32s new%n", result.key);
+                continue;
+            }
+            double change = 100 * (result.nanosPerOp / Double.parseDouble(before) - 1);
+            // A change inside both runs' noise is not a regression
+            double noise = result.error + Double.parseDouble(baseline.getProperty(result.key + ".error", "0"));
+            boolean regressed = change > Math.max(THRESHOLD, noise);
+            if (regressed) regressions++;
+            System.out.printf(Locale.ROOT, "  %-32s %+8.1f%%%s%n", result.key, change, regressed ? "  REGRESSION" : "");
+        }
+        System.out.println(regressions == 0 ? "No regressions." : regressions + " regression(s).");
+        return regressions == 0 ? 0 : 1;
+    }
+
+    private static void deleteTree(Path directory) throws IOException {
+        try (java.util.stream.Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
+
+class LibraryServer {
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    private static final int SESSION_CAPACITY = 10_000;
+    private static final long SESSION_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private final Library library;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final SessionCache sessions = new SessionCache(SESSION_CAPACITY, SESSION_IDLE_MILLIS);
+    private final LoginThrottle throttle = LoginThrottle.fromProperties();
+
+    LibraryServer(Library library, int port) throws IOException {
+        this.library = library;
+        this.server = HttpServer.create(new InetSocketAddress(port), 1024);
+        this.executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/api/login", throttled(this::handleLogin));
+        server.createContext("/api/logout", throttled(this::handleLogout));
+        server.createContext("/api/books", throttled(this::handleBooks));
+        server.createContext("/api/users", throttled(this::handleUsers));
+        server.createContext("/api/circulation", throttled(this::handleCirculation));
+        server.createContext("/metrics", throttled(this::handleMetrics));
+    }
+
+    private HttpHandler throttled(HttpHandler handler) {
+        return ex -> {
+            try {
+                handler.handle(ex);
+            } catch (LoginThrottle.Exceeded e) {
+                ex.getResponseHeaders().set("Retry-After", "60");
+                send(ex, 429, error(e.getMessage()));
+            }
+        };
+    }
+
+    // One virtual thread per request when the runtime has them (JDK 21+),
+    // otherwise an unbounded cached pool
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(1);
+        executor.shutdown();
+        library.close();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // POST /api/login {"username":..,"password":..}
+    // Returns the user plus a session token for "Authorization: Bearer <token>"
+    private void handleLogin(HttpExchange ex) throws IOException {
+        try {
+            if (!"POST".equals(ex.getRequestMethod())) {
+                send(ex, 405, error("Method not allowed"));
+                return;
+            }
+            Map<String, Object> body = Json.parseObject(readBody(ex));
+            User user = login(ex, (String) body.get("username"), (String) body.get("password"));
+            if (user == null) send(ex, 401, error("Invalid login!"));
+            else send(ex, 200, Json.session(user, sessions.issue(user)));
+        } catch (IllegalArgumentException | ClassCastException e) {
+            send(ex, 400, error(e.getMessage()));
+        }
+    }
+
+    // POST /api/logout  (Bearer token)
+    private void handleLogout(HttpExchange ex) throws IOException {
+        String header = ex.getRequestHeaders().getFirst("Authorization");
+        if (header != null && header.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            sessions.revoke(header.substring(7).trim());
+        }
+        send(ex, 200, message("Logged out."));
+    }
+
+    private User login(HttpExchange ex, String username, String password) {
+        if (username == null || password == null) return null;
+        throttle.acquire(ex.getRemoteAddress().getAddress().getHostAddress(), username);
+        return library.login(username, password);
+    }
+
+    // GET    /api/books?q=&offset=&limit=
+    // GET    /api/books?top=rated|popular&offset=&limit=
+    // GET    /api/books/{id}
+    // POST   /api/books                 (admin) {"id","title","author","genre","year","copies"}
+    // DELETE /api/books/{id}            (admin)
+    // POST   /api/books/{id}/borrow
+    // POST   /api/books/{id}/return
+    // POST   /api/books/{id}/rate       {"rating":1-5}
+    // POST   /api/books/{id}/hold
+    // POST   /api/books/{id}/cancel-hold
+    // POST   /api/books/{id}/add-copy   (admin)
+    // POST   /api/books/{id}/remove-copy (admin) {"copyId"}
+    private void handleBooks(HttpExchange ex) throws IOException {
+        try {
+            User caller = authenticate(ex);
+            if (caller == null) {
+                ex.getResponseHeaders().add("WWW-Authenticate", "Basic realm=\"library\"");
+                send(ex, 401, error("Authentication required"));
+                return;
+            }
+            String method = ex.getRequestMethod();
+            String[] path = pathSegments(ex, "/api/books");
+
+            if (path.length == 0 && "GET".equals(method)) {
+                Map<String, String> params = queryParams(ex);
+                int offset = Math.max(0, parseInt(params.get("offset"), 0));
+                int limit = Math.max(0, parseInt(params.get("limit"), DEFAULT_PAGE_SIZE));
+                String top = params.get("top");
+                int ranked = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+                List<Book> results = top == null ? library.searchBooks(params.getOrDefault("q", ""))
+                        : "popular".equals(top) ? library.getMostRated(ranked) : library.getTopRated(ranked);
+                int end = (int) Math.min(results.size(), (long) offset + limit);
+                StringBuilder json = new StringBuilder("{\"total\":").append(results.size()).append(",\"books\":[");
+                for (int i = offset; i < end; i++) {
+                    if (i > offset) json.append(',');
+                    json.append(Json.book(results.get(i)));
+                }
+                send(ex, 200, json.append("]}").toString());
+            } else if (path.length == 0 && "POST".equals(method)) {
+                if (!caller.isAdmin()) {
+                    send(ex, 403, error("Admin only"));
+                    return;
+                }
+                Map<String, Object> body = Json.parseObject(readBody(ex));
+                String id = (String) body.get("id");
+                if (id == null || id.isEmpty()) {
+                    send(ex, 400, error("Book ID required"));
+                } else if (library.addBook(id, str(body, "title"), str(body, "author"), str(body, "genre"),
+                        ((Number) body.getOrDefault("year", 0)).intValue(),
+                        ((Number) body.getOrDefault("copies", 1)).intValue())) {
+                    send(ex, 201, Json.book(library.getBook(id)));
+                } else {
+                    send(ex, 409, error("Book ID already exists!"));
+                }
+            } else if (path.length == 1 && "GET".equals(method)) {
+                Book book = library.getBook(path[0]);
+                if (book == null) send(ex, 404, error("Book not found!"));
+                else send(ex, 200, Json.book(book));
+            } else if (path.length == 1 && "DELETE".equals(method)) {
+                if (!caller.isAdmin()) send(ex, 403, error("Admin only"));
+                else if (library.removeBook(path[0])) send(ex, 200, message("Book removed successfully!"));
+                else send(ex, 404, error("Book not found!"));
+            } else if (path.length == 2 && "GET".equals(method) && "history".equals(path[1])) {
+                if (!caller.isAdmin()) send(ex, 403, error("Admin only"));
+                else send(ex, 200, history(ex, library::getBookHistory, path[0]));
+            } else if (path.length == 2 && "POST".equals(method)) {
+                handleBookAction(ex, caller, path[0], path[1]);
+            } else {
+                send(ex, 404, error("Not found"));
+            }
+        } catch (IllegalArgumentException | ClassCastException e) {
+            send(ex, 400, error(e.getMessage()));
+        }
+    }
+
+    // {id} is a title id, or a copy id to act on one particular copy
+    private void handleBookAction(HttpExchange ex, User caller, String bookId, String action) throws IOException {
+        Book book = library.getBook(bookId);
+        BookCopy copy = book == null ? library.getCopy(bookId) : null;
+        if (copy != null) book = copy.getBook();
+        if (book == null) {
+            send(ex, 404, error("Book not found!"));
+            return;
+        }
+        switch (action) {
+            case "borrow": {
+                String result = library.borrowBook(bookId, caller.getUsername());
+                send(ex, result.startsWith("Book borrowed") ? 200 : 409, message(result));
+                break;
+            }
+            case "return": {
+                if (copy == null) copy = library.getBorrowedCopy(book.getId(), caller.getUsername());
+                if (copy == null && caller.isAdmin()) copy = library.getCopy(bookId);
+                if (copy == null || !caller.isAdmin() && !caller.getUsername().equals(copy.getBorrower())) {
+                    send(ex, 403, error("Only the borrower or an admin can return this book"));
+                    return;
+                }
+                String result = library.returnBook(copy.getId());
+                send(ex, result.startsWith("Book returned") ? 200 : 409, message(result));
+                break;
+            }
+            case "renew": {
+                if (copy == null) copy = library.getBorrowedCopy(book.getId(), caller.getUsername());
+                if (copy == null) {
+                    send(ex, 409, message("You haven't borrowed this book!"));
+                    return;
+                }
+                String result = library.renewBook(copy.getId(), caller.getUsername());
+                send(ex, result.startsWith("Book renewed") ? 200 : 409, message(result));
+                break;
+            }
+            case "hold": {
+                String result = library.placeHold(book.getId(), caller.getUsername());
+                send(ex, result.startsWith("Hold placed") ? 200 : 409, message(result));
+                break;
+            }
+            case "cancel-hold": {
+                String result = library.cancelHold(book.getId(), caller.getUsername());
+                send(ex, result.startsWith("Hold cancelled") ? 200 : 409, message(result));
+                break;
+            }
+            case "rate": {
+                Map<String, Object> body = Json.parseObject(readBody(ex));
+                Object rating = body.get("rating");
+                int value = rating instanceof Number ? ((Number) rating).intValue() : 0;
+                if (value < 1 || value > 5) {
+                    send(ex, 400, error("Rating must be between 1 and 5"));
+                    return;
+                }
+                send(ex, 200, message(library.rateBook(book.getId(), caller.getUsername(), value)));
+                break;
+            }
+            case "add-copy": {
+                if (!caller.isAdmin()) {
+                    send(ex, 403, error("Admin only"));
+                    return;
+                }
+                library.addCopy(book.getId());
+                send(ex, 201, Json.book(book));
+                break;
+            }
+            case "remove-copy": {
+                if (!caller.isAdmin()) {
+                    send(ex, 403, error("Admin only"));
+                    return;
+                }
+                String copyId = (String) Json.parseObject(readBody(ex)).get("copyId");
+                BookCopy target = library.getCopy(copyId);
+                if (target == null || target.getBook() != book) {
+                    send(ex, 404, error("Copy not found!"));
+                    return;
+                }
+                String result = library.removeCopy(copyId);
+                send(ex, result.startsWith("Copy removed") ? 200 : 409, message(result));
+                break;
+            }
+            default:
+                send(ex, 404, error("Not found"));
+        }
+    }
+
+    // POST  /api/users                  {"username","password","fullName","email","admin"}
+    //                                   (anyone may register; only admins may create admins)
+    // GET   /api/users                  (admin)
+    // GET   /api/users/{username}       (admin or self)
+    // PATCH /api/users/{username}       (admin) {"active":bool,"password":..}
+    private void handleUsers(HttpExchange ex) throws IOException {
+        try {
+            String method = ex.getRequestMethod();
+            String[] path = pathSegments(ex, "/api/users");
+            User caller = authenticate(ex);
+
+            if (path.length == 0 && "POST".equals(method)) {
+                Map<String, Object> body = Json.parseObject(readBody(ex));
+                boolean admin = Boolean.TRUE.equals(body.get("admin"));
+                String username = (String) body.get("username");
+                String password = (String) body.get("password");
+                if (admin && (caller == null || !caller.isAdmin())) {
+                    send(ex, 403, error("Admin only"));
+                } else if (username == null || username.isEmpty() || password == null) {
+                    send(ex, 400, error("Username and password required"));
+                } else if (library.register(username, password, str(body, "fullName"), str(body, "email"), admin)) {
+                    send(ex, 201, Json.user(library.getUser(username)));
+                } else {
+                    send(ex, 409, error("Username already exists!"));
+                }
+                return;
+            }
+            if (caller == null) {
+                ex.getResponseHeaders().add("WWW-Authenticate", "Basic realm=\"library\"");
+                send(ex, 401, error("Authentication required"));
+                return;
+            }
+            if (path.length == 0 && "GET".equals(method)) {
+                if (!caller.isAdmin()) {
+                    send(ex, 403, error("Admin only"));
+                    return;
+                }
+                StringBuilder json = new StringBuilder("[");
+                for (User user : library.getAllUsers()) {
+                    if (json.length() > 1) json.append(',');
+                    json.append(Json.user(user));
+                }
+                send(ex, 200, json.append(']').toString());
+            } else if (path.length == 1 && "GET".equals(method)) {
+                User user = library.getUser(path[0]);
+                if (!caller.isAdmin() && !caller.getUsername().equals(path[0])) send(ex, 403, error("Forbidden"));
+                else if (user == null) send(ex, 404, error("User not found!"));
+                else send(ex, 200, Json.user(user));
+            } else if (path.length == 2 && "GET".equals(method) && "history".equals(path[1])) {
+                if (!caller.isAdmin() && !caller.getUsername().equals(path[0])) send(ex, 403, error("Forbidden"));
+                else send(ex, 200, history(ex, library::getUserHistory, path[0]));
+            } else if (path.length == 1 && ("PATCH".equals(method) || "POST".equals(method))) {
+                User user = library.getUser(path[0]);
+                if (!caller.isAdmin()) {
+                    send(ex, 403, error("Admin only"));
+                } else if (user == null) {
+                    send(ex, 404, error("User not found!"));
+                } else {
+                    Map<String, Object> body = Json.parseObject(readBody(ex));
+                    if (body.get("active") instanceof Boolean) {
+                        user.setActive((Boolean) body.get("active"));
+                        library.updateUser(user);
+                    }
+                    if (body.get("password") instanceof String) library.changePassword(user, (String) body.get("password"));
+                    send(ex, 200, Json.user(user));
+                }
+            } else {
+                send(ex, 404, error("Not found"));
+            }
+        } catch (IllegalArgumentException | ClassCastException e) {
+            send(ex, 400, error(e.getMessage()));
         }
     }
 
-    @Override
-    public String toString() {
-        return String.format("%s - %s (%s) ★%.1f", 
-                title, author, 
-                isAvailable ? "Available" : "Borrowed",
-                averageRating);
+    // POST /api/circulation/borrow {"ids":"id1,id2,..","username":..}  titles or copies; username defaults
+    //                                                            to the caller, others need an admin
+    // POST /api/circulation/return {"ids":"copy1,copy2,.."}         admin only, e.g. a returns sorter
+    // Answers 200 with a per-item report even when some items fail
+    private void handleCirculation(HttpExchange ex) throws IOException {
+        try {
+            String[] path = pathSegments(ex, "/api/circulation");
+            User caller = authenticate(ex);
+            if (caller == null) {
+                ex.getResponseHeaders().add("WWW-Authenticate", "Basic realm=\"library\"");
+                send(ex, 401, error("Authentication required"));
+                return;
+            }
+            if (path.length != 1 || !"POST".equals(ex.getRequestMethod())) {
+                send(ex, 404, error("Not found"));
+                return;
+            }
+            Map<String, Object> body = Json.parseObject(readBody(ex));
+            List<String> ids = new ArrayList<>();
+            for (String id : str(body, "ids").split("[,\\s]+")) {
+                if (!id.isEmpty()) ids.add(id);
+            }
+            if (ids.isEmpty()) {
+                send(ex, 400, error("ids required"));
+                return;
+            }
+            if ("borrow".equals(path[0])) {
+                String username = body.get("username") instanceof String ? (String) body.get("username") : caller.getUsername();
+                if (!caller.isAdmin() && !caller.getUsername().equals(username)) send(ex, 403, error("Forbidden"));
+                else send(ex, 200, Json.circulation(library.borrowBooks(username, ids)));
+            } else if ("return".equals(path[0])) {
+                if (!caller.isAdmin()) send(ex, 403, error("Admin only"));
+                else send(ex, 200, Json.circulation(library.returnBooks(ids)));
+            } else {
+                send(ex, 404, error("Not found"));
+            }
+        } catch (IllegalArgumentException | ClassCastException e) {
+            send(ex, 400, error(e.getMessage()));
+        }
     }
-}
 
-class User implements Serializable {
-    private static final long serialVersionUID = 1L;
-    private String username;
-    private String password;
-    private String fullName;
-    private String email;
-    private boolean isAdmin;
-    private boolean isActive;
-    private List<String> borrowedBooks;
+    // GET /metrics - Prometheus text format; open to scrapers on this host, admins otherwise
+    private void handleMetrics(HttpExchange ex) throws IOException {
+        if (!ex.getRemoteAddress().getAddress().isLoopbackAddress()) {
+            User caller = authenticate(ex);
+            if (caller == null || !caller.isAdmin()) {
+                send(ex, 403, error("Admin only"));
+                return;
+            }
+        }
+        byte[] bytes = library.getMetrics().prometheus().getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        ex.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
 
-    public User(String username, String password, String fullName, String email, boolean isAdmin) {
-        this.username = username;
-        this.password = password;
-        this.fullName = fullName;
-        this.email = email;
-        this.isAdmin = isAdmin;
-        this.isActive = true;
-        this.borrowedBooks = new ArrayList<>();
+    // Bearer tokens and recently verified Basic credentials are answered from the
+    // session cache; only a cache miss pays for (and is throttled like) a login
+    private User authenticate(HttpExchange ex) {
+        String header = ex.getRequestHeaders().getFirst("Authorization");
+        if (header == null) return null;
+        if (header.regionMatches(true, 0, "Bearer ", 0, 7)) return sessions.validate(header.substring(7).trim());
+        if (!header.regionMatches(true, 0, "Basic ", 0, 6)) return null;
+        String decoded;
+        try {
+            decoded = new String(Base64.getDecoder().decode(header.substring(6).trim()), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        int colon = decoded.indexOf(':');
+        if (colon < 0) return null;
+        String username = decoded.substring(0, colon);
+        String password = decoded.substring(colon + 1);
+        String key = sessions.credentialKey(username, password);
+        User user = sessions.validate(key);
+        if (user != null) return user;
+        user = login(ex, username, password);
+        if (user != null) sessions.put(key, user);
+        return user;
     }
 
-    public String getUsername() { return username; }
-    public String getPassword() { return password; }
-    public String getFullName() { return fullName; }
-    public String getEmail() { return email; }
-    public boolean isAdmin() { return isAdmin; }
-    public boolean isActive() { return isActive; }
-    public List<String> getBorrowedBooks() { return borrowedBooks; }
-    
-    public void setPassword(String password) { this.password = password; }
-    public void setFullName(String fullName) { this.fullName = fullName; }
-    public void setEmail(String email) { this.email = email; }
-    public void setActive(boolean active) { isActive = active; }
-    
-    public void addBorrowedBook(String bookId) { borrowedBooks.add(bookId); }
-    public void removeBorrowedBook(String bookId) { borrowedBooks.remove(bookId); }
+    private static String[] pathSegments(HttpExchange ex, String prefix) {
+        String rest = ex.getRequestURI().getPath().substring(prefix.length());
+        List<String> segments = new ArrayList<>();
+        for (String s : rest.split("/")) {
+            if (!s.isEmpty()) segments.add(URLDecoder.decode(s, StandardCharsets.UTF_8));
+        }
+        return segments.toArray(new String[0]);
+    }
 
-    @Override
-    public String toString() {
-        return String.format("%s (%s)", username, isAdmin ? "Admin" : "User");
+    interface HistoryQuery {
+        List<HistoryLog.Event> get(String key, long from, long to, int limit);
     }
-}
 
-class Library implements Serializable {
-    private static final long serialVersionUID = 1L;
-    private List<Book> books;
-    private List<User> users;
-    private static final String DATA_FILE = "EWULibraryManagementSystem.ser";
-    private static final int MAX_BOOKS_PER_USER = 5;
-    private static final int LOAN_PERIOD_DAYS = 14;
+    // ?from=&to= are epoch milliseconds, ?limit= keeps the latest events
+    private static String history(HttpExchange ex, HistoryQuery query, String key) {
+        Map<String, String> params = queryParams(ex);
+        long from = parseLong(params.get("from"), Long.MIN_VALUE);
+        long to = parseLong(params.get("to"), Long.MAX_VALUE);
+        StringBuilder json = new StringBuilder("[");
+        for (HistoryLog.Event event : query.get(key, from, to, parseInt(params.get("limit"), DEFAULT_PAGE_SIZE))) {
+            if (json.length() > 1) json.append(',');
+            json.append(Json.event(event));
+        }
+        return json.append(']').toString();
+    }
 
-    public Library() {
-        books = new ArrayList<>();
-        users = new ArrayList<>();
-        loadData();
-        
-        if (users.isEmpty()) {
-            users.add(new User("admin", "admin123", "System Admin", "admin@ewu.edu", true));
+    private static Map<String, String> queryParams(HttpExchange ex) {
+        Map<String, String> params = new HashMap<>();
+        String query = ex.getRequestURI().getRawQuery();
+        if (query == null) return params;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
         }
+        return params;
     }
 
-    public User login(String username, String password) {
-        return users.stream()
-                .filter(u -> u.getUsername().equals(username) && u.getPassword().equals(password) && u.isActive())
-                .findFirst()
-                .orElse(null);
+    private static int parseInt(String value, int fallback) {
+        try {
+            return value == null ? fallback : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
     }
 
-    public boolean register(String username, String password, String fullName, String email, boolean isAdmin) {
-        if (users.stream().anyMatch(u -> u.getUsername().equals(username))) {
-            return false;
+    private static long parseLong(String value, long fallback) {
+        try {
+            return value == null ? fallback : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return fallback;
         }
-        users.add(new User(username, password, fullName, email, isAdmin));
-        saveData();
-        return true;
     }
 
-    public List<Book> searchBooks(String query) {
-        String lcQuery = query.toLowerCase();
-        return books.stream()
-                .filter(b -> b.getTitle().toLowerCase().contains(lcQuery) ||
-                            b.getAuthor().toLowerCase().contains(lcQuery) ||
-                            b.getGenre().toLowerCase().contains(lcQuery) ||
-                            b.getId().toLowerCase().contains(lcQuery))
-                .collect(Collectors.toList());
+    private static String str(Map<String, Object> body, String key) {
+        Object value = body.get(key);
+        return value == null ? "" : value.toString();
     }
 
-    public String borrowBook(String bookId, String username) {
-        Book book = findBookById(bookId);
-        User user = findUserByUsername(username);
-        
-        if (book == null) return "Book not found!";
-        if (user == null) return "User not found!";
-        if (!book.isAvailable()) return "Book already borrowed!";
-        if (user.getBorrowedBooks().size() >= MAX_BOOKS_PER_USER) return "Borrow limit reached!";
-        
-        book.setAvailable(false);
-        book.setBorrower(username);
-        
-        Calendar cal = Calendar.getInstance();
-        cal.add(Calendar.DAY_OF_YEAR, LOAN_PERIOD_DAYS);
-        book.setDueDate(cal.getTime());
-        
-        user.addBorrowedBook(bookId);
-        saveData();
-        return "Book borrowed! Due: " + String.format("%tF", book.getDueDate());
+    private static String readBody(HttpExchange ex) throws IOException {
+        try (InputStream in = ex.getRequestBody()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
     }
 
-    public String returnBook(String bookId) {
-        Book book = findBookById(bookId);
-        if (book == null) return "Book not found!";
-        if (book.isAvailable()) return "Book wasn't borrowed!";
-        
-        User user = findUserByUsername(book.getBorrower());
-        if (user != null) user.removeBorrowedBook(bookId);
-        
-        book.setAvailable(true);
-        book.setBorrower(null);
-        book.setDueDate(null);
-        saveData();
-        return "Book returned successfully!";
+    private static String message(String text) {
+        return "{\"message\":" + Json.quote(text) + "}";
     }
 
-    public String rateBook(String bookId, String username, int rating) {
-        Book book = findBookById(bookId);
-        if (book == null) return "Book not found!";
-        
-        book.addRating(username, rating);
-        saveData();
-        return "Rating submitted!";
+    private static String error(String text) {
+        return "{\"error\":" + Json.quote(text) + "}";
     }
 
-    public boolean addBook(String id, String title, String author, String genre, int year) {
-        if (findBookById(id) != null) return false;
-        books.add(new Book(id, title, author, genre, year));
-        saveData();
-        return true;
+    private static void send(HttpExchange ex, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
     }
+}
 
-    public boolean removeBook(String bookId) {
-        Book book = findBookById(bookId);
-        if (book != null) {
-            users.forEach(u -> u.removeBorrowedBook(bookId));
-            books.remove(book);
-            saveData();
-            return true;
+// Minimal JSON support for the server: flat objects in, Book/User documents out
+class Json {
+    static String quote(String s) {
+        if (s == null) return "null";
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+            }
         }
-        return false;
+        return sb.append('"').toString();
     }
 
-    private Book findBookById(String id) {
-        return books.stream().filter(b -> b.getId().equals(id)).findFirst().orElse(null);
+    static String book(Book book) {
+        return book.read(Json::bookState);
     }
-    
-    private User findUserByUsername(String username) {
-        return users.stream().filter(u -> u.getUsername().equals(username)).findFirst().orElse(null);
+
+    private static String bookState(Book book) {
+        return "{\"id\":" + quote(book.getId())
+                + ",\"title\":" + quote(book.getTitle())
+                + ",\"author\":" + quote(book.getAuthor())
+                + ",\"genre\":" + quote(book.getGenre())
+                + ",\"year\":" + book.getPublicationYear()
+                + ",\"available\":" + book.isAvailable()
+                + ",\"availableCopies\":" + book.getAvailableCopies()
+                + ",\"copies\":" + copies(book)
+                + ",\"averageRating\":" + String.format(Locale.ROOT, "%.2f", book.getAverageRating())
+                + ",\"ratingCount\":" + book.getRatingCount() + "}";
     }
 
-    @SuppressWarnings("unchecked")
-    private void loadData() {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(DATA_FILE))) {
-            Library saved = (Library) ois.readObject();
-            this.books = saved.books;
-            this.users = saved.users;
-        } catch (FileNotFoundException e) {
-            // First run
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
+    private static String copies(Book book) {
+        StringBuilder json = new StringBuilder("[");
+        for (BookCopy copy : book.getCopies()) {
+            if (json.length() > 1) json.append(',');
+            json.append("{\"id\":").append(quote(copy.getId()))
+                    .append(",\"borrower\":").append(quote(copy.getBorrower()))
+                    .append(",\"dueDate\":").append(copy.getDueDate() == null ? "null" : quote(String.format("%tF", copy.getDueDate())))
+                    .append(",\"heldFor\":").append(quote(copy.getHeldFor())).append('}');
         }
+        return json.append(']').toString();
     }
 
-    private void saveData() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(DATA_FILE))) {
-            oos.writeObject(this);
-        } catch (IOException e) {
-            e.printStackTrace();
+    static String circulation(CirculationResult result) {
+        StringBuilder items = new StringBuilder("[");
+        for (CirculationResult.Item item : result.getItems()) {
+            if (items.length() > 1) items.append(',');
+            items.append("{\"id\":").append(quote(item.id))
+                    .append(",\"ok\":").append(item.succeeded)
+                    .append(",\"message\":").append(quote(item.message)).append('}');
         }
+        return "{\"succeeded\":" + result.getSucceeded()
+                + ",\"failed\":" + result.getFailed()
+                + ",\"items\":" + items.append(']') + "}";
     }
 
-    public List<Book> getAllBooks() { return new ArrayList<>(books); }
-    public List<User> getAllUsers() { return new ArrayList<>(users); }
+    static String event(HistoryLog.Event event) {
+        return "{\"seq\":" + event.seq
+                + ",\"time\":" + event.time
+                + ",\"type\":" + event.type
+                + ",\"bookId\":" + quote(event.bookId)
+                + ",\"username\":" + quote(event.username)
+                + ",\"description\":" + quote(event.describe()) + "}";
+    }
 
-    public void exportDataToTextFiles() {
-        exportAdminsToText();
-        exportBooksToText();
-        exportUsersToText();
+    static String session(User user, String token) {
+        return "{\"token\":" + quote(token) + "," + user(user).substring(1);
     }
 
-    private void exportAdminsToText() {
-        try (PrintWriter writer = new PrintWriter("EWU_Admins.txt")) {
-            writer.println("Username,Password,Full Name,Email,Active");
-            for (User user : getAllUsers()) {
-                if (user.isAdmin()) {
-                    writer.printf("%s,%s,%s,%s,%b%n",
-                            user.getUsername(),
-                            user.getPassword(),
-                            user.getFullName(),
-                            user.getEmail(),
-                            user.isActive());
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    static String user(User user) {
+        StringBuilder borrowed = new StringBuilder("[");
+        for (String id : new ArrayList<>(user.getBorrowedBooks())) {
+            if (borrowed.length() > 1) borrowed.append(',');
+            borrowed.append(quote(id));
         }
+        return "{\"username\":" + quote(user.getUsername())
+                + ",\"fullName\":" + quote(user.getFullName())
+                + ",\"email\":" + quote(user.getEmail())
+                + ",\"admin\":" + user.isAdmin()
+                + ",\"active\":" + user.isActive()
+                + ",\"borrowedBooks\":" + borrowed.append(']') + "}";
     }
 
-    private void exportBooksToText() {
-        try (PrintWriter writer = new PrintWriter("EWU_Books.txt")) {
-            writer.println("ID,Title,Author,Genre,Year,Available,Borrower,Due Date,Average Rating,Rating Count");
-            for (Book book : getAllBooks()) {
-                writer.printf("%s,%s,%s,%s,%d,%b,%s,%s,%.2f,%d%n",
-                        book.getId(),
-                        book.getTitle(),
-                        book.getAuthor(),
-                        book.getGenre(),
-                        book.getPublicationYear(),
-                        book.isAvailable(),
-                        book.getBorrower() != null ? book.getBorrower() : "",
-                        book.getDueDate() != null ? new SimpleDateFormat("yyyy-MM-dd").format(book.getDueDate()) : "",
-                        book.getAverageRating(),
-                        book.getRatingCount());
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    // Parses a single flat object of string, number, boolean and null values
+    static Map<String, Object> parseObject(String text) {
+        Map<String, Object> result = new HashMap<>();
+        int[] pos = { skip(text, 0) };
+        if (pos[0] >= text.length()) return result;
+        expect(text, pos, '{');
+        if (peek(text, pos) == '}') return result;
+        while (true) {
+            String key = parseString(text, pos);
+            expect(text, pos, ':');
+            result.put(key, parseValue(text, pos));
+            char c = peek(text, pos);
+            pos[0]++;
+            if (c == '}') return result;
+            if (c != ',') throw new IllegalArgumentException("Malformed JSON");
         }
     }
 
-    private void exportUsersToText() {
-        try (PrintWriter writer = new PrintWriter("EWU_Users.txt")) {
-            writer.println("Username,Password,Full Name,Email,Active,Borrowed Books");
-            for (User user : getAllUsers()) {
-                if (!user.isAdmin()) {
-                    writer.printf("%s,%s,%s,%s,%b,%s%n",
-                            user.getUsername(),
-                            user.getPassword(),
-                            user.getFullName(),
-                            user.getEmail(),
-                            user.isActive(),
-                            String.join(";", user.getBorrowedBooks()));
-                }
+    private static Object parseValue(String text, int[] pos) {
+        char c = peek(text, pos);
+        if (c == '"') return parseString(text, pos);
+        if (text.startsWith("true", pos[0])) { pos[0] += 4; return Boolean.TRUE; }
+        if (text.startsWith("false", pos[0])) { pos[0] += 5; return Boolean.FALSE; }
+        if (text.startsWith("null", pos[0])) { pos[0] += 4; return null; }
+        int start = pos[0];
+        while (pos[0] < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos[0])) >= 0) pos[0]++;
+        if (start == pos[0]) throw new IllegalArgumentException("Malformed JSON");
+        String number = text.substring(start, pos[0]);
+        try {
+            return number.matches("-?\\d+") ? (Object) Long.valueOf(number) : (Object) Double.valueOf(number);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed JSON number");
+        }
+    }
+
+    private static String parseString(String text, int[] pos) {
+        expect(text, pos, '"');
+        StringBuilder sb = new StringBuilder();
+        while (pos[0] < text.length()) {
+            char c = text.charAt(pos[0]++);
+            if (c == '"') return sb.toString();
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (pos[0] >= text.length()) break;
+            char e = text.charAt(pos[0]++);
+            switch (e) {
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'u':
+                    if (pos[0] + 4 > text.length()) throw new IllegalArgumentException("Malformed JSON escape");
+                    sb.append((char) Integer.parseInt(text.substring(pos[0], pos[0] + 4), 16));
+                    pos[0] += 4;
+                    break;
+                default: sb.append(e);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+        throw new IllegalArgumentException("Unterminated JSON string");
+    }
+
+    private static char peek(String text, int[] pos) {
+        pos[0] = skip(text, pos[0]);
+        if (pos[0] >= text.length()) throw new IllegalArgumentException("Unexpected end of JSON");
+        return text.charAt(pos[0]);
+    }
+
+    private static void expect(String text, int[] pos, char c) {
+        if (peek(text, pos) != c) throw new IllegalArgumentException("Expected '" + c + "' in JSON");
+        pos[0]++;
+    }
+
+    private static int skip(String text, int pos) {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+        return pos;
     }
 }
 
 public class EWULibraryManagementSystem {
+    private static final int TOP_BOOKS = 50;
+    private static final int FACET_VALUES = 15;
+    private static final int HISTORY_EVENTS = 200;
     private Library library;
     private User currentUser;
     private JFrame frame;
     private JTabbedPane tabbedPane;
-    private DefaultListModel<Book> bookListModel;
+    private BookListModel bookListModel;
+    private JPanel facetPanel;
+    private final Map<FacetIndex.Field, Set<String>> facetSelection = new EnumMap<>(FacetIndex.Field.class);
     private DefaultListModel<User> userListModel;
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--server")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+            try {
+                Library library = new Library();
+                LibraryServer server = new LibraryServer(library, port);
+                server.start();
+                System.out.println("EWU Library service listening on port " + server.getPort());
+                library.startOverdueScheduler(1, TimeUnit.HOURS, notices -> {
+                    long first = notices.stream().filter(OverdueNotice::isFirstNotice).count();
+                    System.out.println(notices.size() + " overdue loan(s), " + first + " newly overdue");
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--bench")) {
+            try {
+                System.exit(LibraryBenchmark.run(Arrays.copyOfRange(args, 1, args.length)));
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(2);
+            }
+        }
+        if (args.length > 1 && (args[0].equals("--import-books") || args[0].equals("--import-users")
+                || args[0].equals("--import-admins"))) {
+            importFromCommandLine(args[0], args[1]);
+            return;
+        }
         SwingUtilities.invokeLater(() -> {
             try {
                 UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -335,6 +8191,24 @@ public class EWULibraryManagementSystem {
         });
     }
 
+    private static void importFromCommandLine(String mode, String file) {
+        Library library = new Library();
+        try (Reader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            ImportResult result = mode.equals("--import-books")
+                    ? library.importBooks(reader)
+                    : library.importUsers(reader, mode.equals("--import-admins"));
+            System.out.println(result);
+            result.getRejections().forEach(r -> System.out.println("  rejected " + r));
+            if (result.getRejected() > result.getRejections().size()) {
+                System.out.println("  ... " + (result.getRejected() - result.getRejections().size()) + " more");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            library.close();
+        }
+    }
+
     public EWULibraryManagementSystem() {
         library = new Library();
         showLogin();
@@ -392,15 +8266,31 @@ public class EWULibraryManagementSystem {
         });
 
         registerBtn.addActionListener(e -> showRegistration(loginFrame));
-        exportBtn.addActionListener(e -> {
-            library.exportDataToTextFiles();
-            JOptionPane.showMessageDialog(loginFrame, "Data exported to text files!", "Export Complete", JOptionPane.INFORMATION_MESSAGE);
-        });
+        exportBtn.addActionListener(e -> exportData(loginFrame));
 
         loginFrame.setLocationRelativeTo(null);
         loginFrame.setVisible(true);
     }
 
+    private void exportData(JFrame parent) {
+        JCheckBox gzipCheck = new JCheckBox("Compress files (gzip)");
+        if (JOptionPane.showConfirmDialog(parent, gzipCheck, "Export Data",
+                JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) return;
+
+        ProgressMonitor monitor = new ProgressMonitor(parent, "Exporting library data...", null, 0, 1000);
+        monitor.setMillisToDecideToPopup(200);
+        library.exportDataToTextFiles(gzipCheck.isSelected(), (written, total) -> SwingUtilities.invokeLater(() ->
+                monitor.setProgress(total == 0 ? 0 : (int) Math.min(999, written * 1000 / total))))
+            .whenComplete((ignored, error) -> SwingUtilities.invokeLater(() -> {
+                monitor.close();
+                if (error != null) {
+                    JOptionPane.showMessageDialog(parent, "Export failed: " + (error.getCause() != null ? error.getCause() : error), "Error", JOptionPane.ERROR_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(parent, "Data exported to text files!", "Export Complete", JOptionPane.INFORMATION_MESSAGE);
+                }
+            }));
+    }
+
     private void showRegistration(JFrame parent) {
         JDialog dialog = new JDialog(parent, "Register New User", true);
         dialog.setSize(400, 300);
@@ -450,10 +8340,7 @@ public class EWULibraryManagementSystem {
         JButton logoutBtn = new JButton("Logout (" + currentUser.getUsername() + ")");
         logoutBtn.addActionListener(e -> logout());
         JButton exportBtn = new JButton("Export Data");
-        exportBtn.addActionListener(e -> {
-            library.exportDataToTextFiles();
-            JOptionPane.showMessageDialog(frame, "Data exported to text files!", "Export Complete", JOptionPane.INFORMATION_MESSAGE);
-        });
+        exportBtn.addActionListener(e -> exportData(frame));
 
         header.add(new JLabel("EWU Library Management System", SwingConstants.CENTER), BorderLayout.CENTER);
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
@@ -479,70 +8366,149 @@ public class EWULibraryManagementSystem {
         JTextField searchField = new JTextField(20);
         JButton searchBtn = new JButton("Search");
         JButton showAllBtn = new JButton("Show All");
+        JButton topRatedBtn = new JButton("Top Rated");
+        JButton mostRatedBtn = new JButton("Most Rated");
         searchPanel.add(new JLabel("Search:"));
         searchPanel.add(searchField);
         searchPanel.add(searchBtn);
         searchPanel.add(showAllBtn);
+        searchPanel.add(topRatedBtn);
+        searchPanel.add(mostRatedBtn);
 
-        bookListModel = new DefaultListModel<>();
+        bookListModel = new BookListModel(library);
         JList<Book> bookList = new JList<>(bookListModel);
         bookList.setCellRenderer(new BookCellRenderer());
+        // A prototype row keeps JList from measuring every element of a large catalog
+        bookList.setPrototypeCellValue(new Book("PROTOTYPE", "A typical book title of reasonable length",
+                "Author Name", "Genre", 2000));
         JScrollPane scrollPane = new JScrollPane(bookList);
 
+        facetSelection.clear();
+        facetPanel = new JPanel();
+        facetPanel.setLayout(new BoxLayout(facetPanel, BoxLayout.Y_AXIS));
+        JScrollPane facetScroll = new JScrollPane(facetPanel);
+        facetScroll.setPreferredSize(new Dimension(220, 0));
+
         JPanel actionPanel = new JPanel();
         JButton borrowBtn = new JButton("Borrow");
         JButton returnBtn = new JButton("Return");
+        JButton holdBtn = new JButton("Place Hold");
         JButton detailsBtn = new JButton("Details");
 
         if (currentUser.isAdmin()) {
             JButton addBtn = new JButton("Add Book");
             JButton removeBtn = new JButton("Remove Book");
+            JButton addCopyBtn = new JButton("Add Copy");
+            JButton checkInBtn = new JButton("Check In Batch");
             actionPanel.add(addBtn);
             actionPanel.add(removeBtn);
+            actionPanel.add(addCopyBtn);
+            actionPanel.add(checkInBtn);
+
+            // Copy IDs scanned from the returns bin, one per line
+            checkInBtn.addActionListener(e -> {
+                JTextArea scanned = new JTextArea(15, 25);
+                if (JOptionPane.showConfirmDialog(frame, new JScrollPane(scanned), "Check In Batch",
+                    JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) return;
+                List<String> copyIds = new ArrayList<>();
+                for (String line : scanned.getText().split("\\s+")) {
+                    if (!line.isEmpty()) copyIds.add(line);
+                }
+                if (copyIds.isEmpty()) return;
+                runInBackground(() -> library.returnBooks(copyIds), result -> {
+                    showCirculationResult("Checked in", result);
+                    refreshBooks();
+                });
+            });
 
             addBtn.addActionListener(e -> showAddBookDialog());
             removeBtn.addActionListener(e -> {
                 Book selected = bookList.getSelectedValue();
                 if (selected != null) {
-                    if (library.removeBook(selected.getId())) {
-                        JOptionPane.showMessageDialog(frame, "Book removed successfully!");
-                        refreshBooks();
-                    } else {
-                        JOptionPane.showMessageDialog(frame, "Failed to remove book!", 
-                            "Error", JOptionPane.ERROR_MESSAGE);
-                    }
+                    runInBackground(() -> library.removeBook(selected.getId()), removed -> {
+                        if (removed) {
+                            JOptionPane.showMessageDialog(frame, "Book removed successfully!");
+                            refreshBooks();
+                        } else {
+                            JOptionPane.showMessageDialog(frame, "Failed to remove book!", 
+                                "Error", JOptionPane.ERROR_MESSAGE);
+                        }
+                    });
+                }
+            });
+            addCopyBtn.addActionListener(e -> {
+                Book selected = bookList.getSelectedValue();
+                if (selected != null) {
+                    runInBackground(() -> library.addCopy(selected.getId()), copyId -> {
+                        JOptionPane.showMessageDialog(frame, copyId != null ? "Copy " + copyId + " added!" : "Book not found!");
+                        bookListModel.booksChanged(Collections.singletonList(selected));
+                    });
                 }
             });
         }
 
         actionPanel.add(borrowBtn);
         actionPanel.add(returnBtn);
+        actionPanel.add(holdBtn);
         actionPanel.add(detailsBtn);
 
-        searchBtn.addActionListener(e -> {
-            List<Book> results = library.searchBooks(searchField.getText());
-            bookListModel.clear();
-            results.forEach(bookListModel::addElement);
+        searchBtn.addActionListener(e -> bookListModel.search(searchField.getText()));
+
+        showAllBtn.addActionListener(e -> {
+            facetSelection.clear();
+            bookListModel.showAll();
+            refreshFacets();
         });
 
-        showAllBtn.addActionListener(e -> refreshBooks());
+        topRatedBtn.addActionListener(e -> bookListModel.show(() -> library.getTopRated(TOP_BOOKS)));
 
+        mostRatedBtn.addActionListener(e -> bookListModel.show(() -> library.getMostRated(TOP_BOOKS)));
+
+        // Several selected rows go through as one batch
         borrowBtn.addActionListener(e -> {
-            Book selected = bookList.getSelectedValue();
-            if (selected != null && selected.isAvailable()) {
-                String result = library.borrowBook(selected.getId(), currentUser.getUsername());
-                JOptionPane.showMessageDialog(frame, result);
-                refreshBooks();
+            List<Book> selected = bookList.getSelectedValuesList();
+            if (selected.size() == 1) {
+                runInBackground(() -> library.borrowBook(selected.get(0).getId(), currentUser.getUsername()), result -> {
+                    JOptionPane.showMessageDialog(frame, result);
+                    bookListModel.booksChanged(selected);
+                });
+            } else if (!selected.isEmpty()) {
+                List<String> ids = new ArrayList<>();
+                selected.forEach(book -> ids.add(book.getId()));
+                runInBackground(() -> library.borrowBooks(currentUser.getUsername(), ids), result -> {
+                    showCirculationResult("Borrowed", result);
+                    bookListModel.booksChanged(selected);
+                });
             }
         });
 
         returnBtn.addActionListener(e -> {
+            List<String> loans = new ArrayList<>();
+            List<Book> selected = bookList.getSelectedValuesList();
+            for (Book book : selected) {
+                BookCopy loan = library.getBorrowedCopy(book.getId(), currentUser.getUsername());
+                if (loan != null) loans.add(loan.getId());
+            }
+            if (loans.size() == 1) {
+                runInBackground(() -> library.returnBook(loans.get(0)), result -> {
+                    JOptionPane.showMessageDialog(frame, result);
+                    bookListModel.booksChanged(selected);
+                });
+            } else if (!loans.isEmpty()) {
+                runInBackground(() -> library.returnBooks(loans), result -> {
+                    showCirculationResult("Returned", result);
+                    bookListModel.booksChanged(selected);
+                });
+            }
+        });
+
+        holdBtn.addActionListener(e -> {
             Book selected = bookList.getSelectedValue();
-            if (selected != null && !selected.isAvailable() && 
-                selected.getBorrower().equals(currentUser.getUsername())) {
-                String result = library.returnBook(selected.getId());
-                JOptionPane.showMessageDialog(frame, result);
-                refreshBooks();
+            if (selected != null) {
+                runInBackground(() -> library.placeHold(selected.getId(), currentUser.getUsername()), result -> {
+                    JOptionPane.showMessageDialog(frame, result);
+                    bookListModel.booksChanged(Collections.singletonList(selected));
+                });
             }
         });
 
@@ -552,12 +8518,68 @@ public class EWULibraryManagementSystem {
         });
 
         panel.add(searchPanel, BorderLayout.NORTH);
+        panel.add(facetScroll, BorderLayout.WEST);
         panel.add(scrollPane, BorderLayout.CENTER);
         panel.add(actionPanel, BorderLayout.SOUTH);
-        refreshBooks();
+        bookListModel.showAll();
+        refreshFacets();
         return panel;
     }
 
+    private void refreshFacets() {
+        Map<FacetIndex.Field, Set<String>> selection = copyFacetSelection();
+        runInBackground(() -> {
+            Map<FacetIndex.Field, Map<String, Integer>> counts = new EnumMap<>(FacetIndex.Field.class);
+            for (FacetIndex.Field field : FacetIndex.Field.values()) {
+                counts.put(field, library.getFacetCounts(field, selection));
+            }
+            return counts;
+        }, this::showFacets);
+    }
+
+    // The largest values of each facet, plus any selected ones that have dropped out of the top
+    private void showFacets(Map<FacetIndex.Field, Map<String, Integer>> counts) {
+        facetPanel.removeAll();
+        for (FacetIndex.Field field : FacetIndex.Field.values()) {
+            JLabel heading = new JLabel(field.label);
+            heading.setFont(heading.getFont().deriveFont(Font.BOLD));
+            facetPanel.add(heading);
+            Set<String> selected = facetSelection.getOrDefault(field, Collections.emptySet());
+            Map<String, Integer> values = new LinkedHashMap<>(counts.get(field));
+            for (String value : selected) values.putIfAbsent(value, 0);
+            int shown = 0;
+            for (Map.Entry<String, Integer> entry : values.entrySet()) {
+                String value = entry.getKey();
+                if (shown >= FACET_VALUES && !selected.contains(value)) continue;
+                shown++;
+                JCheckBox box = new JCheckBox(value + " (" + entry.getValue() + ")", selected.contains(value));
+                box.addActionListener(e -> {
+                    Set<String> picked = facetSelection.computeIfAbsent(field, k -> new HashSet<>());
+                    if (box.isSelected()) picked.add(value);
+                    else picked.remove(value);
+                    applyFacets();
+                });
+                facetPanel.add(box);
+            }
+        }
+        facetPanel.revalidate();
+        facetPanel.repaint();
+    }
+
+    private void applyFacets() {
+        Map<FacetIndex.Field, Set<String>> selection = copyFacetSelection();
+        if (selection.values().stream().allMatch(Set::isEmpty)) bookListModel.showAll();
+        else bookListModel.show(() -> library.browseBooks(selection));
+        refreshFacets();
+    }
+
+    // Background tasks get their own copy; the checkboxes keep editing the original
+    private Map<FacetIndex.Field, Set<String>> copyFacetSelection() {
+        Map<FacetIndex.Field, Set<String>> copy = new EnumMap<>(FacetIndex.Field.class);
+        facetSelection.forEach((field, values) -> copy.put(field, new HashSet<>(values)));
+        return copy;
+    }
+
     private JPanel createUsersTab() {
         JPanel panel = new JPanel(new BorderLayout());
         userListModel = new DefaultListModel<>();
@@ -572,6 +8594,7 @@ public class EWULibraryManagementSystem {
             User selected = userList.getSelectedValue();
             if (selected != null) {
                 selected.setActive(!selected.isActive());
+                library.updateUser(selected);
                 refreshUsers();
             }
         });
@@ -581,7 +8604,7 @@ public class EWULibraryManagementSystem {
             if (selected != null) {
                 String newPass = JOptionPane.showInputDialog(frame, "Enter new password:");
                 if (newPass != null) {
-                    selected.setPassword(newPass);
+                    library.changePassword(selected, newPass);
                     JOptionPane.showMessageDialog(frame, "Password updated!");
                 }
             }
@@ -606,18 +8629,47 @@ public class EWULibraryManagementSystem {
         infoPanel.add(new JLabel("Role: " + (currentUser.isAdmin() ? "Admin" : "User")));
 
         DefaultListModel<Book> borrowedModel = new DefaultListModel<>();
-        library.getAllBooks().stream()
-            .filter(b -> !b.isAvailable() && b.getBorrower().equals(currentUser.getUsername()))
-            .forEach(borrowedModel::addElement);
+        List<BookCopy> borrowedCopies = new ArrayList<>(library.getBorrowedCopies(currentUser.getUsername()));
+        borrowedCopies.forEach(copy -> borrowedModel.addElement(copy.getBook()));
+        JList<Book> borrowedList = new JList<>(borrowedModel);
+
+        DefaultListModel<Book> recommendedModel = new DefaultListModel<>();
+        JList<Book> recommendedList = new JList<>(recommendedModel);
+        recommendedList.setCellRenderer(new BookCellRenderer());
+        runInBackground(() -> library.getRecommendations(currentUser.getUsername(), 10),
+            recommended -> recommended.forEach(recommendedModel::addElement));
+        JPanel recommendedPanel = new JPanel(new BorderLayout());
+        recommendedPanel.add(new JLabel("Recommended for you:"), BorderLayout.NORTH);
+        recommendedPanel.add(new JScrollPane(recommendedList), BorderLayout.CENTER);
+
+        JPanel listsPanel = new JPanel(new GridLayout(2, 1, 0, 10));
+        listsPanel.add(new JScrollPane(borrowedList));
+        listsPanel.add(recommendedPanel);
 
         JPanel buttonPanel = new JPanel();
         JButton passBtn = new JButton("Change Password");
         JButton updateBtn = new JButton("Update Info");
+        JButton renewBtn = new JButton("Renew");
+        JButton historyBtn = new JButton("My History");
+        JButton detailsBtn = new JButton("View Recommended");
+
+        detailsBtn.addActionListener(e -> showBookDetails(recommendedList.getSelectedValue()));
+
+        renewBtn.addActionListener(e -> {
+            int index = borrowedList.getSelectedIndex();
+            if (index < 0) return;
+            BookCopy copy = borrowedCopies.get(index);
+            runInBackground(() -> library.renewBook(copy.getId(), currentUser.getUsername()),
+                result -> JOptionPane.showMessageDialog(frame, result));
+        });
+
+        historyBtn.addActionListener(e -> showHistory("My History",
+            () -> library.getUserHistory(currentUser.getUsername(), Long.MIN_VALUE, Long.MAX_VALUE, HISTORY_EVENTS)));
 
         passBtn.addActionListener(e -> {
             String newPass = JOptionPane.showInputDialog(frame, "Enter new password:");
             if (newPass != null) {
-                currentUser.setPassword(newPass);
+                library.changePassword(currentUser, newPass);
                 JOptionPane.showMessageDialog(frame, "Password changed!");
             }
         });
@@ -636,15 +8688,19 @@ public class EWULibraryManagementSystem {
                 JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION) {
                 currentUser.setFullName(nameField.getText());
                 currentUser.setEmail(emailField.getText());
+                library.updateUser(currentUser);
                 JOptionPane.showMessageDialog(frame, "Information updated!");
             }
         });
 
         buttonPanel.add(passBtn);
         buttonPanel.add(updateBtn);
+        buttonPanel.add(renewBtn);
+        buttonPanel.add(historyBtn);
+        buttonPanel.add(detailsBtn);
 
         panel.add(infoPanel, BorderLayout.NORTH);
-        panel.add(new JScrollPane(new JList<>(borrowedModel)), BorderLayout.CENTER);
+        panel.add(listsPanel, BorderLayout.CENTER);
         panel.add(buttonPanel, BorderLayout.SOUTH);
         return panel;
     }
@@ -675,19 +8731,24 @@ public class EWULibraryManagementSystem {
         dialog.add(addBtn);
 
         addBtn.addActionListener(e -> {
+            int year;
             try {
-                if (library.addBook(idField.getText(), titleField.getText(), 
-                        authorField.getText(), genreField.getText(), 
-                        Integer.parseInt(yearField.getText()))) {
+                year = Integer.parseInt(yearField.getText());
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(dialog, "Invalid year!", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            String id = idField.getText(), title = titleField.getText();
+            String author = authorField.getText(), genre = genreField.getText();
+            runInBackground(() -> library.addBook(id, title, author, genre, year), added -> {
+                if (added) {
                     JOptionPane.showMessageDialog(dialog, "Book added!");
                     refreshBooks();
                     dialog.dispose();
                 } else {
                     JOptionPane.showMessageDialog(dialog, "Book ID already exists!", "Error", JOptionPane.ERROR_MESSAGE);
                 }
-            } catch (NumberFormatException ex) {
-                JOptionPane.showMessageDialog(dialog, "Invalid year!", "Error", JOptionPane.ERROR_MESSAGE);
-            }
+            });
         });
 
         dialog.setLocationRelativeTo(frame);
@@ -698,17 +8759,38 @@ public class EWULibraryManagementSystem {
         if (book == null) return;
         
         JDialog dialog = new JDialog(frame, "Book Details", true);
-        dialog.setSize(350, 250);
+        dialog.setSize(350, 330);
         dialog.setLayout(new BorderLayout());
 
+        String status = book.read(b -> {
+            StringBuilder copies = new StringBuilder()
+                .append(b.getAvailableCopies()).append(" of ").append(b.getCopyCount()).append(" available");
+            for (BookCopy copy : b.getCopies()) {
+                if (copy.getBorrower() != null) {
+                    copies.append("\n  ").append(copy.getId()).append(": borrowed by ").append(copy.getBorrower())
+                        .append(" until ").append(String.format("%tF", copy.getDueDate()));
+                } else if (copy.getHeldFor() != null) {
+                    copies.append("\n  ").append(copy.getId()).append(": on hold for ").append(copy.getHeldFor())
+                        .append(" until ").append(String.format("%tF", copy.getHoldExpires()));
+                }
+            }
+            return copies.toString();
+        });
+        int position = library.getHoldPosition(book.getId(), currentUser.getUsername());
+        StringBuilder alsoLiked = new StringBuilder();
+        for (Book other : library.getSimilarBooks(book.getId(), 5)) {
+            alsoLiked.append("\n  ").append(other.getTitle()).append(" by ").append(other.getAuthor());
+        }
+
         JTextArea details = new JTextArea();
         details.setEditable(false);
         details.setText(String.format(
-            "ID: %s\nTitle: %s\nAuthor: %s\nGenre: %s\nYear: %d\nStatus: %s\nRating: %.1f (%d ratings)",
+            "ID: %s\nTitle: %s\nAuthor: %s\nGenre: %s\nYear: %d\nStatus: %s\nWaitlist: %d%s\nRating: %.1f (%d ratings)%s",
             book.getId(), book.getTitle(), book.getAuthor(), book.getGenre(),
-            book.getPublicationYear(), book.isAvailable() ? "Available" : 
-            "Borrowed by " + book.getBorrower() + " until " + String.format("%tF", book.getDueDate()),
-            book.getAverageRating(), book.getRatingCount()
+            book.getPublicationYear(), status,
+            library.getWaitlistSize(book.getId()), position > 0 ? " (you are #" + position + ")" : "",
+            book.getAverageRating(), book.getRatingCount(),
+            alsoLiked.length() > 0 ? "\n\nPatrons who liked this also liked:" + alsoLiked : ""
         ));
 
         JPanel ratingPanel = new JPanel(new FlowLayout());
@@ -736,9 +8818,17 @@ public class EWULibraryManagementSystem {
         JPanel bottomPanel = new JPanel(new BorderLayout());
         bottomPanel.add(ratingPanel, BorderLayout.NORTH);
         
+        JPanel closePanel = new JPanel();
+        if (currentUser.isAdmin()) {
+            JButton historyBtn = new JButton("History");
+            historyBtn.addActionListener(e -> showHistory("History of " + book.getId(),
+                () -> library.getBookHistory(book.getId(), Long.MIN_VALUE, Long.MAX_VALUE, HISTORY_EVENTS)));
+            closePanel.add(historyBtn);
+        }
         JButton closeBtn = new JButton("Close");
         closeBtn.addActionListener(e -> dialog.dispose());
-        bottomPanel.add(closeBtn, BorderLayout.SOUTH);
+        closePanel.add(closeBtn);
+        bottomPanel.add(closePanel, BorderLayout.SOUTH);
 
         dialog.add(new JScrollPane(details), BorderLayout.CENTER);
         dialog.add(bottomPanel, BorderLayout.SOUTH);
@@ -746,9 +8836,27 @@ public class EWULibraryManagementSystem {
         dialog.setVisible(true);
     }
 
+    private void showCirculationResult(String verb, CirculationResult result) {
+        StringBuilder text = new StringBuilder(verb).append(' ').append(result.getSucceeded())
+            .append(" of ").append(result.getItems().size()).append(" item(s).");
+        for (CirculationResult.Item failure : result.getFailures()) text.append('\n').append(failure);
+        JOptionPane.showMessageDialog(frame, text.toString());
+    }
+
+    // Latest events first
+    private void showHistory(String title, Callable<List<HistoryLog.Event>> events) {
+        runInBackground(events, list -> {
+            StringBuilder text = new StringBuilder();
+            for (int i = list.size() - 1; i >= 0; i--) text.append(list.get(i)).append('\n');
+            JTextArea area = new JTextArea(text.length() == 0 ? "No history yet." : text.toString(), 20, 50);
+            area.setEditable(false);
+            JOptionPane.showMessageDialog(frame, new JScrollPane(area), title, JOptionPane.PLAIN_MESSAGE);
+        });
+    }
+
     private void refreshBooks() {
-        bookListModel.clear();
-        library.getAllBooks().forEach(bookListModel::addElement);
+        bookListModel.reload();
+        refreshFacets();
     }
 
     private void refreshUsers() {
@@ -765,17 +8873,141 @@ public class EWULibraryManagementSystem {
         }
     }
 
+    // Rows are held as the list returned by Library; for "Show All" that is the
+    // published catalog version, which is not copied. Reloads run on a SwingWorker and
+    // publish at most one added/removed/changed event each when they land.
+    private static class BookListModel extends AbstractListModel<Book> {
+        private static final long serialVersionUID = 1L;
+
+        private final Library library;
+        private Supplier<List<Book>> source;
+        private List<Book> results = Collections.emptyList();
+        private int size;
+        private int generation;
+        // Built on the first change after a load
+        private Map<Book, Integer> rows;
+
+        BookListModel(Library library) {
+            this.library = library;
+            this.source = library::getAllBooks;
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public Book getElementAt(int index) {
+            return results.get(index);
+        }
+
+        void showAll() {
+            load(library::getAllBooks);
+        }
+
+        void search(String query) {
+            load(() -> library.searchBooks(query));
+        }
+
+        void show(Supplier<List<Book>> books) {
+            load(books);
+        }
+
+        void reload() {
+            load(source);
+        }
+
+        // Rows are found when the change lands, since a reload may have moved them meanwhile
+        void booksChanged(Collection<Book> books) {
+            if (rows == null) {
+                rows = new IdentityHashMap<>(size * 2);
+                for (int i = 0; i < size; i++) rows.put(results.get(i), i);
+            }
+            for (Book book : books) {
+                Integer row = rows.get(book);
+                if (row != null) fireContentsChanged(this, row, row);
+            }
+        }
+
+        private void load(Supplier<List<Book>> newSource) {
+            int loadGeneration = ++generation;
+            new SwingWorker<List<Book>, Void>() {
+                @Override
+                protected List<Book> doInBackground() {
+                    return newSource.get();
+                }
+
+                @Override
+                protected void done() {
+                    if (loadGeneration != generation) return;
+                    List<Book> newResults;
+                    try {
+                        newResults = get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        e.printStackTrace();
+                        return;
+                    }
+                    List<Book> oldResults = results;
+                    source = newSource;
+                    results = newResults;
+                    rows = null;
+                    resize(oldResults);
+                }
+            }.execute();
+        }
+
+        // Only the span between the rows both lists share at either end is reported
+        private void resize(List<Book> oldResults) {
+            int oldSize = size;
+            int newSize = results.size();
+            size = newSize;
+            int first = 0;
+            while (first < oldSize && first < newSize && oldResults.get(first) == results.get(first)) first++;
+            int last = 0;
+            while (last < oldSize - first && last < newSize - first
+                    && oldResults.get(oldSize - 1 - last) == results.get(newSize - 1 - last)) last++;
+            int oldEnd = oldSize - last;
+            int newEnd = newSize - last;
+            int shared = Math.min(oldEnd, newEnd);
+            if (shared > first) fireContentsChanged(this, first, shared - 1);
+            if (oldEnd > newEnd) fireIntervalRemoved(this, newEnd, oldEnd - 1);
+            if (newEnd > oldEnd) fireIntervalAdded(this, oldEnd, newEnd - 1);
+        }
+    }
+
+    // Runs a Library call off the EDT and hands the result back on it
+    private <T> void runInBackground(Callable<T> task, Consumer<T> onDone) {
+        new SwingWorker<T, Void>() {
+            @Override
+            protected T doInBackground() throws Exception {
+                return task.call();
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    onDone.accept(get());
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+        }.execute();
+    }
+
     private static class BookCellRenderer extends DefaultListCellRenderer {
         @Override
         public Component getListCellRendererComponent(JList<?> list, Object value, int index, 
                                                     boolean isSelected, boolean cellHasFocus) {
             super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
             Book book = (Book) value;
+            if (book == null) return this;
+            boolean onHold = !book.isAvailable() && book.hasHolds();
+            String status = book.isAvailable() ? "Available" : onHold ? "On Hold" : "Borrowed";
+            if (book.getCopyCount() > 1) status += " " + book.getAvailableCopies() + "/" + book.getCopyCount();
             setText(String.format("%s - %s (%s) ★%.1f", 
-                    book.getTitle(), book.getAuthor(),
-                    book.isAvailable() ? "Available" : "Borrowed",
-                    book.getAverageRating()));
-            setForeground(book.isAvailable() ? Color.BLACK : Color.RED);
+                    book.getTitle(), book.getAuthor(), status, book.getAverageRating()));
+            setForeground(!book.isAvailable() ? (onHold ? Color.ORANGE.darker() : Color.RED) : Color.BLACK);
             return this;
         }
     }